@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+
+/**
+ * Sizes query limits, fetch sizes and request budgets for one stage from what the stage has observed so far
+ * instead of fixed multiples of the desired tuples set size.
+ *
+ * <p>Two ratios are tracked: the fraction of rows read which the spec's matchers accept and the fraction of
+ * accepted results which are new rather than duplicates. Both use add-one smoothing so they start at one half
+ * and move towards the observed values as evidence accumulates. Query limits are sized to deliver the number
+ * of values still needed given both ratios.</p>
+ *
+ * <p>Exhaustion is estimated from the observed yield, the fraction of attempts which produced a new result,
+ * taken over the attempts made before the current run of misses so the run being judged cannot lower its own
+ * bar. After a run of consecutive unproductive attempts whose probability under that yield falls below one
+ * percent, the source is considered exhausted. A selective stage with a low yield is therefore given more
+ * attempts than a permissive one, while one which has never produced anything stops after
+ * {@link #MIN_MISS_THRESHOLD} attempts. As a backstop the stage also stops once it has made four times the
+ * attempts the observed yield needs to deliver the desired number of results, and never makes more than
+ * {@link #MAX_ATTEMPTS}, which guarantees termination.</p>
+ *
+ * @author kbrockhoff
+ */
+class AdaptiveBudget {
+
+    static final int MIN_LIMIT = 10;
+    private static final int MAX_LIMIT = 100000;
+    private static final int INITIAL_LIMIT_MULTIPLE = 4;
+    private static final double HEADROOM = 1.5;
+    private static final int MIN_FETCH_SIZE = 10;
+    private static final int MAX_FETCH_SIZE = 1000;
+    private static final double EXHAUSTION_CONFIDENCE = 0.99;
+    static final int MIN_MISS_THRESHOLD = 16;
+    private static final double CEILING_SAFETY_FACTOR = 4.0;
+    static final long MAX_ATTEMPTS = 1000000L;
+
+    private final int desiredSize;
+    private long rowsRead = 0L;
+    private long rowsAccepted = 0L;
+    private long results = 0L;
+    private long duplicates = 0L;
+    private long attempts = 0L;
+    private long productiveAttempts = 0L;
+    private int consecutiveMisses = 0;
+    private PipelineMetrics.StageRecorder recorder;
+
+    /**
+     * Constructs a budget.
+     *
+     * @param desiredSize the number of distinct results the stage is expected to deliver
+     */
+    AdaptiveBudget(int desiredSize) {
+        checkArgument(desiredSize > 0, "desiredSize must be greater than zero");
+        this.desiredSize = desiredSize;
+    }
+
+    /**
+     * Returns the row limit to use for a first query before anything has been observed.
+     *
+     * @param desiredSize the number of distinct results needed
+     * @return the limit
+     */
+    static int initialLimit(int desiredSize) {
+        return clamp((long) desiredSize * INITIAL_LIMIT_MULTIPLE, MIN_LIMIT, MAX_LIMIT);
+    }
+
+    /**
+     * Forwards every row and result recorded from now on to the supplied stage metrics as well.
+     *
+     * @param recorder the stage's metrics
+     */
+    synchronized void reportTo(PipelineMetrics.StageRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    synchronized void recordRow(boolean accepted) {
+        rowsRead++;
+        if (accepted) {
+            rowsAccepted++;
+        }
+        if (recorder != null) {
+            recorder.recordRow(accepted);
+        }
+    }
+
+    synchronized void recordResult(boolean novel) {
+        results++;
+        if (!novel) {
+            duplicates++;
+        }
+        if (recorder != null) {
+            recorder.recordResult(novel);
+        }
+    }
+
+    synchronized void recordAttempt(boolean productive) {
+        attempts++;
+        if (productive) {
+            productiveAttempts++;
+            consecutiveMisses = 0;
+        } else {
+            consecutiveMisses++;
+        }
+    }
+
+    synchronized double getAcceptanceRatio() {
+        return (rowsAccepted + 1.0) / (rowsRead + 2.0);
+    }
+
+    synchronized double getNoveltyRatio() {
+        return (results - duplicates + 1.0) / (results + 2.0);
+    }
+
+    synchronized double getYield() {
+        return (productiveAttempts + 1.0) / (attempts + 2.0);
+    }
+
+    synchronized long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the number of rows to read to obtain the supplied number of new acceptable values.
+     *
+     * @param needed the number of values still needed
+     * @return the limit
+     */
+    synchronized int sizeLimit(int needed) {
+        double rows = Math.max(needed, 1) * HEADROOM / (getAcceptanceRatio() * getNoveltyRatio());
+        return clamp((long) Math.ceil(rows), MIN_LIMIT, MAX_LIMIT);
+    }
+
+    /**
+     * Returns the JDBC fetch size for a query limited to the supplied number of rows.
+     *
+     * @param limit the query limit
+     * @return the fetch size
+     */
+    int sizeFetch(int limit) {
+        return clamp(limit, MIN_FETCH_SIZE, MAX_FETCH_SIZE);
+    }
+
+    /**
+     * Returns the number of consecutive unproductive attempts after which the source is considered exhausted.
+     *
+     * @return the attempt count
+     */
+    synchronized int getMissThreshold() {
+        double priorYield = (productiveAttempts + 1.0) / (attempts - consecutiveMisses + 2.0);
+        double misses = Math.log(1.0 - EXHAUSTION_CONFIDENCE) / Math.log(1.0 - priorYield);
+        return Math.max(MIN_MISS_THRESHOLD, (int) Math.ceil(misses));
+    }
+
+    /**
+     * Returns whether further attempts are unlikely to produce anything new.
+     *
+     * @return true if exhausted
+     */
+    synchronized boolean isExhausted() {
+        return consecutiveMisses >= getMissThreshold() || isCeilingReached();
+    }
+
+    /**
+     * Returns the number of attempts after which the stage stops however recent attempts went, which is a
+     * multiple of the attempts expected to deliver the desired number of results at the observed yield.
+     *
+     * @return the attempt count
+     */
+    synchronized long getAttemptCeiling() {
+        double expected = desiredSize / getYield();
+        long ceiling = (long) Math.ceil(expected * CEILING_SAFETY_FACTOR);
+        return Math.min(MAX_ATTEMPTS, Math.max(MIN_MISS_THRESHOLD, ceiling));
+    }
+
+    /**
+     * Returns whether the backstop on attempts has been reached.
+     *
+     * @return true if reached
+     */
+    synchronized boolean isCeilingReached() {
+        return attempts >= getAttemptCeiling();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AdaptiveBudget{acceptance=%.3f, novelty=%.3f, yield=%.3f, attempts=%d, misses=%d}",
+                getAcceptanceRatio(), getNoveltyRatio(), getYield(), attempts, consecutiveMisses);
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+
+import java.util.List;
+
+/**
+ * Marks a subscriber which can process several items delivered together in one call.
+ *
+ * @author kbrockhoff
+ */
+interface BatchSubscriber extends Subscriber<Tuple> {
+
+    /**
+     * Processes items in the order supplied. Equivalent to calling {@code onNext} for each of them but lets the
+     * subscriber request replacements for the ones it discards in a single request.
+     *
+     * @param items the items which count against outstanding demand the same as if delivered singly
+     */
+    default void onNextBatch(List<Tuple> items) {
+        items.forEach(this::onNext);
+    }
+
+}
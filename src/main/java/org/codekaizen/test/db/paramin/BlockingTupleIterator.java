@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Adapts a stream of tuples to a blocking iterator. At most {@code prefetch} tuples are requested ahead of the
+ * consumer so memory use is bounded regardless of how many tuples the stream produces.
+ *
+ * @author kbrockhoff
+ */
+class BlockingTupleIterator implements Subscriber<Tuple>, Iterator<Tuple>, AutoCloseable {
+
+    private static final Object COMPLETE = new Object();
+
+    private final Logger logger = LoggerFactory.getLogger(BlockingTupleIterator.class);
+    private final int prefetch;
+    private final int replenishThreshold;
+    private final BlockingQueue<Object> buffer;
+    private volatile Subscription subscription;
+    private Object next;
+    private int consumedSinceRequest = 0;
+    private boolean terminated = false;
+
+    /**
+     * Constructs an iterator.
+     *
+     * @param prefetch the maximum number of tuples buffered ahead of the consumer
+     */
+    BlockingTupleIterator(int prefetch) {
+        checkArgument(prefetch > 0, "prefetch must be greater than zero");
+        this.prefetch = prefetch;
+        this.replenishThreshold = Math.max(1, prefetch / 2);
+        this.buffer = new ArrayBlockingQueue<>(prefetch + 1);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        logger.trace("onSubscribe({})", subscription);
+        checkNotNull(subscription);
+        if (this.subscription != null) {
+            logger.warn("duplicate subscription received, per reactive streams rule 2.5 calling cancel");
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(Tuple item) {
+        logger.trace("onNext({})", item);
+        checkNotNull(item, "reactive streams rule 2.13 requires throwing of null pointer");
+        if (!buffer.offer(item)) {
+            throw new IllegalStateException("publisher delivered more tuples than requested");
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.trace("onError({})", throwable);
+        buffer.offer(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        logger.trace("onComplete()");
+        buffer.offer(COMPLETE);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !terminated) {
+            try {
+                next = buffer.take();
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException(interrupted);
+            }
+            if (next == COMPLETE) {
+                next = null;
+                terminated = true;
+            } else if (next instanceof Throwable) {
+                Throwable cause = (Throwable) next;
+                next = null;
+                terminated = true;
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Tuple next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple result = (Tuple) next;
+        next = null;
+        consumedSinceRequest++;
+        if (consumedSinceRequest >= replenishThreshold) {
+            subscription.request(consumedSinceRequest);
+            consumedSinceRequest = 0;
+        }
+        return result;
+    }
+
+    /**
+     * Cancels the subscription if the stream has not yet terminated.
+     */
+    @Override
+    public void close() {
+        logger.trace("close()");
+        if (!terminated && subscription != null) {
+            terminated = true;
+            subscription.cancel();
+        }
+    }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Provides for retrieval of valid values for the independent branches of a tree of parameter specifications.
+ * For each tuple received from upstream, every branch is queried on its own connection and the partial tuples
+ * found for that parent tuple are merged into complete tuples.
+ *
+ * @author kbrockhoff
+ */
+class BranchingQueryProcessor implements QueryStage {
+
+    private final Logger logger = LoggerFactory.getLogger(BranchingQueryProcessor.class);
+    private final String componentId;
+    private final List<String> names;
+    private final List<Branch> branches;
+    private final int batchSize;
+    private final Executor executor;
+    private final EventBus eventBus;
+    private final TupleBatcher batcher;
+    private final Set<Tuple> alreadySeen = new HashSet<>();
+    private final LinkedList<Tuple> pending = new LinkedList<>();
+    private Subscription subscription;
+    private long demand = 0L;
+    private final AdaptiveBudget budget;
+    private boolean awaitingParent = false;
+    private boolean upstreamCompleted = false;
+    private boolean terminated = false;
+
+    /**
+     * Constructs a processor.
+     *
+     * @param names     the tuple element names of all specs in defined order
+     * @param branches  the independent branches joined to the last upstream spec
+     * @param batchSize the desired tuples set size
+     * @param executor  runs the branch queries concurrently or {@code null} to run them serially on the caller
+     * @param eventBus  the inter-component event bus
+     */
+    BranchingQueryProcessor(List<String> names, List<Branch> branches, int batchSize, Executor executor,
+                            EventBus eventBus) {
+        checkNotNull(names);
+        checkArgument(branches.size() > 1, "at least two branches are required");
+        checkNotNull(eventBus);
+        this.componentId = UUID.randomUUID().toString();
+        this.names = new ArrayList<>(names);
+        this.branches = new ArrayList<>(branches);
+        this.batchSize = batchSize;
+        this.budget = new AdaptiveBudget(batchSize);
+        this.executor = executor;
+        this.eventBus = eventBus;
+        this.batcher = new TupleBatcher(componentId, eventBus, TupleBatcher.DEFAULT_MAX_BATCH);
+        eventBus.registerReceiver(this);
+    }
+
+    @Override
+    public String getComponentId() {
+        return componentId;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Tuple> subscriber) {
+        logger.trace("subscribe({})", subscriber);
+        batcher.connect(this, subscriber);
+    }
+
+    @Override
+    public synchronized void onSubscribe(Subscription subscription) {
+        logger.trace("onSubscribe({})", subscription);
+        checkNotNull(subscription);
+        if (this.subscription != null) {
+            logger.warn("duplicate subscription received, per rule 2.5 calling cancel");
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+    }
+
+    @Override
+    public synchronized void onNext(Tuple item) {
+        logger.trace("onNext({})", item);
+        checkNotNull(item, "rule 2.13 requires throwing of null pointer");
+        if (terminated) {
+            return;
+        }
+        if (item.containsNullValue()) {
+            awaitingParent = false;
+            drain();
+            return;
+        }
+        Object[] assignment = new Object[names.size()];
+        for (int i = 0; i < item.size(); i++) {
+            assignment[i] = item.getValue(i);
+        }
+        if (executor == null) {
+            try {
+                List<List<Object[]>> partials = new ArrayList<>();
+                for (Branch branch : branches) {
+                    partials.add(branch.evaluate(assignment.clone(), batchSize));
+                }
+                onBranchesEvaluated(item, partials);
+            } catch (SQLException cause) {
+                onBranchesFailed(cause);
+            }
+        } else {
+            evaluateConcurrently(item, assignment);
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        logger.trace("onError({})", throwable);
+        batcher.fail(throwable);
+        terminated = true;
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        logger.trace("onComplete()");
+        upstreamCompleted = true;
+        drain();
+    }
+
+    @Override
+    public synchronized void request(long l) {
+        logger.trace("request({})", l);
+        demand += l;
+        drain();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        logger.trace("cancel()");
+        terminated = true;
+        pending.clear();
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void abort() {
+        logger.trace("abort()");
+        branches.forEach(Branch::cancel);
+    }
+
+    @Override
+    public synchronized void close() {
+        logger.trace("close()");
+        terminated = true;
+        alreadySeen.clear();
+        pending.clear();
+        eventBus.unregisterReceiver(this);
+        branches.forEach(Branch::close);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " for " + branches;
+    }
+
+    private void evaluateConcurrently(Tuple item, Object[] assignment) {
+        List<CompletableFuture<List<Object[]>>> futures = new ArrayList<>();
+        for (Branch branch : branches) {
+            futures.add(CompletableFuture.supplyAsync(() -> branch.evaluateUnchecked(assignment.clone(), batchSize),
+                    executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .whenComplete((ignore, cause) -> {
+                    if (cause == null) {
+                        List<List<Object[]>> partials = new ArrayList<>();
+                        futures.forEach(f -> partials.add(f.join()));
+                        onBranchesEvaluated(item, partials);
+                    } else {
+                        onBranchesFailed(cause instanceof CompletionException ? cause.getCause() : cause);
+                    }
+                });
+    }
+
+    private synchronized void onBranchesEvaluated(Tuple parent, List<List<Object[]>> partials) {
+        awaitingParent = false;
+        if (terminated) {
+            return;
+        }
+        List<Object[]> combinations = new ArrayList<>();
+        Object[] base = new Object[names.size()];
+        for (int i = 0; i < parent.size(); i++) {
+            base[i] = parent.getValue(i);
+        }
+        combinations.add(base);
+        for (int b = 0; b < branches.size(); b++) {
+            combinations = branches.get(b).merge(combinations, partials.get(b), batchSize);
+        }
+        if (combinations.isEmpty()) {
+            logger.debug("unable to find acceptable values for every branch joined to {}", parent);
+        }
+        boolean productive = false;
+        for (Object[] combination : combinations) {
+            Tuple tuple = new Tuple(names, Arrays.asList(combination));
+            boolean novel = alreadySeen.add(tuple);
+            budget.recordResult(novel);
+            if (novel) {
+                pending.add(tuple);
+                productive = true;
+            } else {
+                logger.debug("already seen {}", tuple);
+            }
+        }
+        budget.recordAttempt(productive);
+        drain();
+    }
+
+    private synchronized void onBranchesFailed(Throwable cause) {
+        awaitingParent = false;
+        if (terminated) {
+            return;
+        }
+        logger.warn("{} query failed: {}", this, cause.getMessage());
+        batcher.fail(cause);
+        terminated = true;
+    }
+
+    private void drain() {
+        while (demand > 0L && !pending.isEmpty() && !terminated) {
+            demand--;
+            batcher.add(pending.removeFirst());
+        }
+        batcher.flush();
+        if (terminated || awaitingParent || !pending.isEmpty()) {
+            return;
+        }
+        if (upstreamCompleted) {
+            complete();
+        } else if (demand > 0L) {
+            requestParent();
+        }
+    }
+
+    private void requestParent() {
+        if (budget.isExhausted()) {
+            logger.warn("only able to retrieve results.size={} before exhausting the possiblities with {}",
+                    alreadySeen.size(), budget);
+            complete();
+            return;
+        }
+        awaitingParent = true;
+        subscription.request(1L);
+    }
+
+    private void complete() {
+        batcher.complete();
+        terminated = true;
+    }
+
+    /**
+     * Holds the statements for the specs in one independent branch. A branch is the subtree rooted at one of
+     * the specs joined to the last upstream spec. The queries, rows and results of each spec are recorded to
+     * that spec's stage metrics.
+     */
+    static class Branch implements AutoCloseable {
+
+        private final Logger logger = LoggerFactory.getLogger(Branch.class);
+        private final Connection connection;
+        private final boolean owningConnection;
+        private final QueryDeadline deadline;
+        private final List<Integer> indexes = new ArrayList<>();
+        private final List<ParamSpec<?>> specs = new ArrayList<>();
+        private final List<PreparedStatement> statements = new ArrayList<>();
+        private final List<int[]> bindings = new ArrayList<>();
+        private final List<PipelineMetrics.StageRecorder> recorders = new ArrayList<>();
+
+        /**
+         * Constructs a branch.
+         *
+         * @param connection       the connection the branch's statements are prepared on
+         * @param owningConnection whether the connection should be closed along with the branch
+         * @param deadline         bounds the execution time of every query
+         */
+        Branch(Connection connection, boolean owningConnection, QueryDeadline deadline) {
+            checkNotNull(connection);
+            this.connection = connection;
+            this.owningConnection = owningConnection;
+            checkNotNull(deadline);
+            this.deadline = deadline;
+        }
+
+        /**
+         * Adds a spec to the branch. Specs must be added in defined order.
+         *
+         * @param index    the position of the spec in defined order
+         * @param spec     the spec
+         * @param sql      the SQL statement retrieving the spec's values
+         * @param binding  the positions of the specs whose values populate the statement parameters
+         * @param recorder the spec's stage metrics
+         * @throws SQLException if unable to prepare the statement
+         */
+        void addSpec(int index, ParamSpec<?> spec, String sql, int[] binding,
+                     PipelineMetrics.StageRecorder recorder) throws SQLException {
+            checkNotNull(recorder);
+            indexes.add(index);
+            specs.add(spec);
+            statements.add(connection.prepareStatement(sql));
+            bindings.add(binding);
+            recorders.add(recorder);
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        List<Object[]> evaluate(Object[] assignment, int limit) throws SQLException {
+            List<Object[]> results = new ArrayList<>();
+            enumerate(0, assignment, limit, results);
+            return results;
+        }
+
+        List<Object[]> evaluateUnchecked(Object[] assignment, int limit) {
+            try {
+                return evaluate(assignment, limit);
+            } catch (SQLException cause) {
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        List<Object[]> merge(List<Object[]> combinations, List<Object[]> partials, int limit) {
+            List<Object[]> results = new ArrayList<>();
+            for (Object[] combination : combinations) {
+                for (Object[] partial : partials) {
+                    if (results.size() >= limit) {
+                        return results;
+                    }
+                    Object[] merged = combination.clone();
+                    for (int i = 0; i < indexes.size(); i++) {
+                        merged[indexes.get(i)] = partial[i];
+                    }
+                    results.add(merged);
+                }
+            }
+            return results;
+        }
+
+        void cancel() {
+            for (PreparedStatement statement : statements) {
+                try {
+                    statement.cancel();
+                } catch (SQLException ignore) {
+                    logger.info("exception on cancel: {}", ignore.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            statements.forEach(this::closeQuietly);
+            if (owningConnection) {
+                closeQuietly(connection);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Branch" + specs;
+        }
+
+        private void enumerate(int position, Object[] assignment, int limit, List<Object[]> results)
+                throws SQLException {
+            if (position == indexes.size()) {
+                Object[] partial = new Object[indexes.size()];
+                for (int i = 0; i < partial.length; i++) {
+                    partial[i] = assignment[indexes.get(i)];
+                }
+                results.add(partial);
+                return;
+            }
+            PreparedStatement statement = statements.get(position);
+            int[] binding = bindings.get(position);
+            for (int i = 0; i < binding.length; i++) {
+                statement.setObject(i + 1, assignment[binding[i]]);
+            }
+            PipelineMetrics.StageRecorder recorder = recorders.get(position);
+            List<Object> values = new ArrayList<>();
+            deadline.applyTo(statement);
+            long started = System.nanoTime();
+            try (ResultSet rs = statement.executeQuery()) {
+                recorder.recordQuery(System.nanoTime() - started);
+                while (values.size() < limit && rs.next()) {
+                    Object value = retrieveAcceptableValue(specs.get(position), rs);
+                    recorder.recordRow(value != null);
+                    if (value != null) {
+                        boolean novel = !values.contains(value);
+                        recorder.recordResult(novel);
+                        if (novel) {
+                            values.add(value);
+                        }
+                    }
+                }
+            }
+            for (Object value : values) {
+                assignment[indexes.get(position)] = value;
+                enumerate(position + 1, assignment, limit, results);
+                if (results.size() >= limit) {
+                    break;
+                }
+            }
+            assignment[indexes.get(position)] = null;
+        }
+
+        private <T extends Comparable<? super T>> T retrieveAcceptableValue(ParamSpec<T> spec, ResultSet rs)
+                throws SQLException {
+            T value = SqlQueryProcessor.retrieveValue(spec, rs);
+            return spec.isAcceptableValue(value) ? value : null;
+        }
+
+        private void closeQuietly(AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception ignore) {
+                logger.info("exception on close: {}", ignore.getMessage());
+            }
+        }
+
+    }
+
+}
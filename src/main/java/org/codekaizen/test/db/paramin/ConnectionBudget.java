@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Limits the connections an executor holds and the queries it runs at once. A retrieval is admitted once a
+ * connection can be leased for it, with waiting retrievals admitted in the order they were submitted. Further
+ * connections a retrieval would like for parallel work are only leased if available without waiting and
+ * without overtaking a waiting retrieval, so retrievals never wait on each other while holding a connection.
+ *
+ * @author kbrockhoff
+ */
+class ConnectionBudget {
+
+    static final int UNLIMITED = Integer.MAX_VALUE;
+    private static final int WAITING = 0;
+    private static final int ADMITTED = 1;
+    private static final int ABANDONED = 2;
+
+    private final int maxConnections;
+    private final int maxQueries;
+    private final Semaphore queries;
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+    private int leased = 0;
+
+    /**
+     * Constructs a budget.
+     *
+     * @param maxConnections the maximum connections leased at once
+     * @param maxQueries     the maximum queries executing at once
+     */
+    ConnectionBudget(int maxConnections, int maxQueries) {
+        checkArgument(maxConnections > 0, "maxConnections must be positive");
+        checkArgument(maxQueries > 0, "maxQueries must be positive");
+        this.maxConnections = maxConnections;
+        this.maxQueries = maxQueries;
+        this.queries = maxQueries == UNLIMITED ? null : new Semaphore(maxQueries, true);
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    int getMaxQueries() {
+        return maxQueries;
+    }
+
+    boolean isLimitingQueries() {
+        return queries != null;
+    }
+
+    synchronized int getLeased() {
+        return leased;
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Runs the supplied action once a connection is leased for it. The action runs on the calling thread if a
+     * connection is available now and otherwise on the thread which releases the connection it is given.
+     *
+     * @param admitted the action which takes over the lease
+     */
+    void admit(Runnable admitted) {
+        checkNotNull(admitted);
+        synchronized (this) {
+            if (!waiting.isEmpty() || leased >= maxConnections) {
+                waiting.add(admitted);
+                return;
+            }
+            leased++;
+        }
+        admitted.run();
+    }
+
+    /**
+     * Blocks until a connection is leased in turn.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitAdmission() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger state = new AtomicInteger(WAITING);
+        admit(() -> {
+            if (!state.compareAndSet(WAITING, ADMITTED)) {
+                release();
+            }
+            latch.countDown();
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException cause) {
+            if (!state.compareAndSet(WAITING, ABANDONED)) {
+                release();
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Leases a connection only if one is available without waiting.
+     *
+     * @return whether leased
+     */
+    synchronized boolean tryLease() {
+        if (!waiting.isEmpty() || leased >= maxConnections) {
+            return false;
+        }
+        leased++;
+        return true;
+    }
+
+    /**
+     * Returns a lease, handing it straight to the longest waiting retrieval if there is one.
+     */
+    void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                leased--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Blocks until a query may be executed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquireQuery() throws InterruptedException {
+        if (queries != null) {
+            queries.acquire();
+        }
+    }
+
+    void releaseQuery() {
+        if (queries != null) {
+            queries.release();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionBudget{leased=" + leased + '/' + (maxConnections == UNLIMITED ? "unlimited" : maxConnections)
+                + ", waiting=" + waiting.size() + ", maxQueries="
+                + (maxQueries == UNLIMITED ? "unlimited" : maxQueries) + '}';
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotEmpty;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Distributes retrievals across a set of data sources such as a primary and its read replicas. Each retrieval
+ * is routed to the source with the lowest load, which is the number of retrievals in flight on it scaled by
+ * its recent query latency and divided by its weight. Query latency is the smoothed time statements took to
+ * execute, so connections held idle between queries do not make a source look slow. Sources already holding
+ * their connection limit are only chosen when every source is at its limit. Every connection handed out counts
+ * against the router's {@link ConnectionBudget} until it is closed. The dialect of each source is looked up on
+ * the first connection leased from it.
+ *
+ * @author kbrockhoff
+ */
+class DataSourceRouter {
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final long LATENCY_FLOOR_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private final Logger logger = LoggerFactory.getLogger(DataSourceRouter.class);
+    private final List<Source> sources;
+    private volatile ConnectionBudget budget =
+            new ConnectionBudget(ConnectionBudget.UNLIMITED, ConnectionBudget.UNLIMITED);
+
+    /**
+     * Constructs a router.
+     *
+     * @param dataSources the weighted sources in order of preference when equally loaded
+     */
+    DataSourceRouter(Collection<WeightedDataSource> dataSources) {
+        checkNotEmpty(dataSources, "at least one dataSource is required");
+        List<Source> list = new ArrayList<>(dataSources.size());
+        for (WeightedDataSource dataSource : dataSources) {
+            checkNotNull(dataSource, "dataSources cannot contain null");
+            list.add(new Source(dataSource));
+        }
+        this.sources = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns the sources in order of preference.
+     *
+     * @return the sources
+     */
+    List<Source> getSources() {
+        return sources;
+    }
+
+    ConnectionBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Replaces the budget new leases are taken from. Connections already leased return to their own budget.
+     *
+     * @param budget the budget
+     */
+    void setBudget(ConnectionBudget budget) {
+        checkNotNull(budget, "budget is required");
+        this.budget = budget;
+    }
+
+    /**
+     * Selects the least loaded source and counts a retrieval in flight against it. The caller must call
+     * {@link Source#release()} once the retrieval has finished.
+     *
+     * @return the source
+     */
+    synchronized Source route() {
+        Source source = select();
+        source.activeRetrievals.incrementAndGet();
+        logger.debug("routed retrieval to {}", source);
+        return source;
+    }
+
+    /**
+     * Returns a connection from the least loaded source without counting a retrieval against it if one can
+     * be leased without waiting.
+     *
+     * @return the connection or empty if the budget is exhausted
+     */
+    Optional<Connection> tryGetConnection() {
+        Source source;
+        synchronized (this) {
+            source = select();
+        }
+        return source.tryGetConnection();
+    }
+
+    private Source select() {
+        Source best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Source source : sources) {
+            if (source.isAtConnectionLimit()) {
+                continue;
+            }
+            double load = source.getLoad();
+            if (load < bestLoad) {
+                best = source;
+                bestLoad = load;
+            }
+        }
+        if (best == null) {
+            double bestUtilization = Double.MAX_VALUE;
+            for (Source source : sources) {
+                double utilization = source.getConnectionUtilization();
+                if (utilization < bestUtilization) {
+                    best = source;
+                    bestUtilization = utilization;
+                }
+            }
+        }
+        return best;
+    }
+
+    private Database lookupDatabase(Connection conn) {
+        Database result = Database.DEFAULT;
+        try {
+            DatabaseMetaData metaData = conn.getMetaData();
+            String databaseProductName = metaData.getDatabaseProductName();
+            logger.debug("databaseProductName={}", databaseProductName);
+            result = Database.getDatabaseForProductName(databaseProductName);
+            logger.debug("calculated database={}", result);
+        } catch (SQLException cause) {
+            throw new IllegalStateException("unable to retrieve database metaData", cause);
+        }
+        return result;
+    }
+
+    /**
+     * Tracks the load on one data source. Connections handed out are wrapped so closing them returns their
+     * lease and updates the count of open connections. Their statements are wrapped as well so every execution
+     * updates the smoothed query latency and, when the budget limits queries, first waits for a query slot.
+     */
+    class Source {
+
+        private final WeightedDataSource dataSource;
+        private final AtomicInteger activeRetrievals = new AtomicInteger();
+        private final AtomicInteger openConnections = new AtomicInteger();
+        private volatile Database database;
+        private long smoothedLatencyNanos = 0L;
+        private long connectionsServed = 0L;
+
+        Source(WeightedDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        DataSource getDataSource() {
+            return dataSource.getDataSource();
+        }
+
+        /**
+         * Returns the dialect of this source, looking it up using the supplied connection the first time.
+         *
+         * @param conn a connection from this source
+         * @return the dialect
+         */
+        Database getDatabase(Connection conn) {
+            Database result = database;
+            if (result == null) {
+                result = lookupDatabase(conn);
+                database = result;
+            }
+            return result;
+        }
+
+        int getActiveRetrievals() {
+            return activeRetrievals.get();
+        }
+
+        int getOpenConnections() {
+            return openConnections.get();
+        }
+
+        /**
+         * Returns the smoothed time statements executed against this source took, excluding any wait for a
+         * query slot.
+         *
+         * @return the latency or zero if no statement has executed yet
+         */
+        synchronized long getSmoothedLatencyNanos() {
+            return smoothedLatencyNanos;
+        }
+
+        synchronized long getConnectionsServed() {
+            return connectionsServed;
+        }
+
+        /**
+         * Marks a retrieval routed to this source as finished.
+         */
+        void release() {
+            activeRetrievals.decrementAndGet();
+        }
+
+        /**
+         * Opens a connection for a lease already taken from the supplied budget. The lease is returned when the
+         * connection is closed or if it cannot be opened.
+         *
+         * @param lease the budget the lease was taken from
+         * @return the connection
+         */
+        Connection getConnection(ConnectionBudget lease) {
+            openConnections.incrementAndGet();
+            try {
+                Connection connection = dataSource.getDataSource().getConnection();
+                return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                        new Class<?>[]{Connection.class}, new ConnectionHandler(connection, lease));
+            } catch (SQLException | RuntimeException cause) {
+                openConnections.decrementAndGet();
+                lease.release();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+            }
+        }
+
+        /**
+         * Opens a connection if this source is below its limit and a lease is available without waiting.
+         *
+         * @return the connection or empty
+         */
+        Optional<Connection> tryGetConnection() {
+            ConnectionBudget lease = budget;
+            if (isAtConnectionLimit() || !lease.tryLease()) {
+                return Optional.empty();
+            }
+            return Optional.of(getConnection(lease));
+        }
+
+        boolean isAtConnectionLimit() {
+            return openConnections.get() >= dataSource.getConnectionLimit();
+        }
+
+        double getConnectionUtilization() {
+            return (double) openConnections.get() / dataSource.getConnectionLimit();
+        }
+
+        double getLoad() {
+            double latency = getSmoothedLatencyNanos() + LATENCY_FLOOR_NANOS;
+            return (activeRetrievals.get() + 1) * latency / dataSource.getWeight();
+        }
+
+        private synchronized void recordClose() {
+            openConnections.decrementAndGet();
+            connectionsServed++;
+        }
+
+        private synchronized void recordQuery(long nanos) {
+            smoothedLatencyNanos = smoothedLatencyNanos == 0L ? nanos
+                    : Math.round(smoothedLatencyNanos + LATENCY_SMOOTHING * (nanos - smoothedLatencyNanos));
+        }
+
+        @Override
+        public String toString() {
+            return dataSource + "[active=" + activeRetrievals.get() + ", open=" + openConnections.get() + ']';
+        }
+
+        private class ConnectionHandler implements InvocationHandler {
+
+            private final Connection target;
+            private final ConnectionBudget lease;
+            private boolean closed = false;
+
+            ConnectionHandler(Connection target, ConnectionBudget lease) {
+                this.target = target;
+                this.lease = lease;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("close".equals(name) && method.getParameterCount() == 0) {
+                    synchronized (this) {
+                        if (!closed) {
+                            closed = true;
+                            recordClose();
+                            lease.release();
+                        }
+                    }
+                } else if ("equals".equals(name) && method.getParameterCount() == 1) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name) && method.getParameterCount() == 0) {
+                    return System.identityHashCode(proxy);
+                }
+                Object result = invokeTarget(target, method, args);
+                if (result instanceof Statement) {
+                    Class<?> type = method.getReturnType();
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{type},
+                            new StatementHandler(result, (Connection) proxy, lease, Source.this));
+                }
+                return result;
+            }
+
+        }
+
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+
+        private final Object target;
+        private final Connection connection;
+        private final ConnectionBudget lease;
+        private final Source source;
+
+        StatementHandler(Object target, Connection connection, ConnectionBudget lease, Source source) {
+            this.target = target;
+            this.connection = connection;
+            this.lease = lease;
+            this.source = source;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getConnection".equals(name) && method.getParameterCount() == 0) {
+                return connection;
+            } else if ("equals".equals(name) && method.getParameterCount() == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && method.getParameterCount() == 0) {
+                return System.identityHashCode(proxy);
+            } else if (!name.startsWith("execute")) {
+                return invokeTarget(target, method, args);
+            }
+            try {
+                lease.acquireQuery();
+            } catch (InterruptedException cause) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting to execute query", cause);
+            }
+            try {
+                long started = System.nanoTime();
+                Object result = invokeTarget(target, method, args);
+                source.recordQuery(System.nanoTime() - started);
+                return result;
+            } finally {
+                lease.releaseQuery();
+            }
+        }
+
+    }
+
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException cause) {
+            throw cause.getCause();
+        }
+    }
+
+}
@@ -27,23 +27,40 @@ import static org.codekaizen.test.db.paramin.Preconditions.*;
  */
 public enum Database {
 
-    DB2("^DB2", " FETCH FIRST %1$d ROWS ONLY"),
-    DEFAULT("Not Available", " LIMIT %1$d"),
-    DERBY("^Apache Derby", " FETCH FIRST %1$d ROWS ONLY"),
-    H2("^H2", " LIMIT %1$d"),
-    HSQL("^HSQL", " LIMIT %1$d"),
-    MYSQL("^(MySQL|MariaDB)", " LIMIT %1$d"),
-    ORACLE("^Oracle", " %2$s ROWNUM<=%1$d"),
-    POSTGRESQL("^(PostgreSQL|EnterpriseDB)", " LIMIT %1$d"),
-    SQL_SERVER("^Microsoft SQL Server", " TOP %1$d"),
-    SYBASE("^(Sybase SQL Server|Adaptive Server)", "");
+    DB2("^DB2", " FETCH FIRST %1$d ROWS ONLY", "%1$s %2$s TABLESAMPLE SYSTEM (%3$s)", "RAND()",
+            "MOD(ABS(%1$s), %2$d) = %3$d", ""),
+    DEFAULT("Not Available", " LIMIT %1$d", "", "RAND()", "MOD(ABS(%1$s), %2$d) = %3$d", ""),
+    DERBY("^Apache Derby", " FETCH FIRST %1$d ROWS ONLY", "", "RANDOM()", "MOD(ABS(%1$s), %2$d) = %3$d", ""),
+    H2("^H2", " LIMIT %1$d", "", "RAND()", "MOD(ABS(%1$s), %2$d) = %3$d", ""),
+    HSQL("^HSQL", " LIMIT %1$d", "", "RAND()", "MOD(ABS(%1$s), %2$d) = %3$d", ""),
+    MYSQL("^(MySQL|MariaDB)", " LIMIT %1$d", "", "RAND()", "MOD(ABS(%1$s), %2$d) = %3$d",
+            "MOD(CRC32(%1$s), %2$d) = %3$d"),
+    ORACLE("^Oracle", " %2$s ROWNUM<=%1$d", "%1$s SAMPLE (%3$s) %2$s", "DBMS_RANDOM.VALUE",
+            "ORA_HASH(%1$s, %4$d) = %3$d", "ORA_HASH(%1$s, %4$d) = %3$d"),
+    POSTGRESQL("^(PostgreSQL|EnterpriseDB)", " LIMIT %1$d", "%1$s %2$s TABLESAMPLE SYSTEM (%3$s)", "RANDOM()",
+            "MOD(ABS(%1$s), %2$d) = %3$d", "MOD(ABS(CAST(hashtext(CAST(%1$s AS TEXT)) AS BIGINT)), %2$d) = %3$d"),
+    SQL_SERVER("^Microsoft SQL Server", " TOP %1$d", "%1$s %2$s TABLESAMPLE SYSTEM (%3$s PERCENT)", "NEWID()",
+            "ABS(%1$s) %% %2$d = %3$d", "ABS(CHECKSUM(%1$s) %% %2$d) = %3$d"),
+    SYBASE("^(Sybase SQL Server|Adaptive Server)", " TOP %1$d", "", "NEWID()", "ABS(%1$s) %% %2$d = %3$d", "");
+
+    private static final String SELECT = "SELECT ";
+    private static final String SELECT_DISTINCT = "SELECT DISTINCT ";
 
     private final Pattern databaseProductName;
     private final String limitClause;
+    private final String tableSampleClause;
+    private final String randomFunction;
+    private final String hashPartitionClause;
+    private final String anyTypeHashPartitionClause;
 
-    private Database(String databaseProductName, String limitClause) {
+    private Database(String databaseProductName, String limitClause, String tableSampleClause,
+                     String randomFunction, String hashPartitionClause, String anyTypeHashPartitionClause) {
         this.databaseProductName = Pattern.compile(databaseProductName);
         this.limitClause = limitClause;
+        this.tableSampleClause = tableSampleClause;
+        this.randomFunction = randomFunction;
+        this.hashPartitionClause = hashPartitionClause;
+        this.anyTypeHashPartitionClause = anyTypeHashPartitionClause;
     }
 
     public Pattern getDatabaseProductName() {
@@ -54,6 +71,93 @@ public enum Database {
         return limitClause;
     }
 
+    /**
+     * Returns the format string for a sampled table reference. The arguments are the table name, the table alias
+     * and the sample percentage.
+     *
+     * @return the format string or empty if the dialect does not support block sampling
+     */
+    public String getTableSampleClause() {
+        return tableSampleClause;
+    }
+
+    /**
+     * Returns whether the dialect supports sampling a percentage of a table's storage blocks.
+     *
+     * @return supported or not
+     */
+    public boolean isSupportingTableSample() {
+        return !tableSampleClause.isEmpty();
+    }
+
+    /**
+     * Returns the function which generates a random value for each row in an {@code ORDER BY} clause.
+     *
+     * @return the SQL function call
+     */
+    public String getRandomFunction() {
+        return randomFunction;
+    }
+
+    /**
+     * Returns the format string for the predicate selecting the rows in one hash partition. The arguments are
+     * the column, the partition count, the zero-based partition number and the highest partition number.
+     *
+     * @return the format string
+     */
+    public String getHashPartitionClause() {
+        return hashPartitionClause;
+    }
+
+    /**
+     * Returns the format string for the predicate selecting the rows in one hash partition using the dialect's
+     * own hash function so that columns of any type, such as strings, can be partitioned. The arguments are the
+     * same as for {@link #getHashPartitionClause()}.
+     *
+     * @return the format string or empty if the dialect can only partition numeric columns
+     */
+    public String getAnyTypeHashPartitionClause() {
+        return anyTypeHashPartitionClause;
+    }
+
+    /**
+     * Returns whether the dialect has a hash function which accepts columns of any type.
+     *
+     * @return supported or not
+     */
+    public boolean isSupportingAnyTypeHashPartition() {
+        return !anyTypeHashPartitionClause.isEmpty();
+    }
+
+    /**
+     * Restricts the number of rows returned by the supplied SQL query using the dialect's limit clause. A
+     * {@code TOP} clause is placed after the query's leading {@code SELECT} or {@code SELECT DISTINCT} while
+     * every other clause is appended.
+     *
+     * @param sql      the query
+     * @param rowCount the maximum number of rows
+     * @return the restricted query
+     */
+    public String appendLimitClause(String sql, int rowCount) {
+        checkNotNull(sql, "sql is required");
+        if (limitClause.startsWith(" TOP ")) {
+            String select = sql.startsWith(SELECT_DISTINCT) ? SELECT_DISTINCT : SELECT;
+            checkArgument(sql.startsWith(select), "sql must be a SELECT statement");
+            return select + String.format(limitClause, rowCount).trim() + " " + sql.substring(select.length());
+        }
+        String restricted = sql;
+        String connective = sql.contains(" WHERE ") ? "AND" : "WHERE";
+        if (limitClause.contains("%2$s") && sql.contains(" ORDER BY ")) {
+            // a row number predicate would be evaluated before the ordering
+            restricted = "SELECT * FROM (" + sql + ") r";
+            connective = "WHERE";
+        }
+        Object[] args = new Object[2];
+        args[0] = rowCount;
+        args[1] = connective;
+        return restricted + String.format(limitClause, args);
+    }
+
     /**
      * Returns the correct database enum value for the supplied string outputted from the JDBC DatabaseMetaData
      * databaseProductName property.
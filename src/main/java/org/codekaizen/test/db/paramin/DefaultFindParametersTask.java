@@ -15,14 +15,22 @@
  */
 package org.codekaizen.test.db.paramin;
 
+import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
 import static org.codekaizen.test.db.paramin.Preconditions.checkNotEmpty;
@@ -33,26 +41,36 @@ import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
  *
  * @author kbrockhoff
  */
-public class DefaultFindParametersTask implements FindParametersTask {
+public class DefaultFindParametersTask implements FindParametersTask, BatchSubscriber {
 
-    private static final int TRYS_MULTIPLE = 4;
-    private static final int RECS_MULTIPLE = 16;
-    private static final int MIN_RECS = 10;
+    private static final int RESERVOIR_MULTIPLE = 4;
+    private static final int MAX_REQUEST = TupleBatcher.DEFAULT_MAX_BATCH;
 
     private final Logger logger = LoggerFactory.getLogger(DefaultFindParametersTask.class);
     private final String componentId;
     private final ParamSpecs paramSpecs;
     private final Set<Tuple> results;
-    private final Semaphore semaphore;
+    private final CompletableFuture<Set<Tuple>> resultFuture;
+    private final CompletableFuture<FindParametersResult> statisticsFuture;
+    private final PipelineMetrics statistics = new PipelineMetrics();
+    private final QueryDeadline deadline;
     private Database database = Database.DEFAULT;
     private Connection connection;
     private EventBus eventBus;
-    private LinkedList<SqlQueryProcessor> processors = new LinkedList<>();
+    private ExecutionContext executionContext;
+    private volatile LinkedList<QueryStage> processors = new LinkedList<>();
     private boolean initialized = false;
-    private int totalRequests = 0;
+    private final AdaptiveBudget budget;
     private Subscription subscription;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
     private Throwable onErrorCause;
+    private Subscriber<? super Tuple> downstream;
+    private long downstreamDemand = 0L;
+    private boolean downstreamCancelled = false;
+    private long requestOutstanding = 0L;
+    private ScheduledFuture<?> expiry;
+    private volatile long startedNanos = 0L;
+    private Object taskEvent;
 
     /**
      * Constructs a retriever.
@@ -64,7 +82,20 @@ public class DefaultFindParametersTask implements FindParametersTask {
         this.componentId = UUID.randomUUID().toString();
         this.paramSpecs = paramSpecs;
         this.results = new LinkedHashSet<>(paramSpecs.getDesiredTuplesSetSize());
-        this.semaphore = new Semaphore(1);
+        this.resultFuture = new CompletableFuture<>();
+        this.statisticsFuture = new CompletableFuture<>();
+        this.budget = new AdaptiveBudget(paramSpecs.getDesiredTuplesSetSize());
+        this.deadline = new QueryDeadline(paramSpecs.getQueryTimeout(), paramSpecs.getTimeBudget().orElse(null));
+        this.resultFuture.whenComplete((r, t) -> {
+            if (t instanceof CancellationException) {
+                cancelFlow(TerminationReason.CANCELLED);
+            }
+        });
+        this.statisticsFuture.whenComplete((r, t) -> {
+            if (t instanceof CancellationException) {
+                resultFuture.cancel(true);
+            }
+        });
     }
 
     @Override
@@ -83,6 +114,31 @@ public class DefaultFindParametersTask implements FindParametersTask {
         this.database = database;
     }
 
+    /**
+     * Sets the executor-wide resources used to run independent branches in parallel. Without them all
+     * branches are queried serially on the connection supplied at initialization.
+     *
+     * @param executionContext the resources
+     */
+    void setExecutionContext(ExecutionContext executionContext) {
+        checkNotNull(executionContext, "executionContext cannot be null");
+        this.executionContext = executionContext;
+    }
+
+    /**
+     * Attaches a subscriber which is passed each distinct tuple as soon as it is discovered. Upstream requests
+     * are then only issued while the subscriber has outstanding demand. The subscriber is signalled
+     * {@code onSubscribe} immediately.
+     *
+     * @param subscriber the downstream subscriber
+     */
+    void setDownstream(Subscriber<? super Tuple> subscriber) {
+        checkNotNull(subscriber, "reactive streams rule 1.9 requires a non-null subscriber");
+        checkArgument(downstream == null, "only a single downstream subscriber is supported");
+        this.downstream = subscriber;
+        subscriber.onSubscribe(new DownstreamSubscription());
+    }
+
     @Override
     public void initialize(Connection connection, EventBus eventBus) throws IllegalStateException {
         logger.trace("initialize({})", connection);
@@ -103,39 +159,78 @@ public class DefaultFindParametersTask implements FindParametersTask {
             subscription.cancel();
             return;
         }
-        this.subscription = subscription;
-        doRequest();
+        synchronized (this) {
+            this.subscription = subscription;
+            requestIfDemanded();
+        }
     }
 
     @Override
     public void onNext(Tuple item) {
         logger.trace("onNext({})", item);
         checkNotNull(item, "reactive streams rule 2.13 requires throwing of null pointer");
-        results.add(item);
-        logger.debug("added {} resulting in results.size={}", item, results.size());
-        if (results.size() >= paramSpecs.getDesiredTuplesSetSize()) {
-            subscription.cancel();
-            cleanupFlow();
-        } else if (totalRequests > paramSpecs.getDesiredTuplesSetSize() * TRYS_MULTIPLE) {
-            subscription.cancel();
-            logger.warn("only able to retrieve results.size={} before exhausting the possiblities", results.size());
-        } else {
-            doRequest();
+        onNextBatch(Collections.singletonList(item));
+    }
+
+    /**
+     * Adds each of the tuples to the results in turn, stopping as soon as the retrieval is finished, and then
+     * issues a single request upstream for the next batch once every requested tuple has arrived.
+     *
+     * @param items the tuples in the order they were emitted
+     */
+    @Override
+    public synchronized void onNextBatch(List<Tuple> items) {
+        logger.trace("onNextBatch({})", items.size());
+        requestOutstanding = Math.max(0L, requestOutstanding - items.size());
+        for (Tuple item : items) {
+            checkNotNull(item, "reactive streams rule 2.13 requires throwing of null pointer");
+            if (cancelled) {
+                return;
+            }
+            boolean added = results.add(item);
+            budget.recordResult(added);
+            budget.recordAttempt(added);
+            logger.debug("added {} resulting in results.size={}", item, results.size());
+            if (added && downstream != null) {
+                downstreamDemand--;
+                downstream.onNext(item);
+            }
+            if (cancelled) {
+                return;
+            } else if (deadline.isExpired()) {
+                expireDeadline();
+                return;
+            } else if (results.size() >= paramSpecs.getDesiredTuplesSetSize()) {
+                subscription.cancel();
+                cleanupFlow(TerminationReason.DESIRED_SIZE_REACHED);
+                return;
+            } else if (budget.isExhausted()) {
+                subscription.cancel();
+                logger.warn("only able to retrieve results.size={} before exhausting the possiblities with {}",
+                        results.size(), budget);
+                cleanupFlow(TerminationReason.BUDGET_EXHAUSTED);
+                return;
+            }
         }
+        requestIfDemanded();
     }
 
     @Override
-    public void onError(Throwable throwable) {
+    public synchronized void onError(Throwable throwable) {
         logger.trace("onError({})", throwable);
+        if (deadline.isExpired()) {
+            expireDeadline();
+            return;
+        }
         logger.info("retrieval failed: {}", throwable.getMessage());
         onErrorCause = throwable;
-        cleanupFlow();
+        cleanupFlow(TerminationReason.FAILED);
     }
 
     @Override
-    public void onComplete() {
+    public synchronized void onComplete() {
         logger.trace("onComplete()");
-        cleanupFlow();
+        cleanupFlow(TerminationReason.SOURCE_EXHAUSTED);
     }
 
     @Override
@@ -145,28 +240,107 @@ public class DefaultFindParametersTask implements FindParametersTask {
             logger.info("subscription already cancelled so returning existing results");
             return results;
         }
-        initiateProcessorsAndSubscriptionsIfNeeded();
-        checkArgument(initialized, "retriever must be initialized before call");
-        semaphore.acquire();
-        checkIfDesiredSizeMet();
-        logger.trace("returning results");
+        start();
         try {
-            if (onErrorCause == null) {
-                return results;
+            return resultFuture.get();
+        } catch (InterruptedException interrupted) {
+            cancelFlow(TerminationReason.CANCELLED);
+            throw interrupted;
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             } else {
-                if (onErrorCause instanceof Error) {
-                    throw (Error) onErrorCause;
-                } else if (onErrorCause instanceof RuntimeException) {
-                    throw (RuntimeException) onErrorCause;
-                } else {
-                    throw new IllegalStateException(onErrorCause);
-                }
+                throw new IllegalStateException(cause);
             }
-        } finally {
-            semaphore.release();
         }
     }
 
+    /**
+     * Configures the processing flow and starts requesting tuples without waiting for the retrieval to finish.
+     * Any failure to configure the flow completes the result future exceptionally.
+     *
+     * @return the future which the terminal event of the flow completes
+     */
+    synchronized CompletableFuture<Set<Tuple>> start() {
+        logger.trace("start()");
+        startedNanos = System.nanoTime();
+        taskEvent = FlightEvents.TASK.begin();
+        if (cancelled) {
+            close();
+            return resultFuture;
+        }
+        if (deadline.isExpired()) {
+            expireDeadline();
+            return resultFuture;
+        }
+        try {
+            initiateProcessorsAndSubscriptionsIfNeeded();
+        } catch (RuntimeException cause) {
+            if (deadline.isExpired()) {
+                expireDeadline();
+                return resultFuture;
+            }
+            logger.info("unable to start retrieval: {}", cause.getMessage());
+            onErrorCause = cause;
+            cleanupFlow(TerminationReason.FAILED);
+        }
+        if (deadline.isBudgeted() && executionContext != null && !cancelled) {
+            expiry = executionContext.getScheduler().schedule(this::expireDeadline, deadline.getRemainingNanos(),
+                    TimeUnit.NANOSECONDS);
+        }
+        return resultFuture;
+    }
+
+    /**
+     * Returns the future which is completed with the results once the flow terminates.
+     *
+     * @return the result future
+     */
+    CompletableFuture<Set<Tuple>> getResultFuture() {
+        return resultFuture;
+    }
+
+    /**
+     * Returns the future which is completed with the results, why the flow stopped and the measurements of its
+     * stages once the flow terminates. It completes normally even when the flow fails, while cancelling it
+     * cancels the retrieval.
+     *
+     * @return the statistics future
+     */
+    CompletableFuture<FindParametersResult> getStatisticsFuture() {
+        return statisticsFuture;
+    }
+
+    /**
+     * Describes the retrieval for diagnostics. State is read without the task's monitor so a task stuck while
+     * holding it can still be described, which means the figures may be slightly stale.
+     *
+     * @return the description
+     */
+    String describeFlow() {
+        List<QueryStage> stages = new ArrayList<>(processors);
+        long started = startedNanos;
+        long elapsed = started == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        return componentId + " running " + elapsed + "ms with results.size=" + results.size() + " of "
+                + paramSpecs.getDesiredTuplesSetSize() + (cancelled ? " cancelled" : "") + " stages=" + stages
+                + " for " + paramSpecs;
+    }
+
+    /**
+     * Cancels the statements the stages are executing directly, without the task's monitor, and then cancels
+     * the task itself. Releases a task whose thread is blocked in a query while holding its monitor.
+     *
+     * @return true if this call cancelled the task
+     */
+    boolean forceCancel() {
+        logger.info("forcibly cancelling {}", this);
+        new ArrayList<>(processors).forEach(QueryStage::abort);
+        return resultFuture.cancel(true);
+    }
+
     @Override
     public void close() {
         logger.trace("close()");
@@ -187,66 +361,298 @@ public class DefaultFindParametersTask implements FindParametersTask {
             processors = configureProcessingFlow(paramSpecs);
             processors.getLast().subscribe(this);
             initialized = true;
-            try {
-                semaphore.acquire();
-            } catch (InterruptedException interrupted) {
-                notify();
-                throw new IllegalStateException(interrupted);
-            }
         }
     }
 
-    private LinkedList<SqlQueryProcessor> configureProcessingFlow(ParamSpecs specs) {
-        LinkedList<SqlQueryProcessor> processors = new LinkedList<>();
+    private LinkedList<QueryStage> configureProcessingFlow(ParamSpecs specs) {
+        LinkedList<QueryStage> processors = new LinkedList<>();
         try {
-            SqlQueryProcessor previous = null;
+            QueryStage previous = null;
             Connection conn = getConnection();
-            for (ParamSpec spec : specs.getParamSpecs()) {
-                String sql = specs.getSqlStatement(spec);
+            List<ParamSpec<?>> specList = specs.getParamSpecs();
+            int forkIndex = findForkIndex(specs, specList.size());
+            for (int i = 0; i <= forkIndex; i++) {
+                ParamSpec<?> spec = specList.get(i);
+                if (previous == null && specs.getPartitionCount() > 1 && executionContext != null
+                        && specs.getSamplingMode() != SamplingMode.RESERVOIR) {
+                    previous = configurePartitionedScan(specs, spec);
+                    if (previous != null) {
+                        recordMetrics(previous, spec);
+                        processors.add(previous);
+                        continue;
+                    }
+                }
+                if (previous == null && isSharingInitialScan(specs)) {
+                    previous = configureSharedScan(specs, spec);
+                    if (previous != null) {
+                        recordMetrics(previous, spec);
+                        processors.add(previous);
+                        continue;
+                    }
+                }
+                boolean sampling = previous == null && specs.getSamplingMode() == SamplingMode.RESERVOIR;
+                String sql;
                 if (previous == null) {
-                    sql = addRowsReturnedLimit(specs, sql);
+                    sql = specs.getInitialSqlStatement(database,
+                            sampling ? specs.getMaxRowsScanned() : calculateRowsReturnedLimit(specs));
                     logger.debug("restricted row count query: {}", sql);
+                } else {
+                    sql = specs.getSqlStatement(spec);
+                }
+                PreparedStatement stmt =
+                        conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                SqlQueryProcessor<?> proc = newQueryProcessor(specs, spec, stmt, sampling);
+                proc.identifySql(sql);
+                proc.applyDeadline(deadline);
+                if (previous != null && executionContext != null) {
+                    if (executionContext.getNegativeCache() != null) {
+                        proc.useNegativeCache(executionContext.getNegativeCache(), executionContext.getSource(), sql);
+                    }
+                    if (executionContext.getHedger() != null) {
+                        proc.hedgeUsing(executionContext.getHedger(), sql,
+                                () -> executionContext.tryGetLeastLoadedConnection().orElse(null));
+                    }
                 }
-                SqlQueryProcessor proc = new SqlQueryProcessor(spec, specs.getDesiredTuplesSetSize(),
-                        conn.prepareStatement(sql), eventBus);
+                if (previous == null && !sampling) {
+                    proc.resizeLimitUsing(limit -> specs.getInitialSqlStatement(database, limit),
+                            calculateRowsReturnedLimit(specs));
+                }
+                recordMetrics(proc, spec);
                 processors.add(proc);
                 if (previous != null) {
                     previous.subscribe(proc);
                 }
                 previous = proc;
             }
+            if (forkIndex < specList.size() - 1) {
+                QueryStage proc = configureBranches(specs, specList, forkIndex);
+                processors.add(proc);
+                previous.subscribe(proc);
+            }
         } catch (SQLException cause) {
+            this.processors = processors;
             close();
             throw new IllegalStateException(cause);
         }
         return processors;
     }
 
-    private String addRowsReturnedLimit(ParamSpecs specs, String sql) {
-        StringBuilder builder = new StringBuilder(sql);
-        int rowCount = specs.getDesiredTuplesSetSize() * RECS_MULTIPLE;
-        rowCount = rowCount < MIN_RECS ? MIN_RECS : rowCount;
-        Object[] args = new Object[2];
-        args[0] = rowCount;
-        args[1] = sql.contains(" WHERE ") ? "AND" : "WHERE";
-        Formatter formatter = new Formatter(builder);
-        formatter.format(database.getLimitClause(), args);
-        return builder.toString();
+    private void recordMetrics(QueryStage stage, ParamSpec<?> spec) {
+        stage.recordMetricsTo(stageRecorder(spec));
+    }
+
+    private PipelineMetrics.StageRecorder stageRecorder(ParamSpec<?> spec) {
+        return statistics.forStage(spec,
+                executionContext == null ? null : executionContext.getMetrics().forStage(spec));
+    }
+
+    private <T extends Comparable<? super T>> SqlQueryProcessor<T> newQueryProcessor(
+            ParamSpecs specs, ParamSpec<T> spec, PreparedStatement stmt, boolean sampling) {
+        SqlQueryProcessor<T> proc = new SqlQueryProcessor<>(spec, specs.getDesiredTuplesSetSize(), stmt, eventBus);
+        if (sampling) {
+            Random random = specs.getRandomSeed().map(Random::new).orElseGet(Random::new);
+            proc.sampleUsingReservoir(new ReservoirSampler<>(
+                    specs.getDesiredTuplesSetSize() * RESERVOIR_MULTIPLE, random), specs.getMaxRowsScanned());
+        }
+        return proc;
+    }
+
+    private <T extends Comparable<? super T>> QueryStage configurePartitionedScan(ParamSpecs specs,
+                                                                                  ParamSpec<T> spec)
+            throws SQLException {
+        long min = 0L;
+        long max = 0L;
+        if (specs.getPartitionStrategy() == PartitionStrategy.RANGE) {
+            try (PreparedStatement stmt = getConnection().prepareStatement(specs.getPartitionBoundsSqlStatement())) {
+                deadline.applyTo(stmt);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        min = rs.getLong(1);
+                        max = rs.getLong(2);
+                    }
+                }
+            }
+        }
+        List<PartitionedScanProcessor.Partition> partitions = new ArrayList<>();
+        int partitionCount = specs.getPartitionCount();
+        int partitionRows = (calculateRowsReturnedLimit(specs) + partitionCount - 1) / partitionCount;
+        long low = min;
+        long high = max;
+        try {
+            for (int i = 0; i < partitionCount; i++) {
+                int partition = i;
+                IntFunction<String> sqlForLimit = limit -> specs.getPartitionedInitialSqlStatement(database, limit,
+                        low, high, partition);
+                Optional<Connection> leased = executionContext.tryGetConnection();
+                if (!leased.isPresent()) {
+                    logger.info("connection budget exhausted so scanning {} without partitions", spec);
+                    partitions.forEach(this::closeQuietly);
+                    return null;
+                }
+                Connection partitionConnection = leased.get();
+                try {
+                    partitions.add(new PartitionedScanProcessor.Partition(partitionConnection, sqlForLimit,
+                            partitionRows, deadline));
+                } catch (SQLException cause) {
+                    closeQuietly(partitionConnection);
+                    throw cause;
+                }
+            }
+        } catch (SQLException | RuntimeException cause) {
+            partitions.forEach(this::closeQuietly);
+            throw cause;
+        }
+        int bufferCapacity = Math.max(specs.getDesiredTuplesSetSize(), AdaptiveBudget.MIN_LIMIT);
+        return new PartitionedScanProcessor<>(spec, partitions, specs.getDesiredTuplesSetSize(), bufferCapacity,
+                executionContext.getStageExecutor(), eventBus);
+    }
+
+    private boolean isSharingInitialScan(ParamSpecs specs) {
+        SamplingMode mode = specs.getSamplingMode();
+        return executionContext != null && executionContext.isSharingInitialScans()
+                && (mode == SamplingMode.NONE || mode == SamplingMode.DISTINCT)
+                && specs.getPartitionCount() == 1 && specs.getQueryTimeout() == 0 && !deadline.isBudgeted();
+    }
+
+    private <T extends Comparable<? super T>> QueryStage configureSharedScan(ParamSpecs specs, ParamSpec<T> spec) {
+        // the plan is identified by the query with a fixed limit since the scan sizes its own limit
+        String key = spec.getJavaType().getName() + ':' + specs.getInitialSqlStatement(database, 1);
+        Optional<SharedScan<T>> scan = executionContext.getSharedScans().attach(key, spec,
+                limit -> specs.getInitialSqlStatement(database, limit), calculateRowsReturnedLimit(specs),
+                executionContext::tryGetConnection);
+        return scan.map(s -> new SharedScanProcessor<>(spec, specs.getDesiredTuplesSetSize(), s, eventBus))
+                .orElse(null);
+    }
+
+    private int findForkIndex(ParamSpecs specs, int size) {
+        for (int i = 0; i < size - 1; i++) {
+            int children = 0;
+            for (int j = i + 1; j < size; j++) {
+                if (specs.getParentIndex(j) == i) {
+                    children++;
+                }
+            }
+            if (children != 1 || specs.getParentIndex(i + 1) != i) {
+                return i;
+            }
+        }
+        return size - 1;
+    }
+
+    private QueryStage configureBranches(ParamSpecs specs, List<ParamSpec<?>> specList, int forkIndex)
+            throws SQLException {
+        Map<Integer, BranchingQueryProcessor.Branch> branches = new LinkedHashMap<>();
+        boolean parallel = executionContext != null;
+        try {
+            for (int i = forkIndex + 1; i < specList.size(); i++) {
+                int branchRoot = i;
+                while (specs.getParentIndex(branchRoot) != forkIndex) {
+                    branchRoot = specs.getParentIndex(branchRoot);
+                }
+                BranchingQueryProcessor.Branch branch = branches.get(branchRoot);
+                if (branch == null) {
+                    Optional<Connection> leased = parallel ? executionContext.tryGetConnection() : Optional.empty();
+                    if (parallel && !leased.isPresent()) {
+                        logger.info("connection budget exhausted so querying branches serially");
+                        parallel = false;
+                    }
+                    branch = leased.isPresent()
+                            ? new BranchingQueryProcessor.Branch(leased.get(), true, deadline)
+                            : new BranchingQueryProcessor.Branch(getConnection(), false, deadline);
+                    branches.put(branchRoot, branch);
+                }
+                ParamSpec<?> spec = specList.get(i);
+                branch.addSpec(i, spec, specs.getSqlStatement(spec), specs.getBindingIndexes(i), stageRecorder(spec));
+            }
+        } catch (SQLException | RuntimeException cause) {
+            branches.values().forEach(this::closeQuietly);
+            throw cause;
+        }
+        List<String> names = new ArrayList<>();
+        specList.forEach(spec -> names.add(spec.getColumn()));
+        return new BranchingQueryProcessor(names, new ArrayList<>(branches.values()),
+                specs.getDesiredTuplesSetSize(), parallel ? executionContext.getStageExecutor() : null, eventBus);
+    }
+
+    private int calculateRowsReturnedLimit(ParamSpecs specs) {
+        return AdaptiveBudget.initialLimit(specs.getDesiredTuplesSetSize());
     }
 
     private Connection getConnection() {
         return connection;
     }
 
-    private void doRequest() {
-        totalRequests++;
-        subscription.request(1L);
+    private void requestIfDemanded() {
+        if (subscription == null || cancelled || requestOutstanding > 0L) {
+            return;
+        }
+        long wanted = Math.min(MAX_REQUEST, paramSpecs.getDesiredTuplesSetSize() - results.size());
+        if (downstream != null) {
+            wanted = Math.min(wanted, downstreamDemand);
+        }
+        if (wanted > 0L) {
+            doRequest(wanted);
+        }
+    }
+
+    private void doRequest(long wanted) {
+        requestOutstanding = wanted;
+        subscription.request(wanted);
     }
 
-    private void cleanupFlow() {
+    private synchronized void expireDeadline() {
+        if (cancelled) {
+            return;
+        }
+        logger.info("time budget expired with results.size={} for {}", results.size(), paramSpecs);
+        cancelFlow(TerminationReason.DEADLINE_EXPIRED);
+    }
+
+    private synchronized void cancelFlow(TerminationReason reason) {
+        if (cancelled) {
+            return;
+        }
+        logger.debug("cancelling in-flight queries for {}", paramSpecs);
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        processors.forEach(QueryStage::abort);
+        cleanupFlow(reason);
+    }
+
+    private synchronized void cleanupFlow(TerminationReason reason) {
+        if (cancelled) {
+            return;
+        }
         cancelled = true;
-        semaphore.release();
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
         close();
+        if (onErrorCause == null) {
+            checkIfDesiredSizeMet();
+        }
+        logger.trace("completing results");
+        if (onErrorCause == null) {
+            resultFuture.complete(results);
+        } else {
+            resultFuture.completeExceptionally(onErrorCause);
+        }
+        long started = startedNanos;
+        statisticsFuture.complete(new FindParametersResult(new LinkedHashSet<>(results), reason, onErrorCause,
+                started == 0L ? 0L : System.nanoTime() - started, statistics.stageSnapshots()));
+        if (taskEvent != null) {
+            FlightEvents.TASK.commit(taskEvent, componentId, paramSpecs.toString(),
+                    paramSpecs.getDesiredTuplesSetSize(), results.size(),
+                    reason.name());
+        }
+        if (downstream != null && !downstreamCancelled) {
+            if (onErrorCause == null) {
+                downstream.onComplete();
+            } else {
+                downstream.onError(onErrorCause);
+            }
+        }
     }
 
     private void closeQuietly(AutoCloseable closeable) {
@@ -267,4 +673,38 @@ public class DefaultFindParametersTask implements FindParametersTask {
         }
     }
 
+    /**
+     * Tracks the demand signalled by the downstream subscriber.
+     */
+    private class DownstreamSubscription implements Subscription {
+
+        @Override
+        public void request(long n) {
+            logger.trace("request({})", n);
+            synchronized (DefaultFindParametersTask.this) {
+                if (downstreamCancelled) {
+                    return;
+                }
+                if (n <= 0L) {
+                    downstreamCancelled = true;
+                    downstream.onError(new IllegalArgumentException("reactive streams rule 3.9 requires positive n"));
+                    cancelFlow(TerminationReason.CANCELLED);
+                    return;
+                }
+                downstreamDemand = downstreamDemand + n < 0L ? Long.MAX_VALUE : downstreamDemand + n;
+                requestIfDemanded();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            logger.trace("cancel()");
+            synchronized (DefaultFindParametersTask.this) {
+                downstreamCancelled = true;
+                cancelFlow(TerminationReason.CANCELLED);
+            }
+        }
+
+    }
+
 }
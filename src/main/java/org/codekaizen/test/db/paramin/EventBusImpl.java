@@ -21,53 +21,173 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.EventObject;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
 
 /**
- * Internal implementation of {@code EventBus}.
+ * Internal implementation of {@code EventBus}. Each subscription is an edge between one publisher and one
+ * subscriber with its own mailbox holding the signals in both directions. Publishing appends to the edge's
+ * mailbox and, if the edge is idle, schedules it on the bus thread, which services ready edges in the order they
+ * became ready, delivering a bounded burst from each by direct calls before moving to the next. Signals on one
+ * edge are delivered in the order published.
+ *
+ * <p>Tuples are admitted against an overall capacity and a per-edge limit so one chatty flow cannot crowd out
+ * the rest, with the configured {@link OverflowPolicy} applied to publishers once either is reached. A held
+ * publisher waits until room appears or its edge closes because the flow was cancelled or ran out of time. All
+ * other signals are always admitted.</p>
  *
  * @author kbrockhoff
  */
 class EventBusImpl implements EventBus, Runnable {
 
+    static final int UNLIMITED = Integer.MAX_VALUE;
     private static final long POLL_PAUSE = 50L;
+    private static final int MAX_BURST = 16;
+    private static final int MAX_SPINS = 64;
+    private static final long PARK_PAUSE = TimeUnit.MICROSECONDS.toNanos(100L);
 
     private final Logger logger = LoggerFactory.getLogger(EventBusImpl.class);
     private final AtomicBoolean cancelled = new AtomicBoolean();
-    private final Queue<EventObject> eventQueue = new LinkedBlockingQueue<>();
-    private final Map<String, String> pub2subMap = new HashMap<>();
-    private final Map<String, String> sub2pubMap = new HashMap<>();
-    private final Map<String, Component> componentMap = new HashMap<>();
+    private final Queue<Edge> readyEdges = new ConcurrentLinkedQueue<>();
+    private final Map<String, Edge> edgesByPublisher = new ConcurrentHashMap<>();
+    private final Map<String, Edge> edgesBySubscriber = new ConcurrentHashMap<>();
+    private final Map<String, Component> componentMap = new ConcurrentHashMap<>();
+    private final Set<String> failedSenders = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger queuedTuples = new AtomicInteger();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final AtomicLong delayedPublishes = new AtomicLong();
+    private final AtomicLong rejectedPublishes = new AtomicLong();
+    private final Object admissionMonitor = new Object();
+    private volatile int waitingPublishers = 0;
+    private volatile int capacity = UNLIMITED;
+    private volatile int perSenderLimit = UNLIMITED;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile Thread busThread;
+    private volatile boolean idle = false;
+    private volatile PipelineMetrics metrics;
 
     EventBusImpl() {
 
     }
 
+    /**
+     * Bounds the tuple events held in the queue.
+     *
+     * @param capacity       the maximum tuple events queued across all stages
+     * @param perSenderLimit the maximum tuple events queued on any one edge
+     * @param overflowPolicy what a publisher does when either limit is reached
+     */
+    void setLimits(int capacity, int perSenderLimit, OverflowPolicy overflowPolicy) {
+        checkArgument(capacity > 0, "capacity must be greater than zero");
+        checkArgument(perSenderLimit > 0, "perSenderLimit must be greater than zero");
+        checkNotNull(overflowPolicy, "overflowPolicy is required");
+        this.capacity = capacity;
+        this.perSenderLimit = perSenderLimit;
+        this.overflowPolicy = overflowPolicy;
+        signalRoomAvailable();
+    }
+
+    /**
+     * Returns the number of tuple events currently queued.
+     *
+     * @return the count
+     */
+    int getQueued() {
+        return queuedTuples.get();
+    }
+
+    /**
+     * Returns the number of components currently registered.
+     *
+     * @return the count
+     */
+    int getRegisteredComponents() {
+        return componentMap.size();
+    }
+
+    /**
+     * Returns the most tuple events ever queued at once.
+     *
+     * @return the high water mark
+     */
+    int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /**
+     * Returns the number of tuple events whose publisher had to wait for room.
+     *
+     * @return the count
+     */
+    long getDelayedPublishes() {
+        return delayedPublishes.get();
+    }
+
+    /**
+     * Returns the number of tuple events dropped because there was no room for them or for an earlier tuple from
+     * the same stage.
+     *
+     * @return the count
+     */
+    long getRejectedPublishes() {
+        return rejectedPublishes.get();
+    }
+
+    /**
+     * Records how long ready edges wait to be serviced in the supplied metrics.
+     *
+     * @param metrics the executor's metrics
+     */
+    void recordMetricsTo(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void run() {
         logger.trace("run()");
+        busThread = Thread.currentThread();
         while (!cancelled.get()) {
-            EventObject event = eventQueue.poll();
-            while (event != null) {
-                routeEvent(event);
-                event = eventQueue.poll();
+            Edge edge = readyEdges.poll();
+            if (edge != null) {
+                service(edge);
+                continue;
             }
-            try {
-                Thread.sleep(POLL_PAUSE);
-            } catch (InterruptedException ignore) {
-                notify();
+            idle = true;
+            if (readyEdges.isEmpty() && !cancelled.get()) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL_PAUSE));
+                Thread.interrupted();
             }
+            idle = false;
         }
     }
 
     @Override
     public boolean publish(EventObject event) {
         logger.trace("publish({})", event);
-        return eventQueue.offer(event);
+        Edge edge = edgeFor(event);
+        if (edge == null) {
+            logger.warn("no subscription edge for {} from componentId={}", event.getClass().getSimpleName(),
+                    event.getSource());
+            return false;
+        }
+        if (isTuples(event) && !admit(edge)) {
+            return false;
+        }
+        edge.mailbox.offer(event);
+        schedule(edge);
+        return true;
     }
 
     @Override
@@ -78,117 +198,326 @@ class EventBusImpl implements EventBus, Runnable {
 
     @Override
     public void unregisterReceiver(Component component) {
-        componentMap.remove(component.getComponentId());
+        String componentId = component.getComponentId();
+        componentMap.remove(componentId);
+        failedSenders.remove(componentId);
+        Edge upstream = edgesBySubscriber.remove(componentId);
+        if (upstream != null) {
+            upstream.subscriber = null;
+            close(upstream);
+        }
+        Edge downstream = edgesByPublisher.remove(componentId);
+        if (downstream != null) {
+            downstream.publisher = null;
+            close(downstream);
+        }
     }
 
     void shutdown() {
         cancelled.set(true);
+        signalRoomAvailable();
+        Thread thread = busThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
     }
 
-    private void routeEvent(EventObject event) {
-        logger.debug("routing {}", event);
-        if (event instanceof OnSubscribeEvent) {
-            routeOnSubscribe((OnSubscribeEvent) event);
+    /**
+     * Delivers an event immediately on the calling thread by direct call to the component on the other end of its
+     * edge, connecting the edge first if the event is a subscription.
+     *
+     * @param event the event
+     */
+    void routeEvent(EventObject event) {
+        Edge edge = edgeFor(event);
+        if (edge == null) {
+            logger.warn("no subscription edge for {} from componentId={}", event.getClass().getSimpleName(),
+                    event.getSource());
+            return;
         }
-        else if (event instanceof RequestEvent) {
-            routeRequest((RequestEvent) event);
+        Object flight = FlightEvents.BUS_ROUTING.begin();
+        edge.deliver(event);
+        if (flight != null) {
+            FlightEvents.BUS_ROUTING.commit(flight, event.getClass().getSimpleName(), edge.receiverOf(event), 0L);
         }
-        else if (event instanceof OnNextEvent) {
-            routeOnNext((OnNextEvent) event);
+    }
+
+    private Edge edgeFor(EventObject event) {
+        String senderId = (String) event.getSource();
+        if (event instanceof OnSubscribeEvent) {
+            return connect(senderId, (SubscriptionImpl) ((OnSubscribeEvent) event).getSubscription());
+        } else if (event instanceof RequestEvent || event instanceof CancelEvent) {
+            return edgesBySubscriber.get(senderId);
+        } else {
+            return edgesByPublisher.get(senderId);
         }
-        else if (event instanceof CancelEvent) {
-            routeCancel((CancelEvent) event);
+    }
+
+    private Edge connect(String publisherId, SubscriptionImpl subscription) {
+        Edge edge = new Edge(publisherId, subscription);
+        edgesByPublisher.put(publisherId, edge);
+        edgesBySubscriber.put(edge.subscriberId, edge);
+        return edge;
+    }
+
+    private void schedule(Edge edge) {
+        if (edge.scheduled.compareAndSet(false, true)) {
+            if (metrics != null || FlightEvents.BUS_ROUTING.isEnabled()) {
+                edge.readySince = System.nanoTime();
+            }
+            readyEdges.offer(edge);
+            if (idle) {
+                Thread thread = busThread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
         }
-        else if (event instanceof OnCompleteEvent) {
-            routeOnComplete((OnCompleteEvent) event);
+    }
+
+    private void service(Edge edge) {
+        PipelineMetrics current = metrics;
+        long waited = 0L;
+        if (current != null && edge.readySince != 0L) {
+            waited = System.nanoTime() - edge.readySince;
+            current.recordRoutingLatency(waited);
+        }
+        for (int i = 0; i < MAX_BURST; i++) {
+            EventObject event = edge.mailbox.poll();
+            if (event == null) {
+                break;
+            }
+            if (i == 0 && waited != 0L) {
+                edge.recordQueueWait(event, waited);
+            }
+            if (isTuples(event)) {
+                releaseRoom(edge);
+            }
+            Object flight = FlightEvents.BUS_ROUTING.begin();
+            long queueWait = flight == null || edge.readySince == 0L ? 0L : System.nanoTime() - edge.readySince;
+            try {
+                edge.deliver(event);
+            } catch (RuntimeException cause) {
+                logger.error("unable to deliver {}", event, cause);
+            }
+            if (flight != null) {
+                FlightEvents.BUS_ROUTING.commit(flight, event.getClass().getSimpleName(), edge.receiverOf(event),
+                        queueWait);
+            }
         }
-        else if (event instanceof OnErrorEvent) {
-            routeOnError((OnErrorEvent) event);
+        edge.scheduled.set(false);
+        if (!edge.mailbox.isEmpty()) {
+            schedule(edge);
         }
     }
 
-    private void routeOnSubscribe(OnSubscribeEvent event) {
-        String publisherId = (String) event.getSource();
-        SubscriptionImpl subscription = (SubscriptionImpl) event.getSubscription();
-        String subscriberId = subscription.getComponentId();
-        pub2subMap.put(publisherId, subscriberId);
-        sub2pubMap.put(subscriberId, publisherId);
-        subscription.getSubscriber().onSubscribe(subscription);
+    private boolean isTuples(EventObject event) {
+        return event instanceof OnNextEvent || event instanceof OnNextBatchEvent;
     }
 
-    private void routeCancel(CancelEvent event) {
-        String subId = (String) event.getSource();
-        String pubId = sub2pubMap.get(subId);
-        if (pubId == null) {
-            logger.warn("no publisher mapping to subscriberId={}", subId);
-            return;
+    private boolean admit(Edge edge) {
+        if (failedSenders.contains(edge.publisherId)) {
+            logger.debug("dropping tuples from stage whose flow already failed");
+            rejectedPublishes.incrementAndGet();
+            return false;
         }
-        Subscription subscription = (Subscription) componentMap.get(pubId);
-        if (subscription == null) {
-            logger.warn("no publisher mapping to subscriberId={}", subId);
-            return;
+        if (Thread.currentThread() == busThread) {
+            reserveRoom(edge);
+        } else if (!tryReserveRoom(edge) && !awaitRoom(edge)) {
+            rejectedPublishes.incrementAndGet();
+            if (edge.closed) {
+                logger.debug("dropping tuples from stage whose flow has ended");
+            } else {
+                failFlow(edge);
+            }
+            return false;
         }
-        subscription.cancel();
+        return true;
     }
 
-    private void routeRequest(RequestEvent event) {
-        String subId = (String) event.getSource();
-        String pubId = sub2pubMap.get(subId);
-        if (pubId == null) {
-            logger.warn("no publisher mapping to subscriberId={}", subId);
-            return;
+    private boolean tryReserveRoom(Edge edge) {
+        synchronized (admissionMonitor) {
+            if (queuedTuples.get() >= capacity || edge.queuedTuples.get() >= perSenderLimit) {
+                return false;
+            }
+            reserveRoom(edge);
+            return true;
         }
-        Subscription subscription = (Subscription) componentMap.get(pubId);
-        if (subscription == null) {
-            logger.warn("no publisher mapping to subscriberId={}", subId);
-            return;
+    }
+
+    private void reserveRoom(Edge edge) {
+        edge.queuedTuples.incrementAndGet();
+        int queued = queuedTuples.incrementAndGet();
+        highWaterMark.accumulateAndGet(queued, Math::max);
+    }
+
+    private void releaseRoom(Edge edge) {
+        edge.queuedTuples.decrementAndGet();
+        queuedTuples.decrementAndGet();
+        if (waitingPublishers > 0) {
+            signalRoomAvailable();
         }
-        subscription.request(event.getNumber());
     }
 
-    private void routeOnComplete(OnCompleteEvent event) {
-        String pubId = (String) event.getSource();
-        String subId = pub2subMap.get(pubId);
-        if (subId == null) {
-            logger.warn("no subscriber mapping to publisherId={}", pubId);
-            return;
+    private void close(Edge edge) {
+        edge.closed = true;
+        if (waitingPublishers > 0) {
+            signalRoomAvailable();
         }
-        Subscriber<Tuple> subscriber = (Subscriber<Tuple>) componentMap.get(subId);
-        if (subscriber == null) {
-            logger.warn("no subscriber mapping to publisherId={}", pubId);
-            return;
+    }
+
+    private void signalRoomAvailable() {
+        synchronized (admissionMonitor) {
+            admissionMonitor.notifyAll();
         }
-        subscriber.onComplete();
     }
 
-    private void routeOnError(OnErrorEvent event) {
-        String pubId = (String) event.getSource();
-        String subId = pub2subMap.get(pubId);
-        if (subId == null) {
-            logger.warn("no subscriber mapping to publisherId={}", pubId);
-            return;
+    private boolean awaitRoom(Edge edge) {
+        OverflowPolicy policy = overflowPolicy;
+        if (policy == OverflowPolicy.FAIL) {
+            return false;
         }
-        Subscriber<Tuple> subscriber = (Subscriber<Tuple>) componentMap.get(subId);
-        if (subscriber == null) {
-            logger.warn("no subscriber mapping to publisherId={}", pubId);
-            return;
+        delayedPublishes.incrementAndGet();
+        int spins = 0;
+        while (!tryReserveRoom(edge)) {
+            if (edge.closed || cancelled.get() || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            if (policy == OverflowPolicy.SPIN_THEN_PARK) {
+                if (spins++ < MAX_SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_PAUSE);
+                }
+            } else {
+                awaitSignal();
+            }
         }
-        subscriber.onError(event.getThrowable());
+        return true;
     }
 
-    private void routeOnNext(OnNextEvent event) {
-        String pubId = (String) event.getSource();
-        String subId = pub2subMap.get(pubId);
-        if (subId == null) {
-            logger.warn("no subscriber mapping to publisherId={}", pubId);
-            return;
+    private void awaitSignal() {
+        synchronized (admissionMonitor) {
+            waitingPublishers++;
+            try {
+                admissionMonitor.wait(POLL_PAUSE);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waitingPublishers--;
+            }
         }
-        Subscriber<Tuple> subscriber = (Subscriber<Tuple>) componentMap.get(subId);
-        if (subscriber == null) {
-            logger.warn("no subscriber mapping to publisherId={}", pubId);
-            return;
+    }
+
+    private void failFlow(Edge edge) {
+        if (failedSenders.add(edge.publisherId)) {
+            logger.warn("event queue overloaded with queued={} so failing flow of stage {}", queuedTuples.get(),
+                    edge.publisherId);
+            edge.mailbox.offer(new OnErrorEvent(edge.publisherId,
+                    new IllegalStateException("event queue overloaded, unable to publish more tuples")));
+            schedule(edge);
+        }
+    }
+
+    /**
+     * One subscription between a publisher and its subscriber. The components at each end are looked up once
+     * and then called directly until they unregister.
+     */
+    private class Edge {
+
+        private final String publisherId;
+        private final String subscriberId;
+        private final SubscriptionImpl subscription;
+        private final Queue<EventObject> mailbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger queuedTuples = new AtomicInteger();
+        private volatile long readySince;
+        private volatile boolean closed = false;
+        private volatile Subscription publisher;
+        private volatile Subscriber<Tuple> subscriber;
+
+        Edge(String publisherId, SubscriptionImpl subscription) {
+            this.publisherId = publisherId;
+            this.subscriberId = subscription.getComponentId();
+            this.subscription = subscription;
         }
-        subscriber.onNext(event.getItem());
+
+        void deliver(EventObject event) {
+            logger.debug("routing {}", event);
+            if (event instanceof OnSubscribeEvent) {
+                subscription.getSubscriber().onSubscribe(subscription);
+            } else if (event instanceof RequestEvent) {
+                Subscription target = getPublisher();
+                if (target != null) {
+                    target.request(((RequestEvent) event).getNumber());
+                }
+            } else if (event instanceof CancelEvent) {
+                close(this);
+                Subscription target = getPublisher();
+                if (target != null) {
+                    target.cancel();
+                }
+            } else {
+                Subscriber<Tuple> target = getSubscriber();
+                if (target == null) {
+                    return;
+                }
+                if (event instanceof OnNextEvent) {
+                    target.onNext(((OnNextEvent) event).getItem());
+                } else if (event instanceof OnNextBatchEvent) {
+                    List<Tuple> items = ((OnNextBatchEvent) event).getItems();
+                    if (target instanceof BatchSubscriber) {
+                        ((BatchSubscriber) target).onNextBatch(items);
+                    } else {
+                        items.forEach(target::onNext);
+                    }
+                } else if (event instanceof OnCompleteEvent) {
+                    target.onComplete();
+                } else if (event instanceof OnErrorEvent) {
+                    target.onError(((OnErrorEvent) event).getThrowable());
+                }
+            }
+        }
+
+        void recordQueueWait(EventObject event, long nanos) {
+            Object receiver = event instanceof RequestEvent || event instanceof CancelEvent
+                    ? getPublisher() : getSubscriber();
+            if (receiver instanceof QueryStage) {
+                ((QueryStage) receiver).recordQueueWait(nanos);
+            }
+        }
+
+        String receiverOf(EventObject event) {
+            return event instanceof RequestEvent || event instanceof CancelEvent ? publisherId : subscriberId;
+        }
+
+        private Subscription getPublisher() {
+            Subscription result = publisher;
+            if (result == null) {
+                result = (Subscription) componentMap.get(publisherId);
+                if (result == null) {
+                    logger.warn("no publisher mapping to subscriberId={}", subscriberId);
+                    return null;
+                }
+                publisher = result;
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Subscriber<Tuple> getSubscriber() {
+            Subscriber<Tuple> result = subscriber;
+            if (result == null) {
+                result = (Subscriber<Tuple>) componentMap.get(subscriberId);
+                if (result == null) {
+                    logger.warn("no subscriber mapping to publisherId={}", publisherId);
+                    return null;
+                }
+                subscriber = result;
+            }
+            return result;
+        }
+
     }
 
 }
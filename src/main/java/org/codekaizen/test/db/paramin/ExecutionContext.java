@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.sql.Connection;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Holds the executor-wide resources a find parameters task uses beyond its own connection.
+ *
+ * @author kbrockhoff
+ */
+class ExecutionContext {
+
+    private final Supplier<Optional<Connection>> connectionSupplier;
+    private final Supplier<Optional<Connection>> leastLoadedConnectionSupplier;
+    private final Executor stageExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final SharedScan.Registry sharedScans;
+    private final PipelineMetrics metrics;
+    private volatile boolean sharingInitialScans = true;
+    private final Object source;
+    private volatile NegativeCache negativeCache;
+    private volatile QueryHedger hedger;
+
+    /**
+     * Constructs a context.
+     *
+     * @param connectionSupplier provides additional connections for stages which run in parallel when available
+     * @param stageExecutor      runs stage work off of the event bus thread
+     * @param scheduler          runs timed actions such as deadline expiry
+     */
+    ExecutionContext(Supplier<Optional<Connection>> connectionSupplier, Executor stageExecutor,
+                     ScheduledExecutorService scheduler) {
+        checkNotNull(connectionSupplier, "connectionSupplier is required");
+        checkNotNull(stageExecutor, "stageExecutor is required");
+        checkNotNull(scheduler, "scheduler is required");
+        this.connectionSupplier = connectionSupplier;
+        this.leastLoadedConnectionSupplier = connectionSupplier;
+        this.stageExecutor = stageExecutor;
+        this.scheduler = scheduler;
+        this.sharedScans = new SharedScan.Registry();
+        this.metrics = new PipelineMetrics();
+        this.source = null;
+    }
+
+    private ExecutionContext(ExecutionContext parent, Object source,
+                             Supplier<Optional<Connection>> connectionSupplier) {
+        this.source = source;
+        this.connectionSupplier = connectionSupplier;
+        this.leastLoadedConnectionSupplier = parent.leastLoadedConnectionSupplier;
+        this.stageExecutor = parent.stageExecutor;
+        this.scheduler = parent.scheduler;
+        this.sharedScans = parent.sharedScans;
+        this.metrics = parent.metrics;
+        this.sharingInitialScans = parent.sharingInitialScans;
+        this.negativeCache = parent.negativeCache;
+        this.hedger = parent.hedger;
+    }
+
+    /**
+     * Returns a context sharing these resources whose stage connections come from a single data source.
+     *
+     * @param source             identifies the data source the task was routed to
+     * @param connectionSupplier provides additional connections from the source the task was routed to
+     * @return the routed context
+     */
+    ExecutionContext routedTo(Object source, Supplier<Optional<Connection>> connectionSupplier) {
+        checkNotNull(source, "source is required");
+        checkNotNull(connectionSupplier, "connectionSupplier is required");
+        return new ExecutionContext(this, source, connectionSupplier);
+    }
+
+    /**
+     * Returns what identifies the data source a routed context's task was routed to.
+     *
+     * @return the source or null if not routed
+     */
+    Object getSource() {
+        return source;
+    }
+
+    /**
+     * Returns an additional connection for parallel work if one can be leased without waiting.
+     *
+     * @return the connection or empty
+     */
+    Optional<Connection> tryGetConnection() {
+        return connectionSupplier.get();
+    }
+
+    /**
+     * Returns a connection from whichever data source is least loaded, which for a routed context need not be
+     * the source its task was routed to, if one can be leased without waiting. Only suitable for SQL which is
+     * the same in every dialect.
+     *
+     * @return the connection or empty
+     */
+    Optional<Connection> tryGetLeastLoadedConnection() {
+        return leastLoadedConnectionSupplier.get();
+    }
+
+    Executor getStageExecutor() {
+        return stageExecutor;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    SharedScan.Registry getSharedScans() {
+        return sharedScans;
+    }
+
+    PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    boolean isSharingInitialScans() {
+        return sharingInitialScans;
+    }
+
+    void setSharingInitialScans(boolean sharingInitialScans) {
+        this.sharingInitialScans = sharingInitialScans;
+    }
+
+    /**
+     * Returns the cache of dead ends shared by all tasks.
+     *
+     * @return the cache or null if not enabled
+     */
+    NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    void setNegativeCache(NegativeCache negativeCache) {
+        checkNotNull(negativeCache, "negativeCache is required");
+        this.negativeCache = negativeCache;
+    }
+
+    QueryHedger getHedger() {
+        return hedger;
+    }
+
+    void setHedger(QueryHedger hedger) {
+        this.hedger = hedger;
+    }
+
+}
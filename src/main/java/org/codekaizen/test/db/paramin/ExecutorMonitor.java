@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Exposes the live state of one executor as an MXBean. Every attribute is read from the executor's existing
+ * counters when requested so the bean adds no cost while nobody is looking.
+ *
+ * @author kbrockhoff
+ */
+class ExecutorMonitor implements FindParametersExecutorMXBean {
+
+    private final Supplier<ExecutorService> workerPool;
+    private final EventBusImpl eventBus;
+    private final Supplier<ConnectionBudget> budget;
+    private final PipelineMetrics metrics;
+    private final Map<String, DefaultFindParametersTask> activeTasks;
+
+    /**
+     * Constructs a monitor.
+     *
+     * @param workerPool  provides the pool retrievals currently run in
+     * @param eventBus    the shared event bus
+     * @param budget      provides the current connection budget
+     * @param metrics     the executor's metrics
+     * @param activeTasks the retrievals currently holding a connection keyed by component id
+     */
+    ExecutorMonitor(Supplier<ExecutorService> workerPool, EventBusImpl eventBus, Supplier<ConnectionBudget> budget,
+                    PipelineMetrics metrics, Map<String, DefaultFindParametersTask> activeTasks) {
+        checkNotNull(workerPool);
+        checkNotNull(eventBus);
+        checkNotNull(budget);
+        checkNotNull(metrics);
+        checkNotNull(activeTasks);
+        this.workerPool = workerPool;
+        this.eventBus = eventBus;
+        this.budget = budget;
+        this.metrics = metrics;
+        this.activeTasks = activeTasks;
+    }
+
+    @Override
+    public int getWorkerPoolSize() {
+        ExecutorService pool = workerPool.get();
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getPoolSize() : -1;
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        ExecutorService pool = workerPool.get();
+        return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getActiveCount() : -1;
+    }
+
+    @Override
+    public double getWorkerUtilisation() {
+        ExecutorService pool = workerPool.get();
+        if (!(pool instanceof ThreadPoolExecutor)) {
+            return -1.0;
+        }
+        ThreadPoolExecutor threadPool = (ThreadPoolExecutor) pool;
+        int size = Math.max(threadPool.getPoolSize(), threadPool.getCorePoolSize());
+        return size == 0 ? 0.0 : (double) threadPool.getActiveCount() / size;
+    }
+
+    @Override
+    public int getEventQueueLength() {
+        return eventBus.getQueued();
+    }
+
+    @Override
+    public int getEventQueueHighWaterMark() {
+        return eventBus.getHighWaterMark();
+    }
+
+    @Override
+    public int getRegisteredComponents() {
+        return eventBus.getRegisteredComponents();
+    }
+
+    @Override
+    public int getActiveFlows() {
+        return activeTasks.size();
+    }
+
+    @Override
+    public int getWaitingFlows() {
+        return budget.get().getWaiting();
+    }
+
+    @Override
+    public Map<String, Long> getStageQueries() {
+        return stageFigures(MetricsSnapshot.Stage::getQueries);
+    }
+
+    @Override
+    public Map<String, Long> getStageRowsFetched() {
+        return stageFigures(MetricsSnapshot.Stage::getRowsFetched);
+    }
+
+    @Override
+    public Map<String, Long> getStageRowsRejected() {
+        return stageFigures(MetricsSnapshot.Stage::getRowsRejected);
+    }
+
+    @Override
+    public Map<String, Long> getStageMeanQueryMicros() {
+        return stageFigures(stage -> TimeUnit.NANOSECONDS.toMicros(stage.getQueryLatency().getMeanNanos()));
+    }
+
+    @Override
+    public Map<String, Long> getStageP99QueryMicros() {
+        return stageFigures(stage -> TimeUnit.NANOSECONDS.toMicros(stage.getQueryLatency().getPercentileNanos(0.99)));
+    }
+
+    @Override
+    public String[] dumpActiveFlows() {
+        return activeTasks.values().stream().map(DefaultFindParametersTask::describeFlow).sorted()
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public boolean cancelTask(String taskId) {
+        DefaultFindParametersTask task = activeTasks.get(taskId);
+        return task != null && task.forceCancel();
+    }
+
+    private Map<String, Long> stageFigures(Function<MetricsSnapshot.Stage, Long> figure) {
+        Map<String, Long> results = new TreeMap<>();
+        metrics.stageSnapshots().forEach((name, stage) -> results.put(name, figure.apply(stage)));
+        return results;
+    }
+
+}
@@ -23,11 +23,31 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
-import java.sql.*;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.codekaizen.test.db.paramin.Preconditions.*;
 
@@ -43,16 +63,26 @@ public class FindParametersExecutor implements Publisher<Tuple>, AutoCloseable {
     private static final int THREAD_POOL_SIZE = 4;
     private static final String BUS_THREAD_NAME = "find-params-eventbus";
     private static final String THREAD_NAME = "find-params-worker-%d";
+    private static final String STAGE_THREAD_NAME = "find-params-stage-%d";
+    private static final String SCHEDULER_THREAD_NAME = "find-params-scheduler";
+    private static final int DEFAULT_PREFETCH = 64;
+    private static final int DEFAULT_EVENT_QUEUE_CAPACITY = 16384;
+    private static final int DEFAULT_EVENT_QUEUE_PER_STAGE = 1024;
 
     private final Logger logger = LoggerFactory.getLogger(FindParametersExecutor.class);
-    private final DataSource dataSource;
-    private final Database database;
+    private final DataSourceRouter router;
     private final ThreadFactory backingThreadFactory;
     private final AtomicLong threadCounter;
     private ExecutorService executorService;
     private final ExecutorService eventBusExecutor;
     private final EventBusImpl eventBus;
+    private volatile ExecutorService stageExecutorService;
+    private final ScheduledExecutorService schedulerService;
+    private final ExecutionContext executionContext;
     private boolean usingInternalExecutor;
+    private volatile boolean fusingStages = false;
+    private final Map<String, DefaultFindParametersTask> activeTasks = new ConcurrentHashMap<>();
+    private volatile ObjectName mbeanName;
 
     /**
      * Constructs a finder instance.
@@ -61,17 +91,32 @@ public class FindParametersExecutor implements Publisher<Tuple>, AutoCloseable {
      */
     @Inject
     public FindParametersExecutor(DataSource dataSource) {
-        logger.trace("FindParametersExecutor({})", dataSource);
-        checkNotNull(dataSource, "dataSource is required parameter");
-        this.dataSource = dataSource;
-        this.database = lookupDatabase(dataSource);
+        this(Collections.singletonList(new WeightedDataSource(
+                checkNotNull(dataSource, "dataSource is required parameter"), 1)));
+    }
+
+    /**
+     * Constructs a finder instance which distributes retrievals across several data sources such as a primary
+     * and its read replicas. Each retrieval runs entirely against the least loaded source using that source's
+     * SQL dialect.
+     *
+     * @param dataSources the weighted database connection pools in order of preference when equally loaded
+     */
+    public FindParametersExecutor(Collection<WeightedDataSource> dataSources) {
+        logger.trace("FindParametersExecutor({})", dataSources);
+        this.router = new DataSourceRouter(dataSources);
         this.backingThreadFactory = Executors.defaultThreadFactory();
         this.threadCounter = new AtomicLong(0l);
         this.executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE, r -> constructWorkerThread(r));
         usingInternalExecutor = true;
         eventBusExecutor = Executors.newSingleThreadExecutor(r -> constructEventBusThread(r));
         eventBus = new EventBusImpl();
+        eventBus.setLimits(DEFAULT_EVENT_QUEUE_CAPACITY, DEFAULT_EVENT_QUEUE_PER_STAGE, OverflowPolicy.BLOCK);
         eventBusExecutor.execute(eventBus);
+        stageExecutorService = Executors.newCachedThreadPool(r -> constructStageThread(r));
+        schedulerService = Executors.newSingleThreadScheduledExecutor(r -> constructSchedulerThread(r));
+        executionContext = new ExecutionContext(router::tryGetConnection, this::executeStage, schedulerService);
+        eventBus.recordMetricsTo(executionContext.getMetrics());
     }
 
     /**
@@ -86,12 +131,196 @@ public class FindParametersExecutor implements Publisher<Tuple>, AutoCloseable {
         usingInternalExecutor = false;
     }
 
+    /**
+     * Switches retrievals and their stages to running on virtual threads if the JDK supports them, lifting the
+     * ceiling the worker pool places on the number of retrievals in progress at once. Combine with
+     * {@link #setConnectionLimits(int, int)} so thousands of retrievals do not exhaust the connection pool.
+     * The event bus keeps its own platform thread. Should be called before any retrievals are submitted.
+     *
+     * @return true if switched or false if virtual threads are not supported and the pools are unchanged
+     */
+    public boolean useVirtualThreads() {
+        logger.trace("useVirtualThreads()");
+        Optional<ExecutorService> workers = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        Optional<ExecutorService> stages = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        if (!workers.isPresent() || !stages.isPresent()) {
+            logger.info("virtual threads are not supported so continuing with platform threads");
+            workers.ifPresent(ExecutorService::shutdown);
+            return false;
+        }
+        if (usingInternalExecutor) {
+            executorService.shutdown();
+        }
+        executorService = workers.get();
+        usingInternalExecutor = true;
+        ExecutorService previous = stageExecutorService;
+        stageExecutorService = stages.get();
+        previous.shutdown();
+        return true;
+    }
+
+    /**
+     * Sets whether the stages of each retrieval exchange signals by direct calls in a loop on one worker
+     * instead of through the shared event bus. Demand and termination behave the same either way. Custom
+     * {@link FindParametersTask} implementations always use the shared bus. Off by default.
+     *
+     * @param fusingStages whether to fuse
+     */
+    public void setFusingStages(boolean fusingStages) {
+        logger.trace("setFusingStages({})", fusingStages);
+        this.fusingStages = fusingStages;
+    }
+
+    /**
+     * Bounds the tuples queued on the shared event bus. Once the queue holds {@code capacity} tuple events, or
+     * {@code perStageLimit} of them from one stage, a stage publishing another from outside the bus thread
+     * applies the overflow policy. A waiting publisher is released without its tuple once the flow is cancelled
+     * or passes its deadline. Signals other than tuples, and tuples published while
+     * the bus is delivering, are always queued so the bus never waits on itself. The defaults are 16384 and 1024
+     * with {@link OverflowPolicy#BLOCK}.
+     *
+     * @param capacity       the maximum tuple events queued across all retrievals
+     * @param perStageLimit  the maximum tuple events queued from any one stage
+     * @param overflowPolicy what a publisher does when either limit is reached
+     */
+    public void setEventQueueLimits(int capacity, int perStageLimit, OverflowPolicy overflowPolicy) {
+        logger.trace("setEventQueueLimits({},{},{})", capacity, perStageLimit, overflowPolicy);
+        eventBus.setLimits(capacity, perStageLimit, overflowPolicy);
+    }
+
+    /**
+     * Returns the most tuple events the shared event bus has held queued at once.
+     *
+     * @return the high water mark
+     */
+    public int getEventQueueHighWaterMark() {
+        return eventBus.getHighWaterMark();
+    }
+
+    /**
+     * Returns the number of tuple events the shared event bus has refused for lack of room, each of which
+     * failed or followed the failure of its flow.
+     *
+     * @return the count
+     */
+    public long getEventQueueRejections() {
+        return eventBus.getRejectedPublishes();
+    }
+
+    /**
+     * Sets where the measurements taken of retrievals are forwarded as they are taken. The executor accumulates
+     * the same measurements whether or not a sink is set.
+     *
+     * @param sink the sink or null to stop forwarding
+     */
+    public void setMetricsSink(MetricsSink sink) {
+        logger.trace("setMetricsSink({})", sink);
+        executionContext.getMetrics().setSink(sink);
+    }
+
+    /**
+     * Returns the measurements accumulated since this executor was constructed, covering per-stage queries, rows
+     * and latencies, retrieval latency and connection waits, and the current state of the event bus, connection
+     * limits and hedging.
+     *
+     * @return the snapshot
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return executionContext.getMetrics().snapshot(eventBus, router.getBudget(), executionContext.getHedger());
+    }
+
+    /**
+     * Registers a {@link FindParametersExecutorMXBean} for this executor with the platform MBean server under
+     * {@code org.codekaizen.test.db.paramin:type=FindParametersExecutor,name="<name>"}. It is unregistered when the
+     * executor is closed.
+     *
+     * @param name distinguishes this executor from others in the same JVM
+     * @return the name the bean was registered under
+     * @throws IllegalStateException if a bean is already registered under the name or registration fails
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        logger.trace("registerMBean({})", name);
+        checkNotEmpty(name, "name is required parameter");
+        if (mbeanName != null) {
+            throw new IllegalStateException("an MBean is already registered as " + mbeanName);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(FindParametersExecutor.class.getPackage().getName()
+                    + ":type=" + FindParametersExecutor.class.getSimpleName() + ",name=" + ObjectName.quote(name));
+            server.registerMBean(new ExecutorMonitor(() -> executorService, eventBus, router::getBudget,
+                    executionContext.getMetrics(), activeTasks), objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException cause) {
+            throw new IllegalStateException("unable to register MBean " + name, cause);
+        }
+    }
+
+    /**
+     * Limits the connections this executor holds and the queries it runs at once across all of its data
+     * sources. Retrievals wait in submission order until a connection can be leased for them and hold it only
+     * from when they start until they finish. Connections for parallel work such as branches, partitions,
+     * shared scans and hedges are only used when available without waiting, otherwise that work runs serially
+     * on the retrieval's own connection. Both limits are unlimited by default.
+     *
+     * @param maxConnections the maximum connections leased at once
+     * @param maxQueries the maximum queries executing at once
+     */
+    public void setConnectionLimits(int maxConnections, int maxQueries) {
+        logger.trace("setConnectionLimits({},{})", maxConnections, maxQueries);
+        router.setBudget(new ConnectionBudget(maxConnections, maxQueries));
+    }
+
+    /**
+     * Enables the cache of upstream tuples known to have no acceptable downstream values which is shared by
+     * all retrievals run by this executor. Dead ends are remembered per data source. Off by default, since a
+     * remembered dead end hides matching rows added to the database until it expires.
+     *
+     * @param maxEntries the maximum number of dead ends remembered with zero disabling the cache
+     * @param timeToLive how long a dead end is remembered
+     */
+    public void setNegativeCache(int maxEntries, Duration timeToLive) {
+        logger.trace("setNegativeCache({},{})", maxEntries, timeToLive);
+        executionContext.setNegativeCache(new NegativeCache(maxEntries, timeToLive));
+    }
+
+    /**
+     * Enables hedging of the per-tuple stage queries. When a stage query has not returned within the supplied
+     * percentile of the latencies recently observed for its plan, the same query is issued on a second
+     * connection to the least loaded data source. The first to return is used and the other is cancelled. Hedging
+     * is off by default.
+     *
+     * @param percentile   the latency percentile after which a hedge is issued such as 0.95
+     * @param maxExtraLoad the maximum hedges as a fraction of all stage queries with zero disabling hedging
+     */
+    public void setHedging(double percentile, double maxExtraLoad) {
+        logger.trace("setHedging({},{})", percentile, maxExtraLoad);
+        executionContext.setHedger(maxExtraLoad == 0.0 ? null
+                : new QueryHedger(percentile, maxExtraLoad, this::executeStage, schedulerService));
+    }
+
+    /**
+     * Sets whether concurrent retrievals whose first specs have the same initial query share one scan of the
+     * driving table. Sharing is on by default. Retrievals with a query timeout or time budget, and retrievals
+     * using random, table or reservoir sampling or a partitioned scan, never share.
+     *
+     * @param sharingInitialScans whether to share
+     */
+    public void setSharingInitialScans(boolean sharingInitialScans) {
+        logger.trace("setSharingInitialScans({})", sharingInitialScans);
+        executionContext.setSharingInitialScans(sharingInitialScans);
+    }
+
     @Override
     @PreDestroy
     public void close() {
         logger.trace("close()");
+        unregisterMBean();
         eventBus.shutdown();
         eventBusExecutor.shutdown();
+        stageExecutorService.shutdown();
+        schedulerService.shutdownNow();
         if (usingInternalExecutor) {
             executorService.shutdown();
         }
@@ -105,13 +334,163 @@ public class FindParametersExecutor implements Publisher<Tuple>, AutoCloseable {
      */
     public Future<Set<Tuple>> findValidParameters(ParamSpecs paramSpecs) {
         logger.trace("findValidParameters({})", paramSpecs);
+        return findValidParametersAsync(paramSpecs);
+    }
+
+    /**
+     * Returns a set of tuples matching the supplied specifications without tying up a worker thread while the
+     * retrieval is in progress. The worker only configures the processing flow; the returned future is completed
+     * by the terminal event of that flow.
+     *
+     * @param paramSpecs the parameter specifications
+     * @return a future which is completed with the parameter combinations once the retrieval has finished
+     */
+    public CompletableFuture<Set<Tuple>> findValidParametersAsync(ParamSpecs paramSpecs) {
+        logger.trace("findValidParametersAsync({})", paramSpecs);
         DefaultFindParametersTask task = new DefaultFindParametersTask(paramSpecs);
-        subscribe(task);
-        return executorService.submit(task);
+        admit(task);
+        return task.getResultFuture();
     }
 
     /**
-     * Initiates a stream of tuples matching a set of parameter specifications.
+     * Returns a set of tuples matching the supplied specifications together with why the retrieval stopped and
+     * the queries, rows, duplicates and time in JDBC and on the event bus of each of its stages. Unlike
+     * {@link #findValidParametersAsync(ParamSpecs)} the future completes normally when the retrieval fails, with
+     * the failure available from the result.
+     *
+     * @param paramSpecs the parameter specifications
+     * @return a future which is completed with the result once the retrieval has finished
+     */
+    public CompletableFuture<FindParametersResult> findValidParametersWithStatistics(ParamSpecs paramSpecs) {
+        logger.trace("findValidParametersWithStatistics({})", paramSpecs);
+        DefaultFindParametersTask task = new DefaultFindParametersTask(paramSpecs);
+        admit(task);
+        return task.getStatisticsFuture();
+    }
+
+    /**
+     * Returns the tuples matching each of the supplied specifications, running independent groups in parallel
+     * with at most the default number of groups in progress at once.
+     *
+     * @param paramSpecs the parameter specifications with equal specifications retrieved once
+     * @return the parameter combinations keyed by specifications
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException   if any retrieval failed
+     */
+    public Map<ParamSpecs, Set<Tuple>> findAll(Collection<ParamSpecs> paramSpecs)
+            throws InterruptedException, ExecutionException {
+        return findAll(paramSpecs, THREAD_POOL_SIZE);
+    }
+
+    /**
+     * Returns the tuples matching each of the supplied specifications, running independent groups in parallel.
+     *
+     * @param paramSpecs          the parameter specifications with equal specifications retrieved once
+     * @param maxConcurrentGroups the maximum number of groups in progress at once
+     * @return the parameter combinations keyed by specifications
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException   if any retrieval failed
+     */
+    public Map<ParamSpecs, Set<Tuple>> findAll(Collection<ParamSpecs> paramSpecs, int maxConcurrentGroups)
+            throws InterruptedException, ExecutionException {
+        return findAllAsync(paramSpecs, maxConcurrentGroups).get();
+    }
+
+    /**
+     * Returns the tuples matching each of the supplied specifications. Specifications are grouped by their
+     * driving query, which is the query of the first spec. The retrievals of a group are started together so
+     * they share one scan of the driving table, kept open until the whole group has finished, and, when
+     * enabled, the cache of dead ends between stages. Retrievals which cannot share a scan, such as sampled or
+     * partitioned ones, scan on their own. Only the driving scan is shared: the statements of the later stages
+     * are prepared by each retrieval on its own connection.
+     * Groups are independent and run in parallel with at most {@code maxConcurrentGroups} in progress, with
+     * any connection limits of this executor applying across all of them.
+     *
+     * @param paramSpecs          the parameter specifications with equal specifications retrieved once
+     * @param maxConcurrentGroups the maximum number of groups in progress at once
+     * @return a future which is completed with the parameter combinations keyed by specifications once every
+     * retrieval has finished or exceptionally with the first failure, upon which the retrievals still running
+     * in any group are cancelled as they are if the future itself is cancelled
+     */
+    public CompletableFuture<Map<ParamSpecs, Set<Tuple>>> findAllAsync(Collection<ParamSpecs> paramSpecs,
+                                                                       int maxConcurrentGroups) {
+        logger.trace("findAllAsync({},{})", paramSpecs, maxConcurrentGroups);
+        checkNotNull(paramSpecs, "paramSpecs is required parameter");
+        checkArgument(maxConcurrentGroups > 0, "maxConcurrentGroups must be positive");
+        Map<String, List<ParamSpecs>> groups = new LinkedHashMap<>();
+        for (ParamSpecs specs : new LinkedHashSet<>(paramSpecs)) {
+            checkNotNull(specs, "paramSpecs cannot contain null");
+            groups.computeIfAbsent(specs.getInitialSqlStatement(Database.DEFAULT, 1), k -> new ArrayList<>())
+                    .add(specs);
+        }
+        logger.debug("running {} retrievals in {} groups", paramSpecs.size(), groups.size());
+        Map<ParamSpecs, Set<Tuple>> results = new ConcurrentHashMap<>();
+        CompletableFuture<Map<ParamSpecs, Set<Tuple>>> future = new CompletableFuture<>();
+        Iterator<List<ParamSpecs>> pending = groups.values().iterator();
+        AtomicInteger remaining = new AtomicInteger(groups.size());
+        Set<CompletableFuture<Set<Tuple>>> running = ConcurrentHashMap.newKeySet();
+        future.whenComplete((r, cause) -> {
+            if (cause != null) {
+                running.forEach(retrieval -> retrieval.cancel(true));
+            }
+        });
+        if (groups.isEmpty()) {
+            future.complete(results);
+        }
+        for (int i = 0; i < Math.min(maxConcurrentGroups, groups.size()); i++) {
+            startNextGroup(pending, results, remaining, running, future);
+        }
+        return future;
+    }
+
+    /**
+     * Returns a publisher which streams each distinct tuple to its subscribers as soon as it is discovered.
+     * Every subscription starts a separate retrieval which only queries the database while the subscriber
+     * has outstanding demand.
+     *
+     * @param paramSpecs the parameter specifications
+     * @return the tuple publisher
+     */
+    public Publisher<Tuple> publishValidParameters(ParamSpecs paramSpecs) {
+        logger.trace("publishValidParameters({})", paramSpecs);
+        checkNotNull(paramSpecs, "paramSpecs is required parameter");
+        return subscriber -> {
+            DefaultFindParametersTask task = new DefaultFindParametersTask(paramSpecs);
+            task.setDownstream(subscriber);
+            admit(task);
+        };
+    }
+
+    /**
+     * Returns a blocking stream of the tuples matching the supplied specifications using the default prefetch.
+     *
+     * @param paramSpecs the parameter specifications
+     * @return the tuple stream which should be closed if not fully consumed
+     */
+    public Stream<Tuple> streamValidParameters(ParamSpecs paramSpecs) {
+        return streamValidParameters(paramSpecs, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * Returns a blocking stream of the tuples matching the supplied specifications. Tuples are available to
+     * the consumer as soon as they are discovered with at most {@code prefetch} tuples buffered ahead.
+     *
+     * @param paramSpecs the parameter specifications
+     * @param prefetch the maximum number of tuples retrieved ahead of the consumer
+     * @return the tuple stream which should be closed if not fully consumed
+     */
+    public Stream<Tuple> streamValidParameters(ParamSpecs paramSpecs, int prefetch) {
+        logger.trace("streamValidParameters({},{})", paramSpecs, prefetch);
+        BlockingTupleIterator iterator = new BlockingTupleIterator(prefetch);
+        publishValidParameters(paramSpecs).subscribe(iterator);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    /**
+     * Initiates a stream of tuples matching a set of parameter specifications. Blocks until a connection can be
+     * leased for the task if the executor has a connection limit.
      *
      * @param subscriber must implement {@link FindParametersTask}
      */
@@ -119,23 +498,152 @@ public class FindParametersExecutor implements Publisher<Tuple>, AutoCloseable {
     public void subscribe(Subscriber<? super Tuple> subscriber) {
         logger.trace("subscribe({})", subscriber);
         checkArgument(subscriber instanceof FindParametersTask, "subscriber must implement FindParametersTask");
-        FindParametersTask task = (FindParametersTask) subscriber;
-        task.setDatabase(getDatabase());
-        task.initialize(getConnection(), getEventBus());
+        ConnectionBudget budget = router.getBudget();
+        long submitted = System.nanoTime();
+        try {
+            budget.awaitAdmission();
+        } catch (InterruptedException cause) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for a connection", cause);
+        }
+        subscribeAdmitted((FindParametersTask) subscriber, budget, submitted);
+    }
+
+    DataSourceRouter getRouter() {
+        return router;
+    }
+
+    SharedScan.Registry getSharedScans() {
+        return executionContext.getSharedScans();
+    }
+
+    QueryHedger getHedger() {
+        return executionContext.getHedger();
+    }
+
+    NegativeCache getNegativeCache() {
+        return executionContext.getNegativeCache();
+    }
+
+    private void startNextGroup(Iterator<List<ParamSpecs>> pending, Map<ParamSpecs, Set<Tuple>> results,
+                                AtomicInteger remaining, Set<CompletableFuture<Set<Tuple>>> running,
+                                CompletableFuture<Map<ParamSpecs, Set<Tuple>>> future) {
+        List<ParamSpecs> group;
+        synchronized (pending) {
+            if (future.isDone() || !pending.hasNext()) {
+                return;
+            }
+            group = pending.next();
+        }
+        // scans stay open until the whole group has finished so members started late still share them
+        executionContext.getSharedScans().pin();
+        CompletableFuture<?>[] retrievals = new CompletableFuture<?>[group.size()];
+        for (int i = 0; i < retrievals.length; i++) {
+            ParamSpecs specs = group.get(i);
+            CompletableFuture<Set<Tuple>> retrieval = findValidParametersAsync(specs);
+            running.add(retrieval);
+            retrieval.whenComplete((tuples, cause) -> {
+                running.remove(retrieval);
+                if (cause != null) {
+                    // a failed retrieval fails the whole call so the others would only hold connections
+                    future.completeExceptionally(cause instanceof CompletionException ? cause.getCause() : cause);
+                }
+            });
+            if (future.isDone()) {
+                retrieval.cancel(true);
+            }
+            retrievals[i] = retrieval.thenAccept(tuples -> results.put(specs, tuples));
+        }
+        CompletableFuture.allOf(retrievals).whenComplete((r, cause) -> {
+            executionContext.getSharedScans().unpin();
+            if (cause != null) {
+                future.completeExceptionally(cause instanceof CompletionException ? cause.getCause() : cause);
+            } else if (remaining.decrementAndGet() == 0) {
+                future.complete(results);
+            } else {
+                startNextGroup(pending, results, remaining, running, future);
+            }
+        });
     }
 
-    Database getDatabase() {
-        return database;
+    private void admit(DefaultFindParametersTask task) {
+        ConnectionBudget budget = router.getBudget();
+        long submitted = System.nanoTime();
+        budget.admit(() -> executorService.execute(() -> {
+            if (task.getResultFuture().isDone()) {
+                budget.release();
+                return;
+            }
+            try {
+                subscribeAdmitted(task, budget, submitted);
+            } catch (RuntimeException cause) {
+                task.onError(cause);
+                return;
+            }
+            task.start();
+        }));
     }
 
-    private Connection getConnection() {
+    private void subscribeAdmitted(FindParametersTask task, ConnectionBudget lease, long submitted) {
+        DataSourceRouter.Source source = router.route();
+        PipelineMetrics metrics = executionContext.getMetrics();
+        boolean tracked = false;
         try {
-            return dataSource.getConnection();
-        } catch (SQLException cause) {
-            throw new IllegalStateException(cause);
+            Connection connection = source.getConnection(lease);
+            metrics.recordConnectionWait(System.nanoTime() - submitted);
+            try {
+                task.setDatabase(source.getDatabase(connection));
+                if (task instanceof DefaultFindParametersTask) {
+                    ((DefaultFindParametersTask) task).setExecutionContext(
+                            executionContext.routedTo(source.getDataSource(), source::tryGetConnection));
+                }
+                task.initialize(connection, fusingStages && task instanceof DefaultFindParametersTask
+                        ? new FusedEventBus(this::executeStage) : getEventBus());
+            } catch (RuntimeException cause) {
+                closeQuietly(connection);
+                throw cause;
+            }
+            if (task instanceof DefaultFindParametersTask) {
+                metrics.recordTaskStarted();
+                activeTasks.put(task.getComponentId(), (DefaultFindParametersTask) task);
+                ((DefaultFindParametersTask) task).getResultFuture().whenComplete((r, t) -> {
+                    activeTasks.remove(task.getComponentId());
+                    source.release();
+                    metrics.recordTaskFinished(System.nanoTime() - submitted);
+                });
+                tracked = true;
+            }
+        } finally {
+            if (!tracked) {
+                source.release();
+            }
         }
     }
 
+    private synchronized void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException cause) {
+            logger.info("unable to unregister MBean {}: {}", mbeanName, cause.getMessage());
+        }
+        mbeanName = null;
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignore) {
+            logger.info("exception on close: {}", ignore.getMessage());
+        }
+    }
+
+    private void executeStage(Runnable command) {
+        stageExecutorService.execute(command);
+    }
+
     private EventBus getEventBus() {
         return eventBus;
     }
@@ -146,24 +654,23 @@ public class FindParametersExecutor implements Publisher<Tuple>, AutoCloseable {
         return thread;
     }
 
-    private Thread constructEventBusThread(Runnable runnable) {
+    private Thread constructStageThread(Runnable runnable) {
         Thread thread = backingThreadFactory.newThread(runnable);
-        thread.setName(BUS_THREAD_NAME);
+        thread.setName(String.format(STAGE_THREAD_NAME, threadCounter.getAndIncrement()));
         return thread;
     }
 
-    private Database lookupDatabase(DataSource dataSource) {
-        Database result = Database.DEFAULT;
-        try (Connection conn = dataSource.getConnection()) {
-            DatabaseMetaData metaData = conn.getMetaData();
-            String databaseProductName = metaData.getDatabaseProductName();
-            logger.debug("databaseProductName={}", databaseProductName);
-            result = Database.getDatabaseForProductName(databaseProductName);
-            logger.debug("calculated database={}", result);
-        } catch (SQLException cause) {
-            throw new IllegalStateException("unable to retrieve database metaData", cause);
-        }
-        return result;
+    private Thread constructSchedulerThread(Runnable runnable) {
+        Thread thread = backingThreadFactory.newThread(runnable);
+        thread.setName(SCHEDULER_THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private Thread constructEventBusThread(Runnable runnable) {
+        Thread thread = backingThreadFactory.newThread(runnable);
+        thread.setName(BUS_THREAD_NAME);
+        return thread;
     }
 
 }
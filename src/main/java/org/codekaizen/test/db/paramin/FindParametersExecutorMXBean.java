@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the live state of a {@link FindParametersExecutor} over JMX once registered
+ * with {@link FindParametersExecutor#registerMBean(String)}. Counts are cumulative since the executor was
+ * constructed unless described as current.
+ *
+ * @author kbrockhoff
+ */
+public interface FindParametersExecutorMXBean {
+
+    /**
+     * Returns the number of threads in the worker pool retrievals run in.
+     *
+     * @return the current pool size or -1 if the pool is not a thread pool executor
+     */
+    int getWorkerPoolSize();
+
+    /**
+     * Returns the number of workers currently running a retrieval.
+     *
+     * @return the count or -1 if the pool is not a thread pool executor
+     */
+    int getActiveWorkers();
+
+    /**
+     * Returns the fraction of the worker pool currently busy.
+     *
+     * @return the utilisation between 0 and 1 or -1 if the pool is not a thread pool executor
+     */
+    double getWorkerUtilisation();
+
+    /**
+     * Returns the number of tuple events currently queued on the event bus.
+     *
+     * @return the length
+     */
+    int getEventQueueLength();
+
+    /**
+     * Returns the most tuple events the event bus has held queued at once.
+     *
+     * @return the high water mark
+     */
+    int getEventQueueHighWaterMark();
+
+    /**
+     * Returns the number of components currently registered with the event bus. A count which keeps growing
+     * while no retrievals are running indicates stages which are never closed.
+     *
+     * @return the count
+     */
+    int getRegisteredComponents();
+
+    /**
+     * Returns the number of retrievals currently holding a connection.
+     *
+     * @return the count
+     */
+    int getActiveFlows();
+
+    /**
+     * Returns the number of retrievals waiting for a connection.
+     *
+     * @return the count
+     */
+    int getWaitingFlows();
+
+    /**
+     * Returns the number of queries each stage has executed keyed by table and column.
+     *
+     * @return the counts
+     */
+    Map<String, Long> getStageQueries();
+
+    /**
+     * Returns the number of rows each stage has read keyed by table and column.
+     *
+     * @return the counts
+     */
+    Map<String, Long> getStageRowsFetched();
+
+    /**
+     * Returns the number of rows each stage has read whose value the matcher rejected keyed by table and column.
+     *
+     * @return the counts
+     */
+    Map<String, Long> getStageRowsRejected();
+
+    /**
+     * Returns the mean query latency of each stage in microseconds keyed by table and column.
+     *
+     * @return the latencies
+     */
+    Map<String, Long> getStageMeanQueryMicros();
+
+    /**
+     * Returns an upper bound on the 99th percentile query latency of each stage in microseconds keyed by table
+     * and column.
+     *
+     * @return the latencies
+     */
+    Map<String, Long> getStageP99QueryMicros();
+
+    /**
+     * Describes each retrieval currently holding a connection: its id, how long since it was submitted, the
+     * tuples found so far and its stages. State is read without waiting on the retrieval so a stuck one can
+     * still be described.
+     *
+     * @return one line per retrieval
+     */
+    String[] dumpActiveFlows();
+
+    /**
+     * Cancels an active retrieval. Its in-flight statements are cancelled directly before the retrieval itself
+     * so a retrieval stuck in a query is released.
+     *
+     * @param taskId the id shown by {@link #dumpActiveFlows()}
+     * @return true if the retrieval was found and cancelled
+     */
+    boolean cancelTask(String taskId);
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Holds the tuples of one parameter retrieval together with why it stopped and what each of its stages did,
+ * for tuning specifications and spotting regressions. Stage figures only cover the stages of this retrieval and
+ * use the same definitions as {@link MetricsSnapshot.Stage}, where the total of the query latencies is the time
+ * spent in JDBC and the total of the queue waits is the time spent queued on the event bus.
+ *
+ * @author kbrockhoff
+ */
+public final class FindParametersResult {
+
+    private final Set<Tuple> tuples;
+    private final TerminationReason terminationReason;
+    private final Throwable failure;
+    private final long elapsedNanos;
+    private final Map<String, MetricsSnapshot.Stage> stages;
+
+    FindParametersResult(Set<Tuple> tuples, TerminationReason terminationReason, Throwable failure,
+                         long elapsedNanos, Map<String, MetricsSnapshot.Stage> stages) {
+        this.tuples = Collections.unmodifiableSet(tuples);
+        this.terminationReason = terminationReason;
+        this.failure = failure;
+        this.elapsedNanos = elapsedNanos;
+        this.stages = Collections.unmodifiableMap(stages);
+    }
+
+    /**
+     * Returns the tuples retrieved, which may be fewer than desired unless the reason is
+     * {@link TerminationReason#DESIRED_SIZE_REACHED}.
+     *
+     * @return the tuples
+     */
+    public Set<Tuple> getTuples() {
+        return tuples;
+    }
+
+    /**
+     * Returns why the retrieval stopped.
+     *
+     * @return the reason
+     */
+    public TerminationReason getTerminationReason() {
+        return terminationReason;
+    }
+
+    /**
+     * Returns the exception the plain retrieval methods would have failed with, including the one raised when
+     * the specifications require the desired number of tuples and fewer were found.
+     *
+     * @return the failure or empty if the retrieval succeeded
+     */
+    public Optional<Throwable> getFailure() {
+        return Optional.ofNullable(failure);
+    }
+
+    /**
+     * Returns the time from the start of the retrieval's flow until it stopped.
+     *
+     * @return the duration in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the measurements of each stage of this retrieval.
+     *
+     * @return the stages keyed by table and column
+     */
+    public Map<String, MetricsSnapshot.Stage> getStages() {
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        return "FindParametersResult{tuples.size=" + tuples.size() + ", terminationReason=" + terminationReason
+                + ", elapsedNanos=" + elapsedNanos + ", stages=" + stages + '}';
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Defines the Java Flight Recorder events emitted by the pipeline. The JFR API is looked up reflectively so the
+ * library still builds and runs on JDKs without it, in which case every event type is simply never enabled.
+ * Event instances are only created while a recording has the event type enabled.
+ *
+ * @author kbrockhoff
+ */
+final class FlightEvents {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlightEvents.class);
+    private static final String PREFIX = "org.codekaizen.test.db.paramin.";
+    private static final String[] CATEGORY = {"Database", "Parameter Finder"};
+    private static final Api API = Api.lookup();
+
+    /**
+     * One execution of a stage's SQL statement including the reading of its rows.
+     */
+    static final Type STAGE_QUERY = new Type("StageQuery", "Stage Query",
+            "Execution of a pipeline stage's SQL statement and the reading of its rows",
+            new Field(String.class, "sql", "SQL", false),
+            new Field(String.class, "stage", "Stage", false),
+            new Field(long.class, "rowsRead", "Rows Read", false),
+            new Field(long.class, "rowsAccepted", "Rows Accepted", false));
+
+    /**
+     * Delivery of one event between two pipeline components by the event bus.
+     */
+    static final Type BUS_ROUTING = new Type("BusRouting", "Event Bus Routing",
+            "Delivery of a pipeline event from its sender to the component on the other end of the subscription",
+            new Field(String.class, "eventType", "Event Type", false),
+            new Field(String.class, "receiverId", "Receiver", false),
+            new Field(long.class, "queueWait", "Queue Wait", true));
+
+    /**
+     * One parameter retrieval from the start of its flow until its results are completed.
+     */
+    static final Type TASK = new Type("FindParametersTask", "Find Parameters Task",
+            "A parameter retrieval from the start of its flow until its results are completed",
+            new Field(String.class, "taskId", "Task", false),
+            new Field(String.class, "specs", "Specifications", false),
+            new Field(int.class, "desired", "Desired Results", false),
+            new Field(int.class, "found", "Results Found", false),
+            new Field(String.class, "outcome", "Outcome", false));
+
+    private FlightEvents() {
+        // utility class
+    }
+
+    /**
+     * Returns whether the running JDK supports flight recorder events.
+     *
+     * @return true if supported
+     */
+    static boolean isAvailable() {
+        return API != null;
+    }
+
+    /**
+     * A field of an event type.
+     */
+    static final class Field {
+
+        private final Class<?> type;
+        private final String name;
+        private final String label;
+        private final boolean nanos;
+
+        Field(Class<?> type, String name, String label, boolean nanos) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.nanos = nanos;
+        }
+
+    }
+
+    /**
+     * An event type defined through the JFR event factory.
+     */
+    static final class Type {
+
+        private final String name;
+        private final Object factory;
+        private final Object eventType;
+
+        Type(String simpleName, String label, String description, Field... fields) {
+            this.name = PREFIX + simpleName;
+            Object created = API == null ? null : API.define(name, label, description, fields);
+            this.factory = created;
+            this.eventType = created == null ? null : API.eventTypeOf(created);
+        }
+
+        /**
+         * Returns the fully qualified name recordings know the event type by.
+         *
+         * @return the name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Returns whether a running recording has this event type enabled.
+         *
+         * @return true if events should be created
+         */
+        boolean isEnabled() {
+            return eventType != null && API.isEnabled(eventType);
+        }
+
+        /**
+         * Creates an event and starts its timing if the event type is enabled.
+         *
+         * @return the event or null if disabled, in which case no further calls are needed
+         */
+        Object begin() {
+            if (!isEnabled()) {
+                return null;
+            }
+            return API.begin(factory);
+        }
+
+        /**
+         * Ends the timing of an event begun by this type, sets its fields in declaration order and commits it if
+         * it meets the recording's thresholds.
+         *
+         * @param event  the event returned by {@link #begin()} which may be null
+         * @param values the field values
+         */
+        void commit(Object event, Object... values) {
+            if (event != null) {
+                API.commit(event, values);
+            }
+        }
+
+    }
+
+    /**
+     * The reflectively resolved parts of the {@code jdk.jfr} API.
+     */
+    private static final class Api {
+
+        private final Constructor<?> annotationElement;
+        private final Constructor<?> valueDescriptor;
+        private final Method create;
+        private final Method getEventType;
+        private final Method isEnabled;
+        private final Method newEvent;
+        private final Method begin;
+        private final Method end;
+        private final Method shouldCommit;
+        private final Method commit;
+        private final Method set;
+        private final Class<? extends Annotation> nameAnnotation;
+        private final Class<? extends Annotation> labelAnnotation;
+        private final Class<? extends Annotation> descriptionAnnotation;
+        private final Class<? extends Annotation> categoryAnnotation;
+        private final Class<? extends Annotation> timespanAnnotation;
+
+        private Api() throws ReflectiveOperationException {
+            Class<?> elementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            annotationElement = elementClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+            create = factoryClass.getMethod("create", List.class, List.class);
+            getEventType = factoryClass.getMethod("getEventType");
+            isEnabled = eventTypeClass.getMethod("isEnabled");
+            newEvent = factoryClass.getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            nameAnnotation = annotation("jdk.jfr.Name");
+            labelAnnotation = annotation("jdk.jfr.Label");
+            descriptionAnnotation = annotation("jdk.jfr.Description");
+            categoryAnnotation = annotation("jdk.jfr.Category");
+            timespanAnnotation = annotation("jdk.jfr.Timespan");
+        }
+
+        static Api lookup() {
+            try {
+                return new Api();
+            } catch (ReflectiveOperationException | LinkageError | SecurityException cause) {
+                logger.debug("flight recorder events not supported by this JDK");
+                return null;
+            }
+        }
+
+        Object define(String name, String label, String description, Field... fields) {
+            try {
+                List<Object> annotations = Arrays.asList(
+                        annotationElement.newInstance(nameAnnotation, name),
+                        annotationElement.newInstance(labelAnnotation, label),
+                        annotationElement.newInstance(descriptionAnnotation, description),
+                        annotationElement.newInstance(categoryAnnotation, CATEGORY));
+                List<Object> descriptors = new ArrayList<>(fields.length);
+                for (Field field : fields) {
+                    List<Object> fieldAnnotations = new ArrayList<>(2);
+                    fieldAnnotations.add(annotationElement.newInstance(labelAnnotation, field.label));
+                    if (field.nanos) {
+                        fieldAnnotations.add(annotationElement.newInstance(timespanAnnotation, "NANOSECONDS"));
+                    }
+                    descriptors.add(valueDescriptor.newInstance(field.type, field.name,
+                            Collections.unmodifiableList(fieldAnnotations)));
+                }
+                return create.invoke(null, annotations, descriptors);
+            } catch (ReflectiveOperationException | RuntimeException cause) {
+                logger.warn("unable to define flight recorder event {}: {}", name, cause.getMessage());
+                return null;
+            }
+        }
+
+        Object eventTypeOf(Object factory) {
+            try {
+                return getEventType.invoke(factory);
+            } catch (ReflectiveOperationException | RuntimeException cause) {
+                logger.warn("unable to look up flight recorder event type: {}", cause.getMessage());
+                return null;
+            }
+        }
+
+        boolean isEnabled(Object eventType) {
+            try {
+                return (Boolean) isEnabled.invoke(eventType);
+            } catch (ReflectiveOperationException | RuntimeException cause) {
+                return false;
+            }
+        }
+
+        Object begin(Object factory) {
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            } catch (ReflectiveOperationException | RuntimeException cause) {
+                logger.debug("unable to begin flight recorder event: {}", cause.getMessage());
+                return null;
+            }
+        }
+
+        void commit(Object event, Object... values) {
+            try {
+                end.invoke(event);
+                if ((Boolean) shouldCommit.invoke(event)) {
+                    for (int i = 0; i < values.length; i++) {
+                        set.invoke(event, i, values[i]);
+                    }
+                    commit.invoke(event);
+                }
+            } catch (ReflectiveOperationException | RuntimeException cause) {
+                logger.debug("unable to commit flight recorder event: {}", cause.getMessage());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String className) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(className);
+        }
+
+    }
+
+}
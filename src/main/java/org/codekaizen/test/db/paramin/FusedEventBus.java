@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.EventObject;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Fuses the stages of a single task by giving each publisher and subscriber pair a direct {@link Link}. The
+ * subscriber receives the link as its {@link Subscription} and the publisher's {@link TupleBatcher} sends its
+ * tuples and terminal signals to it, so {@code request}, {@code onNext} and the rest are plain calls on the other
+ * stage with no event object, component lookup or shared bus thread involved.
+ *
+ * <p>A signal sent while a stage is itself being called is queued and made once that call returns, so a long
+ * exchange of requests and tuples does not grow the stack and each stage is called one signal at a time in the
+ * order sent. Only a signal from outside the loop, such as the task's first request or a cancellation, starts
+ * the loop on a worker, so no query runs on a thread which may hold the task's monitor and cancellation and time
+ * budgets can still interrupt in-flight SQL.</p>
+ *
+ * <p>Events published through {@link #publish(EventObject)} by components which do not use links are translated
+ * onto the links of their sender.</p>
+ *
+ * @author kbrockhoff
+ */
+class FusedEventBus implements EventBus {
+
+    private final Logger logger = LoggerFactory.getLogger(FusedEventBus.class);
+    private final Executor executor;
+    private final Map<String, Component> componentMap = new ConcurrentHashMap<>();
+    private final Map<String, Link> linksByPublisher = new ConcurrentHashMap<>();
+    private final Map<String, Link> linksBySubscriber = new ConcurrentHashMap<>();
+    private final Queue<Runnable> external = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final ArrayDeque<Runnable> local = new ArrayDeque<>();
+    private volatile Thread loopThread;
+
+    /**
+     * Constructs a bus.
+     *
+     * @param executor runs the delivery loop
+     */
+    FusedEventBus(Executor executor) {
+        checkNotNull(executor, "executor is required");
+        this.executor = executor;
+    }
+
+    @Override
+    public void registerReceiver(Component component) {
+        logger.trace("registerReceiver({})", component);
+        componentMap.put(component.getComponentId(), component);
+    }
+
+    @Override
+    public void unregisterReceiver(Component component) {
+        String componentId = component.getComponentId();
+        componentMap.remove(componentId);
+        Link upstream = linksBySubscriber.remove(componentId);
+        if (upstream != null) {
+            upstream.subscriber = null;
+        }
+        Link downstream = linksByPublisher.remove(componentId);
+        if (downstream != null) {
+            downstream.publisher = null;
+        }
+    }
+
+    /**
+     * Links a publishing stage directly to its subscriber and signals the subscriber with the link as its
+     * subscription. A subscriber which is not registered is never signalled.
+     *
+     * @param publisherId the publishing stage's component id
+     * @param publisher   the publishing stage
+     * @param subscriber  the subscriber
+     * @return the link the publisher sends its signals on
+     */
+    Link link(String publisherId, Subscription publisher, Subscriber<? super Tuple> subscriber) {
+        checkNotNull(publisher);
+        checkNotNull(subscriber);
+        String subscriberId = ((Component) subscriber).getComponentId();
+        Link link = new Link(publisher, componentMap.containsKey(subscriberId) ? subscriber : null);
+        linksByPublisher.put(publisherId, link);
+        linksBySubscriber.put(subscriberId, link);
+        submit(() -> {
+            Subscriber<? super Tuple> target = link.subscriber;
+            if (target != null) {
+                target.onSubscribe(link);
+            }
+        });
+        return link;
+    }
+
+    @Override
+    public boolean publish(EventObject event) {
+        logger.trace("publish({})", event);
+        String senderId = (String) event.getSource();
+        if (event instanceof OnSubscribeEvent) {
+            SubscriptionImpl subscription = (SubscriptionImpl) ((OnSubscribeEvent) event).getSubscription();
+            link(senderId, (Subscription) componentMap.get(senderId), subscription.getSubscriber());
+            return true;
+        }
+        Link link = event instanceof RequestEvent || event instanceof CancelEvent
+                ? linksBySubscriber.get(senderId) : linksByPublisher.get(senderId);
+        if (link == null) {
+            logger.warn("no subscription link for {} from componentId={}", event.getClass().getSimpleName(),
+                    senderId);
+            return false;
+        }
+        if (event instanceof RequestEvent) {
+            link.request(((RequestEvent) event).getNumber());
+        } else if (event instanceof CancelEvent) {
+            link.cancel();
+        } else if (event instanceof OnNextEvent) {
+            link.onNext(((OnNextEvent) event).getItem());
+        } else if (event instanceof OnNextBatchEvent) {
+            link.onNextBatch(((OnNextBatchEvent) event).getItems());
+        } else if (event instanceof OnCompleteEvent) {
+            link.onComplete();
+        } else if (event instanceof OnErrorEvent) {
+            link.onError(((OnErrorEvent) event).getThrowable());
+        }
+        return true;
+    }
+
+    private void submit(Runnable signal) {
+        if (Thread.currentThread() == loopThread) {
+            local.offer(signal);
+            return;
+        }
+        external.offer(signal);
+        if (outstanding.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        loopThread = Thread.currentThread();
+        try {
+            int missed = 1;
+            do {
+                for (int i = 0; i < missed; i++) {
+                    run(external.poll());
+                    Runnable next;
+                    while ((next = local.poll()) != null) {
+                        run(next);
+                    }
+                }
+                missed = outstanding.addAndGet(-missed);
+            } while (missed != 0);
+        } finally {
+            loopThread = null;
+        }
+    }
+
+    private void run(Runnable signal) {
+        try {
+            signal.run();
+        } catch (RuntimeException cause) {
+            logger.error("unable to deliver signal", cause);
+        }
+    }
+
+    /**
+     * One subscription with both of its stages held directly. The subscriber calls it as its subscription and
+     * the publisher's batcher calls it to signal the subscriber.
+     */
+    class Link implements Subscription {
+
+        private final boolean batching;
+        private volatile Subscription publisher;
+        private volatile Subscriber<? super Tuple> subscriber;
+
+        Link(Subscription publisher, Subscriber<? super Tuple> subscriber) {
+            this.batching = subscriber instanceof BatchSubscriber;
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            submit(() -> {
+                Subscription target = publisher;
+                if (target != null) {
+                    target.request(n);
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            submit(() -> {
+                Subscription target = publisher;
+                if (target != null) {
+                    target.cancel();
+                }
+            });
+        }
+
+        void onNext(Tuple item) {
+            submit(() -> {
+                Subscriber<? super Tuple> target = subscriber;
+                if (target != null) {
+                    target.onNext(item);
+                }
+            });
+        }
+
+        void onNextBatch(List<Tuple> items) {
+            submit(() -> {
+                Subscriber<? super Tuple> target = subscriber;
+                if (target == null) {
+                    return;
+                }
+                if (batching) {
+                    ((BatchSubscriber) target).onNextBatch(items);
+                } else {
+                    items.forEach(target::onNext);
+                }
+            });
+        }
+
+        void onComplete() {
+            submit(() -> {
+                Subscriber<? super Tuple> target = subscriber;
+                if (target != null) {
+                    target.onComplete();
+                }
+            });
+        }
+
+        void onError(Throwable throwable) {
+            submit(() -> {
+                Subscriber<? super Tuple> target = subscriber;
+                if (target != null) {
+                    target.onError(throwable);
+                }
+            });
+        }
+
+    }
+
+}
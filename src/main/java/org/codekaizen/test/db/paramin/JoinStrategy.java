@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+/**
+ * Enumerates the ways the tables of previously specified parameters can constrain the table being queried.
+ *
+ * @author kbrockhoff
+ */
+public enum JoinStrategy {
+
+    /**
+     * Joins all tables with {@code INNER JOIN}. Rows are multiplied when join columns are not unique.
+     */
+    INNER_JOIN,
+    /**
+     * Constrains the queried table with nested {@code WHERE EXISTS (...)} semi-joins and selects distinct values.
+     */
+    EXISTS,
+    /**
+     * Constrains the queried table with nested {@code IN (SELECT ...)} semi-joins and selects distinct values.
+     * Joins on more than one column pair fall back to {@code EXISTS}.
+     */
+    IN,
+    ;
+
+}
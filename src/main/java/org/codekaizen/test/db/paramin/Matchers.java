@@ -15,11 +15,14 @@
  */
 package org.codekaizen.test.db.paramin;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.regex.Pattern;
 
 /**
- * Provides standard implementations of {@link Matcher}.
+ * Provides standard implementations of {@link Matcher}. The matchers returned are equal to any other returned
+ * for the same arguments, so equal specifications built separately share cached dead ends.
  *
  * @author kbrockhoff
  */
@@ -32,7 +35,7 @@ public class Matchers {
      * @return the acceptor
      */
     public static <T extends Comparable<? super T>> Matcher<T> newAllAcceptor() {
-        return value -> true;
+        return new ValueMatcher<>("all", value -> true);
     }
 
     /**
@@ -43,7 +46,8 @@ public class Matchers {
      * @return the acceptor
      */
     public static <T extends Comparable<? super T>> Matcher<T> newValidListAcceptor(List<T> acceptableValues) {
-        return value -> acceptableValues.contains(value);
+        List<T> values = new ArrayList<>(acceptableValues);
+        return new ValueMatcher<>("in " + describe(values), values::contains);
     }
 
     /**
@@ -55,9 +59,9 @@ public class Matchers {
      * @return the acceptor
      */
     public static <T extends Comparable<? super T>> Matcher<T> newMinMaxAcceptor(T min, T max) {
-        return value ->
+        return new ValueMatcher<>("from " + describe(min) + " to " + describe(max), value ->
                 (min == null ? true : min.compareTo(value) <= 0) &&
-                        (max == null ? true : max.compareTo(value) > 0);
+                        (max == null ? true : max.compareTo(value) > 0));
     }
 
     /**
@@ -67,11 +71,59 @@ public class Matchers {
      * @return the acceptor
      */
     public static Matcher<String> newRegexStringAcceptor(Pattern pattern) {
-        return value -> pattern.matcher(value).find();
+        return new ValueMatcher<>("regex " + pattern.pattern() + " flags " + pattern.flags(),
+                value -> pattern.matcher(value).find());
     }
 
     private Matchers() {
         // static methods only
     }
 
+    private static String describe(Object value) {
+        if (value instanceof List) {
+            List<String> described = new ArrayList<>();
+            ((List<?>) value).forEach(element -> described.add(describe(element)));
+            return described.toString();
+        }
+        return value == null ? "null" : value.getClass().getName() + ':' + value;
+    }
+
+    /**
+     * Matcher whose identity is a description of what it accepts.
+     */
+    private static final class ValueMatcher<T extends Comparable<? super T>> implements Matcher<T> {
+
+        private final String description;
+        private final Matcher<T> delegate;
+
+        ValueMatcher(String description, Matcher<T> delegate) {
+            this.description = description;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isAcceptableValue(T value) {
+            return delegate.isAcceptableValue(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ValueMatcher<?> that = (ValueMatcher<?>) o;
+            return Objects.equals(description, that.description);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(description);
+        }
+
+        @Override
+        public String toString() {
+            return "Matcher " + description;
+        }
+
+    }
+
 }
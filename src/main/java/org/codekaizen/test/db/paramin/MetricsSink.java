@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+/**
+ * Receives the measurements a {@link FindParametersExecutor} takes of its retrievals as they are taken so they
+ * can be bridged to an external monitoring system. Implementations are called on the threads doing the work
+ * and so must be thread-safe and quick. The same measurements are also accumulated by the executor and
+ * available from {@link FindParametersExecutor#getMetricsSnapshot()} whether or not a sink is set.
+ *
+ * @author kbrockhoff
+ */
+public interface MetricsSink {
+
+    /** Number of SQL queries executed by a stage. */
+    String STAGE_QUERIES = "stage.queries";
+    /** Number of rows a stage read from its result sets. */
+    String STAGE_ROWS_FETCHED = "stage.rows.fetched";
+    /** Number of rows a stage read whose value the spec's matcher rejected. */
+    String STAGE_ROWS_REJECTED = "stage.rows.rejected";
+    /** Number of values or tuples a stage discarded because it had already produced them. */
+    String STAGE_DEDUP_HITS = "stage.dedup.hits";
+    /** Time for a stage query to return its result set. */
+    String STAGE_QUERY_LATENCY = "stage.query.latency";
+    /** Time signals for a stage spent queued on the event bus before being delivered to it. */
+    String STAGE_QUEUE_WAIT = "stage.queue.wait";
+    /** Time a subscription edge with signals waiting spent ready before the event bus serviced it. */
+    String BUS_ROUTING_LATENCY = "bus.routing.latency";
+    /** Change in the number of retrievals holding a connection. */
+    String TASKS_IN_FLIGHT = "tasks.inflight";
+    /** Time from submitting a retrieval until it finished. */
+    String TASK_LATENCY = "task.latency";
+    /** Time from submitting a retrieval until it obtained its connection. */
+    String CONNECTION_WAIT = "connection.wait";
+
+    /**
+     * Adds to a counter.
+     *
+     * @param metric the metric name such as {@link #STAGE_QUERIES}
+     * @param stage  the stage the measurement is for, identified by table and column, or null if not per stage
+     * @param delta  the amount to add which may be negative for {@link #TASKS_IN_FLIGHT}
+     */
+    void increment(String metric, String stage, long delta);
+
+    /**
+     * Records one observation of a duration.
+     *
+     * @param metric the metric name such as {@link #STAGE_QUERY_LATENCY}
+     * @param stage  the stage the measurement is for, identified by table and column, or null if not per stage
+     * @param nanos  the duration in nanoseconds
+     */
+    void recordNanos(String metric, String stage, long nanos);
+
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Point in time copy of the measurements a {@link FindParametersExecutor} has accumulated since it was
+ * constructed. Counts are cumulative except for the in-flight, queue depth and connection figures which are
+ * current values.
+ *
+ * @author kbrockhoff
+ */
+public final class MetricsSnapshot {
+
+    private final Map<String, Stage> stages;
+    private final Latency taskLatency;
+    private final Latency connectionWait;
+    private final Latency routingLatency;
+    private final long tasksInFlight;
+    private final int eventQueueDepth;
+    private final int eventQueueHighWaterMark;
+    private final long eventQueueRejections;
+    private final int connectionsLeased;
+    private final int retrievalsWaiting;
+    private final long hedges;
+    private final long hedgeWins;
+
+    MetricsSnapshot(Map<String, Stage> stages, Latency taskLatency, Latency connectionWait, Latency routingLatency,
+                    long tasksInFlight, int eventQueueDepth, int eventQueueHighWaterMark, long eventQueueRejections,
+                    int connectionsLeased, int retrievalsWaiting, long hedges, long hedgeWins) {
+        this.stages = Collections.unmodifiableMap(stages);
+        this.taskLatency = taskLatency;
+        this.connectionWait = connectionWait;
+        this.routingLatency = routingLatency;
+        this.tasksInFlight = tasksInFlight;
+        this.eventQueueDepth = eventQueueDepth;
+        this.eventQueueHighWaterMark = eventQueueHighWaterMark;
+        this.eventQueueRejections = eventQueueRejections;
+        this.connectionsLeased = connectionsLeased;
+        this.retrievalsWaiting = retrievalsWaiting;
+        this.hedges = hedges;
+        this.hedgeWins = hedgeWins;
+    }
+
+    /**
+     * Returns the measurements of each stage which has run a query, keyed by the stage's table and column.
+     *
+     * @return the stage metrics
+     */
+    public Map<String, Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Returns the time from submitting each finished retrieval until it finished.
+     *
+     * @return the latencies
+     */
+    public Latency getTaskLatency() {
+        return taskLatency;
+    }
+
+    /**
+     * Returns the time from submitting each retrieval until it obtained its connection.
+     *
+     * @return the latencies
+     */
+    public Latency getConnectionWait() {
+        return connectionWait;
+    }
+
+    /**
+     * Returns the time subscription edges spent ready before the event bus serviced them.
+     *
+     * @return the latencies
+     */
+    public Latency getRoutingLatency() {
+        return routingLatency;
+    }
+
+    /**
+     * Returns the number of retrievals currently holding a connection.
+     *
+     * @return the count
+     */
+    public long getTasksInFlight() {
+        return tasksInFlight;
+    }
+
+    /**
+     * Returns the number of tuple events currently queued on the event bus.
+     *
+     * @return the depth
+     */
+    public int getEventQueueDepth() {
+        return eventQueueDepth;
+    }
+
+    /**
+     * Returns the most tuple events the event bus has held queued at once.
+     *
+     * @return the high water mark
+     */
+    public int getEventQueueHighWaterMark() {
+        return eventQueueHighWaterMark;
+    }
+
+    /**
+     * Returns the number of tuple events the event bus has refused for lack of room.
+     *
+     * @return the count
+     */
+    public long getEventQueueRejections() {
+        return eventQueueRejections;
+    }
+
+    /**
+     * Returns the number of connections currently leased against the executor's connection limit.
+     *
+     * @return the count
+     */
+    public int getConnectionsLeased() {
+        return connectionsLeased;
+    }
+
+    /**
+     * Returns the number of retrievals currently waiting for a connection.
+     *
+     * @return the count
+     */
+    public int getRetrievalsWaiting() {
+        return retrievalsWaiting;
+    }
+
+    /**
+     * Returns the number of stage queries which have been hedged.
+     *
+     * @return the count
+     */
+    public long getHedges() {
+        return hedges;
+    }
+
+    /**
+     * Returns the number of hedged stage queries where the hedge returned first.
+     *
+     * @return the count
+     */
+    public long getHedgeWins() {
+        return hedgeWins;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{stages=" + stages + ", taskLatency=" + taskLatency + ", connectionWait="
+                + connectionWait + ", routingLatency=" + routingLatency + ", tasksInFlight=" + tasksInFlight
+                + ", eventQueueDepth=" + eventQueueDepth + ", eventQueueHighWaterMark=" + eventQueueHighWaterMark
+                + ", eventQueueRejections=" + eventQueueRejections + ", connectionsLeased=" + connectionsLeased
+                + ", retrievalsWaiting=" + retrievalsWaiting + ", hedges=" + hedges + ", hedgeWins=" + hedgeWins
+                + '}';
+    }
+
+    /**
+     * Measurements of one stage.
+     */
+    public static final class Stage {
+
+        private final long queries;
+        private final long rowsFetched;
+        private final long rowsRejected;
+        private final long dedupHits;
+        private final Latency queryLatency;
+        private final Latency queueWait;
+
+        Stage(long queries, long rowsFetched, long rowsRejected, long dedupHits, Latency queryLatency,
+              Latency queueWait) {
+            this.queries = queries;
+            this.rowsFetched = rowsFetched;
+            this.rowsRejected = rowsRejected;
+            this.dedupHits = dedupHits;
+            this.queryLatency = queryLatency;
+            this.queueWait = queueWait;
+        }
+
+        /**
+         * Returns the number of SQL queries executed.
+         *
+         * @return the count
+         */
+        public long getQueries() {
+            return queries;
+        }
+
+        /**
+         * Returns the number of rows read from result sets.
+         *
+         * @return the count
+         */
+        public long getRowsFetched() {
+            return rowsFetched;
+        }
+
+        /**
+         * Returns the number of rows read whose value the matcher rejected.
+         *
+         * @return the count
+         */
+        public long getRowsRejected() {
+            return rowsRejected;
+        }
+
+        /**
+         * Returns the number of rows read whose value the matcher accepted.
+         *
+         * @return the count
+         */
+        public long getRowsAccepted() {
+            return rowsFetched - rowsRejected;
+        }
+
+        /**
+         * Returns the number of values or tuples discarded because they had already been produced.
+         *
+         * @return the count
+         */
+        public long getDedupHits() {
+            return dedupHits;
+        }
+
+        /**
+         * Returns the time for queries to return their result sets.
+         *
+         * @return the latencies
+         */
+        public Latency getQueryLatency() {
+            return queryLatency;
+        }
+
+        /**
+         * Returns the time signals for the stage spent queued on the event bus before delivery.
+         *
+         * @return the waits
+         */
+        public Latency getQueueWait() {
+            return queueWait;
+        }
+
+        @Override
+        public String toString() {
+            return "Stage{queries=" + queries + ", rowsFetched=" + rowsFetched + ", rowsRejected=" + rowsRejected
+                    + ", dedupHits=" + dedupHits + ", queryLatency=" + queryLatency + ", queueWait=" + queueWait + '}';
+        }
+
+    }
+
+    /**
+     * Distribution of observed durations held in power of two buckets, so percentiles are accurate to within a
+     * factor of two.
+     */
+    public static final class Latency {
+
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        Latency(long count, long totalNanos, long maxNanos, long[] buckets) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        /**
+         * Returns the number of observations.
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of the observed durations.
+         *
+         * @return the total in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Returns the longest observed duration.
+         *
+         * @return the maximum in nanoseconds
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns the mean observed duration.
+         *
+         * @return the mean in nanoseconds or zero if nothing was observed
+         */
+        public long getMeanNanos() {
+            return count == 0L ? 0L : totalNanos / count;
+        }
+
+        /**
+         * Returns an upper bound on the supplied percentile of the observed durations.
+         *
+         * @param percentile the percentile between 0 and 1 such as 0.99
+         * @return the upper bound of the bucket holding the percentile, never more than the maximum, in
+         *         nanoseconds or zero if nothing was observed
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0L) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(Math.min(1.0, Math.max(0.0, percentile)) * count));
+            long seen = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(maxNanos, i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Latency{count=" + count + ", meanNanos=" + getMeanNanos() + ", p99Nanos="
+                    + getPercentileNanos(0.99) + ", maxNanos=" + maxNanos + '}';
+        }
+
+    }
+
+}
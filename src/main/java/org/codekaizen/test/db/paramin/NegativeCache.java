@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Remembers upstream tuples for which a stage's query returned no acceptable value so they can be skipped
+ * without another round trip. Entries are keyed by the data source queried, by the stage plan, which is the SQL
+ * statement plus the matcher applied to its results, and by the values bound to the statement. Matchers are
+ * compared by equality, so the standard ones from {@link Matchers} built separately for the same arguments
+ * share entries while custom ones only share entries with themselves. The cache holds at most a fixed
+ * number of entries, evicting the least recently used, and each entry expires after a fixed time so changes
+ * to the data are eventually seen.
+ *
+ * @author kbrockhoff
+ */
+class NegativeCache {
+
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final Map<List<Object>, Long> entries;
+    private long hits = 0L;
+    private long misses = 0L;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxEntries the maximum number of dead ends remembered with zero disabling the cache
+     * @param timeToLive how long a dead end is remembered
+     */
+    NegativeCache(int maxEntries, Duration timeToLive) {
+        checkArgument(maxEntries >= 0, "maxEntries cannot be negative");
+        checkNotNull(timeToLive, "timeToLive is required");
+        checkArgument(!timeToLive.isNegative(), "timeToLive cannot be negative");
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.entries = new LinkedHashMap<List<Object>, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Long> eldest) {
+                return size() > NegativeCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns whether the plan is known to produce no acceptable value for the bound values.
+     *
+     * @param source  the data source queried or null if there is only one
+     * @param sql     the stage statement
+     * @param matcher the matcher applied to the statement results
+     * @param values  the values bound to the statement
+     * @return true if a dead end
+     */
+    synchronized boolean isDeadEnd(Object source, String sql, Matcher<?> matcher, List<Object> values) {
+        if (maxEntries == 0) {
+            return false;
+        }
+        List<Object> key = constructKey(source, sql, matcher, values);
+        Long expiresAt = entries.get(key);
+        if (expiresAt != null && expiresAt - System.nanoTime() > 0L) {
+            hits++;
+            return true;
+        }
+        if (expiresAt != null) {
+            entries.remove(key);
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Records that the plan produced no acceptable value for the bound values.
+     *
+     * @param source  the data source queried or null if there is only one
+     * @param sql     the stage statement
+     * @param matcher the matcher applied to the statement results
+     * @param values  the values bound to the statement
+     */
+    synchronized void recordDeadEnd(Object source, String sql, Matcher<?> matcher, List<Object> values) {
+        if (maxEntries > 0) {
+            entries.put(constructKey(source, sql, matcher, values), System.nanoTime() + timeToLiveNanos);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private List<Object> constructKey(Object source, String sql, Matcher<?> matcher, List<Object> values) {
+        return Arrays.asList(source, sql, matcher, new ArrayList<>(values));
+    }
+
+}
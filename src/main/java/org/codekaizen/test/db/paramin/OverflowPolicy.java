@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+/**
+ * Enumerates what a stage publishing a tuple does when the event bus queue is full or already holds as many of
+ * that stage's tuples as one stage is allowed. Stages publishing on the bus thread itself, and signals other
+ * than tuples, are never held back so the bus can always drain.
+ *
+ * @author kbrockhoff
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Waits on a condition the bus signals as it drains tuples, for as long as it takes room to appear. The wait
+     * ends early only when the flow is cancelled or its deadline expires, which unregisters its stages and drops
+     * the pending tuple.
+     */
+    BLOCK,
+    /**
+     * Yields briefly, then parks in short intervals while rechecking, trading some CPU for lower latency than
+     * {@link #BLOCK} when the queue only fills momentarily. Like {@link #BLOCK}, it waits until room appears or
+     * the flow ends.
+     */
+    SPIN_THEN_PARK,
+    /**
+     * Fails the flow immediately by signalling an error to the stage's subscriber and dropping the stage's later
+     * tuples.
+     */
+    FAIL,
+    ;
+
+}
@@ -229,6 +229,15 @@ public class ParamSpec<T extends Comparable<? super T>> {
         return javaType;
     }
 
+    /**
+     * Returns the matcher used to determine valid values.
+     *
+     * @return the matcher
+     */
+    Matcher<T> getMatcher() {
+        return matcher;
+    }
+
     /**
      * Returns whether the supplied value is determined to be valid using the spec's matcher.
      *
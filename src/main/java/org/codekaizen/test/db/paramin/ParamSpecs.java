@@ -18,9 +18,13 @@ package org.codekaizen.test.db.paramin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.StringJoiner;
 
 import static org.codekaizen.test.db.paramin.Preconditions.*;
@@ -43,16 +47,30 @@ public class ParamSpecs {
         return new ParamSpecs(firstSpec);
     }
 
+    private static final double DEFAULT_SAMPLE_PERCENT = 10.0;
+    private static final int RANDOM_PRE_LIMIT_MULTIPLE = 10;
+    private static final int DEFAULT_MAX_ROWS_SCANNED = 100000;
+
     private Logger logger = LoggerFactory.getLogger(ParamSpecs.class);
     private String schema;
     private Node first;
     private Node last;
     private int desiredTuplesSetSize = 1;
     private boolean throwingExceptionIfAvailableSizeLessThanDesiredSize = false;
+    private JoinStrategy joinStrategy = JoinStrategy.INNER_JOIN;
+    private SamplingMode samplingMode = SamplingMode.NONE;
+    private double samplePercent = DEFAULT_SAMPLE_PERCENT;
+    private int maxRowsScanned = DEFAULT_MAX_ROWS_SCANNED;
+    private Long randomSeed;
+    private int partitionCount = 1;
+    private PartitionStrategy partitionStrategy = PartitionStrategy.HASH;
+    private String partitionColumn;
+    private int queryTimeout = 0;
+    private Duration timeBudget;
 
     private ParamSpecs(ParamSpec firstSpec) {
         checkNotNull(firstSpec);
-        Node node = new Node(null, new JoinPair[0], firstSpec, null);
+        Node node = new Node(null, null, new JoinPair[0], firstSpec, null);
         first = node;
         last = node;
     }
@@ -66,9 +84,27 @@ public class ParamSpecs {
      * @return this object
      */
     public ParamSpecs join(ParamSpec<?> spec, JoinPair... on) {
+        return joinTo(last.item, spec, on);
+    }
+
+    /**
+     * Adds another parameter specification joined to any previously added specification. Specifications
+     * joined to the same parent form independent branches whose values are retrieved concurrently.
+     *
+     * @param parent the previously added requirement to join with
+     * @param spec   the requirement
+     * @param on     the database join columns with the table in the parent spec; the column in the
+     *               parent table should be first in each pair
+     * @return this object
+     * @throws IllegalArgumentException if the parent has not been previously added
+     */
+    public ParamSpecs joinTo(ParamSpec<?> parent, ParamSpec<?> spec, JoinPair... on) {
+        checkNotNull(parent);
         checkNotNull(spec);
         checkArgument(on.length > 0, "at least one join column must be supplied");
-        Node node = new Node(last, on, spec, null);
+        Node parentNode = findNode(parent);
+        checkArgument(parentNode != null, "parent must be added before joining to it");
+        Node node = new Node(last, parentNode, on, spec, null);
         last.next = node;
         last = node;
         return this;
@@ -135,6 +171,224 @@ public class ParamSpecs {
         return this;
     }
 
+    /**
+     * Returns how the tables of previous specs constrain the table queried for each spec.
+     *
+     * @return the join strategy
+     */
+    public JoinStrategy getJoinStrategy() {
+        return joinStrategy;
+    }
+
+    /**
+     * Sets how the tables of previous specs constrain the table queried for each spec. The semi-join strategies
+     * suit joined specs which are only there to constrain their parent since rows are not multiplied by the joins
+     * and duplicate values are eliminated by the database.
+     *
+     * @param joinStrategy the join strategy
+     * @return this object
+     */
+    public ParamSpecs joinUsing(JoinStrategy joinStrategy) {
+        checkNotNull(joinStrategy, "joinStrategy cannot be null");
+        this.joinStrategy = joinStrategy;
+        return this;
+    }
+
+    /**
+     * Returns how the initial query samples values of the first spec.
+     *
+     * @return the sampling mode
+     */
+    public SamplingMode getSamplingMode() {
+        return samplingMode;
+    }
+
+    /**
+     * Returns the percentage of the table sampled when using {@link SamplingMode#TABLESAMPLE}.
+     *
+     * @return the sample percentage
+     */
+    public double getSamplePercent() {
+        return samplePercent;
+    }
+
+    /**
+     * Sets how the initial query samples values of the first spec so a representative spread of values is
+     * retrieved instead of the first rows physically stored.
+     *
+     * @param samplingMode the sampling mode
+     * @return this object
+     */
+    public ParamSpecs sampleUsing(SamplingMode samplingMode) {
+        return sampleUsing(samplingMode, samplePercent);
+    }
+
+    /**
+     * Sets how the initial query samples values of the first spec and the percentage of the table sampled
+     * when using {@link SamplingMode#TABLESAMPLE}.
+     *
+     * @param samplingMode  the sampling mode
+     * @param samplePercent the percentage of the table to sample
+     * @return this object
+     */
+    public ParamSpecs sampleUsing(SamplingMode samplingMode, double samplePercent) {
+        checkNotNull(samplingMode, "samplingMode cannot be null");
+        checkArgument(samplePercent > 0.0 && samplePercent <= 100.0, "samplePercent must be between 0 and 100");
+        this.samplingMode = samplingMode;
+        this.samplePercent = samplePercent;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of rows read by the initial query when using {@link SamplingMode#RESERVOIR}.
+     *
+     * @return the row count
+     */
+    public int getMaxRowsScanned() {
+        return maxRowsScanned;
+    }
+
+    /**
+     * Sets the maximum number of rows read by the initial query when using {@link SamplingMode#RESERVOIR}.
+     *
+     * @param maxRowsScanned the row count
+     * @return this object
+     */
+    public ParamSpecs scanningAtMost(int maxRowsScanned) {
+        checkArgument(maxRowsScanned > 0, "maxRowsScanned must be greater than zero");
+        this.maxRowsScanned = maxRowsScanned;
+        return this;
+    }
+
+    /**
+     * Returns the seed used for client-side random sampling if one has been specified.
+     *
+     * @return the seed
+     */
+    public Optional<Long> getRandomSeed() {
+        return Optional.ofNullable(randomSeed);
+    }
+
+    /**
+     * Sets the seed used for client-side random sampling so runs are reproducible.
+     *
+     * @param randomSeed the seed
+     * @return this object
+     */
+    public ParamSpecs seededWith(long randomSeed) {
+        this.randomSeed = randomSeed;
+        return this;
+    }
+
+    /**
+     * Returns the number of partitions the initial query is split into.
+     *
+     * @return the partition count which is one if not partitioned
+     */
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Returns how the initial query is split into partitions.
+     *
+     * @return the partition strategy
+     */
+    public PartitionStrategy getPartitionStrategy() {
+        return partitionStrategy;
+    }
+
+    /**
+     * Returns the column used to partition the initial query if it is not the first spec's column.
+     *
+     * @return the column name
+     */
+    public Optional<String> getPartitionColumn() {
+        return Optional.ofNullable(partitionColumn);
+    }
+
+    /**
+     * Splits the initial query into partitions on the first spec's column which are each scanned on their own
+     * connection in parallel. Range partitioning requires the column to be numeric while hash partitioning a
+     * non-numeric column requires a dialect with a hash function accepting any type.
+     *
+     * @param partitionCount    the number of partitions
+     * @param partitionStrategy how rows are assigned to partitions
+     * @return this object
+     */
+    public ParamSpecs partitionInitialScan(int partitionCount, PartitionStrategy partitionStrategy) {
+        return partitionInitialScan(partitionCount, partitionStrategy, null);
+    }
+
+    /**
+     * Splits the initial query into partitions which are each scanned on their own connection in parallel.
+     *
+     * @param partitionCount    the number of partitions
+     * @param partitionStrategy how rows are assigned to partitions
+     * @param partitionColumn   the numeric column in the first spec's table to partition on or {@code null} to
+     *                          use the first spec's column
+     * @return this object
+     * @throws IllegalArgumentException if range partitioning on the first spec's column which is not numeric
+     */
+    public ParamSpecs partitionInitialScan(int partitionCount, PartitionStrategy partitionStrategy,
+                                           String partitionColumn) {
+        checkArgument(partitionCount > 0, "partitionCount must be greater than zero");
+        checkNotNull(partitionStrategy, "partitionStrategy cannot be null");
+        this.partitionCount = partitionCount;
+        this.partitionStrategy = partitionStrategy;
+        this.partitionColumn = emptyToNull(partitionColumn);
+        checkArgument(partitionCount == 1 || partitionStrategy != PartitionStrategy.RANGE
+                        || isPartitionColumnNumeric(),
+                "range partitioning requires a numeric partitionColumn when the first spec's column is not numeric");
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of seconds any single query is allowed to execute.
+     *
+     * @return the timeout in seconds with zero meaning no limit
+     */
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * Sets the maximum number of seconds any single query is allowed to execute before the driver cancels it
+     * and the retrieval fails.
+     *
+     * @param queryTimeout the timeout in seconds with zero meaning no limit
+     * @return this object
+     */
+    public ParamSpecs timeoutQueriesAfter(int queryTimeout) {
+        checkArgument(queryTimeout >= 0, "queryTimeout cannot be negative");
+        this.queryTimeout = queryTimeout;
+        return this;
+    }
+
+    /**
+     * Returns the total time the retrieval is allowed to take if one has been specified.
+     *
+     * @return the budget
+     */
+    public Optional<Duration> getTimeBudget() {
+        return Optional.ofNullable(timeBudget);
+    }
+
+    /**
+     * Sets the total time the retrieval is allowed to take. Once it expires any outstanding queries are
+     * cancelled and the tuples found so far are returned. An exception is only thrown if so configured by
+     * {@link #throwExceptionIfAvailableSizeIsLessThanDesiredSize(boolean)}.
+     *
+     * @param timeBudget the budget
+     * @return this object
+     */
+    public ParamSpecs completeWithin(Duration timeBudget) {
+        checkNotNull(timeBudget, "timeBudget cannot be null");
+        checkArgument(!timeBudget.isNegative() && !timeBudget.isZero(), "timeBudget must be positive");
+        this.timeBudget = timeBudget;
+        return this;
+    }
+
     /**
      * Returns the parameter requirements in defined order.
      *
@@ -159,20 +413,23 @@ public class ParamSpecs {
      */
     public String getSqlStatement(ParamSpec<?> spec) {
         checkNotNull(spec);
+        Node target = findNode(spec);
+        checkArgument(target != null, "spec is not part of these specifications");
+        if (joinStrategy != JoinStrategy.INNER_JOIN) {
+            return getSemiJoinSqlStatement(target);
+        }
         StringJoiner columns = new StringJoiner(", ");
         StringBuilder tables = new StringBuilder();
         StringJoiner where = new StringJoiner(" AND ");
-        Node node = first;
-        char alias = 'a';
-        while (node != null) {
-            String aliasStr = alias + ".";
+        for (Node node : getPath(target)) {
+            String aliasStr = getAlias(node) + ".";
             if (tables.length() == 0) {
-                tables.append(constructTableName(node.item)).append(" ").append(alias);
+                tables.append(constructTableName(node.item)).append(" ").append(getAlias(node));
             } else {
                 tables.append(" INNER JOIN ")
-                        .append(constructTableName(node.item)).append(" ").append(alias)
+                        .append(constructTableName(node.item)).append(" ").append(getAlias(node))
                         .append(" ON ");
-                String pAliasStr = ((char) (alias - 1)) + ".";
+                String pAliasStr = getAlias(node.parent) + ".";
                 for (int i = 0; i < node.on.length; i++) {
                     if (i > 0) {
                         tables.append(" AND ");
@@ -182,14 +439,11 @@ public class ParamSpecs {
                 }
             }
             node.item.getWhere().forEach(c -> where.add(aliasStr + c));
-            if (spec.equals(node.item)) {
+            if (node == target) {
                 columns.add(aliasStr + node.item.getColumn().toLowerCase());
-                break;
             } else {
                 where.add(aliasStr + node.item.getColumn().toLowerCase() + " = ?");
             }
-            node = node.next;
-            alias++;
         }
         StringBuilder builder = new StringBuilder();
         builder.append("SELECT ").append(columns).append(" FROM ").append(tables);
@@ -203,7 +457,10 @@ public class ParamSpecs {
 
     @Override
     public int hashCode() {
-        return Objects.hash(getSchema(), getParamSpecs(), getDesiredTuplesSetSize());
+        return Objects.hash(getSchema(), getParamSpecs(), getMatchers(), getJoinShape(), getDesiredTuplesSetSize(),
+                throwingExceptionIfAvailableSizeLessThanDesiredSize, joinStrategy, samplingMode, samplePercent,
+                maxRowsScanned, randomSeed, partitionCount, partitionStrategy, partitionColumn, queryTimeout,
+                timeBudget);
     }
 
     @Override
@@ -212,8 +469,22 @@ public class ParamSpecs {
         if (o == null || getClass() != o.getClass()) return false;
         ParamSpecs that = (ParamSpecs) o;
         return getDesiredTuplesSetSize() == that.getDesiredTuplesSetSize() &&
+                throwingExceptionIfAvailableSizeLessThanDesiredSize ==
+                        that.throwingExceptionIfAvailableSizeLessThanDesiredSize &&
+                Double.compare(samplePercent, that.samplePercent) == 0 &&
+                maxRowsScanned == that.maxRowsScanned &&
+                partitionCount == that.partitionCount &&
+                queryTimeout == that.queryTimeout &&
+                joinStrategy == that.joinStrategy &&
+                samplingMode == that.samplingMode &&
+                partitionStrategy == that.partitionStrategy &&
+                Objects.equals(randomSeed, that.randomSeed) &&
+                Objects.equals(partitionColumn, that.partitionColumn) &&
+                Objects.equals(timeBudget, that.timeBudget) &&
                 Objects.equals(getSchema(), that.getSchema()) &&
-                Objects.equals(getParamSpecs(), that.getParamSpecs());
+                Objects.equals(getParamSpecs(), that.getParamSpecs()) &&
+                Objects.equals(getMatchers(), that.getMatchers()) &&
+                Objects.equals(getJoinShape(), that.getJoinShape());
     }
 
     @Override
@@ -221,6 +492,279 @@ public class ParamSpecs {
         return "ParamSpecs: " + getParamSpecs();
     }
 
+    /**
+     * Returns the SQL statement used by the initial stage to retrieve values for the first spec. It applies the
+     * sampling mode using the supplied dialect and restricts the number of rows returned.
+     *
+     * @param database the dialect
+     * @param rowCount the maximum number of rows to return
+     * @return the SQL query
+     */
+    String getInitialSqlStatement(Database database, int rowCount) {
+        return getInitialSqlStatement(database, rowCount, null);
+    }
+
+    /**
+     * Returns the SQL statement which retrieves the minimum and maximum values of the partition column.
+     *
+     * @return the SQL query
+     */
+    String getPartitionBoundsSqlStatement() {
+        String aliasStr = getAlias(first) + ".";
+        String column = aliasStr + getPartitionColumnName();
+        StringJoiner where = new StringJoiner(" AND ");
+        first.item.getWhere().forEach(c -> where.add(aliasStr + c));
+        StringBuilder builder = new StringBuilder();
+        builder.append("SELECT MIN(").append(column).append("), MAX(").append(column).append(") FROM ")
+                .append(constructTableName(first.item)).append(" ").append(getAlias(first));
+        if (where.length() > 0) {
+            builder.append(" WHERE ").append(where);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the SQL statements for each partition of the initial query. Each one is restricted to its share
+     * of the supplied row count.
+     *
+     * @param database the dialect
+     * @param rowCount the maximum number of rows to return across all partitions
+     * @param min      the minimum partition column value which is only used for range partitioning
+     * @param max      the maximum partition column value which is only used for range partitioning
+     * @return the SQL queries
+     * @throws IllegalArgumentException if hashing a non-numeric column which the dialect cannot hash
+     */
+    List<String> getPartitionedInitialSqlStatements(Database database, int rowCount, long min, long max) {
+        int partitionRows = (rowCount + partitionCount - 1) / partitionCount;
+        List<String> statements = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            statements.add(getPartitionedInitialSqlStatement(database, partitionRows, min, max, i));
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the SQL statement for one partition of the initial query.
+     *
+     * @param database      the dialect
+     * @param partitionRows the maximum number of rows to return from the partition
+     * @param min           the minimum partition column value which is only used for range partitioning
+     * @param max           the maximum partition column value which is only used for range partitioning
+     * @param partition     the zero-based partition index
+     * @return the SQL query
+     * @throws IllegalArgumentException if hashing a non-numeric column which the dialect cannot hash
+     */
+    String getPartitionedInitialSqlStatement(Database database, int partitionRows, long min, long max,
+                                             int partition) {
+        checkNotNull(database);
+        checkArgument(partition >= 0 && partition < partitionCount, "partition must be less than partitionCount");
+        String column = getAlias(first) + "." + getPartitionColumnName();
+        long step = (max - min) / partitionCount + 1L;
+        String hashClause = database.getHashPartitionClause();
+        if (!isPartitionColumnNumeric()) {
+            checkArgument(database.isSupportingAnyTypeHashPartition(), database
+                    + " cannot hash non-numeric columns so partitioning requires a numeric partitionColumn");
+            hashClause = database.getAnyTypeHashPartitionClause();
+        }
+        String predicate;
+        if (partitionStrategy == PartitionStrategy.HASH) {
+            predicate = String.format(hashClause, column, partitionCount, partition, partitionCount - 1);
+        } else if (partition == partitionCount - 1) {
+            predicate = column + " >= " + (min + partition * step);
+        } else {
+            predicate = column + " >= " + (min + partition * step) + " AND " + column + " < "
+                    + (min + (partition + 1) * step);
+        }
+        return getInitialSqlStatement(database, partitionRows, predicate);
+    }
+
+    private boolean isPartitionColumnNumeric() {
+        return partitionColumn != null || Number.class.isAssignableFrom(first.item.getJavaType());
+    }
+
+    private String getPartitionColumnName() {
+        return partitionColumn == null ? first.item.getColumn().toLowerCase() : partitionColumn.toLowerCase();
+    }
+
+    private String getInitialSqlStatement(Database database, int rowCount, String partitionPredicate) {
+        checkNotNull(database);
+        SamplingMode mode = samplingMode;
+        if (mode == SamplingMode.TABLESAMPLE && !database.isSupportingTableSample()) {
+            logger.debug("{} does not support table sampling, using random order instead", database);
+            mode = SamplingMode.RANDOM;
+        }
+        String aliasStr = getAlias(first) + ".";
+        String column = first.item.getColumn().toLowerCase();
+        String tableName = constructTableName(first.item);
+        String tableReference = tableName + " " + getAlias(first);
+        if (mode == SamplingMode.TABLESAMPLE) {
+            tableReference = String.format(database.getTableSampleClause(),
+                    tableName, getAlias(first), samplePercent);
+        }
+        StringJoiner where = new StringJoiner(" AND ");
+        first.item.getWhere().forEach(c -> where.add(aliasStr + c));
+        if (partitionPredicate != null) {
+            where.add(partitionPredicate);
+        }
+        StringBuilder builder = new StringBuilder("SELECT ");
+        if ((mode != SamplingMode.NONE && mode != SamplingMode.RESERVOIR)
+                || joinStrategy != JoinStrategy.INNER_JOIN) {
+            builder.append("DISTINCT ");
+        }
+        builder.append(aliasStr).append(column).append(" FROM ").append(tableReference);
+        if (where.length() > 0) {
+            builder.append(" WHERE ").append(where);
+        }
+        String sql = builder.toString();
+        if (mode == SamplingMode.RANDOM) {
+            sql = "SELECT s." + column + " FROM ("
+                    + database.appendLimitClause(sql, rowCount * RANDOM_PRE_LIMIT_MULTIPLE)
+                    + ") s ORDER BY " + database.getRandomFunction();
+        }
+        sql = database.appendLimitClause(sql, rowCount);
+        logger.debug("constructed: {}", sql);
+        return sql;
+    }
+
+    private String getSemiJoinSqlStatement(Node target) {
+        String aliasStr = getAlias(target) + ".";
+        StringJoiner where = new StringJoiner(" AND ");
+        if (target.parent != null) {
+            where.add(constructSemiJoin(target.parent, target));
+        }
+        target.item.getWhere().forEach(c -> where.add(aliasStr + c));
+        StringBuilder builder = new StringBuilder();
+        builder.append("SELECT DISTINCT ").append(aliasStr).append(target.item.getColumn().toLowerCase())
+                .append(" FROM ").append(constructTableName(target.item)).append(" ").append(getAlias(target));
+        if (where.length() > 0) {
+            builder.append(" WHERE ").append(where);
+        }
+        String sql = builder.toString();
+        logger.debug("constructed: {}", sql);
+        return sql;
+    }
+
+    private String constructSemiJoin(Node node, Node child) {
+        String aliasStr = getAlias(node) + ".";
+        String cAliasStr = getAlias(child) + ".";
+        boolean usingIn = joinStrategy == JoinStrategy.IN && child.on.length == 1;
+        StringJoiner where = new StringJoiner(" AND ");
+        if (!usingIn) {
+            for (JoinPair pair : child.on) {
+                where.add(aliasStr + pair.getFirstTableColumn() + "=" + cAliasStr + pair.getSecondTableColumn());
+            }
+        }
+        if (node.parent != null) {
+            where.add(constructSemiJoin(node.parent, node));
+        }
+        node.item.getWhere().forEach(c -> where.add(aliasStr + c));
+        where.add(aliasStr + node.item.getColumn().toLowerCase() + " = ?");
+        StringBuilder builder = new StringBuilder();
+        if (usingIn) {
+            builder.append(cAliasStr).append(child.on[0].getSecondTableColumn())
+                    .append(" IN (SELECT ").append(aliasStr).append(child.on[0].getFirstTableColumn());
+        } else {
+            builder.append("EXISTS (SELECT 1");
+        }
+        builder.append(" FROM ").append(constructTableName(node.item)).append(" ").append(getAlias(node))
+                .append(" WHERE ").append(where).append(')');
+        return builder.toString();
+    }
+
+    /**
+     * Returns whether each specification is joined to the one added immediately before it.
+     *
+     * @return a simple chain or not
+     */
+    boolean isLinear() {
+        Node node = first.next;
+        while (node != null) {
+            if (node.parent != node.prev) {
+                return false;
+            }
+            node = node.next;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position of the spec the one at the supplied position is joined to.
+     *
+     * @param index the zero-based position in defined order
+     * @return the parent position or -1 for the first spec
+     */
+    int getParentIndex(int index) {
+        Node node = getNode(index);
+        return node.parent == null ? -1 : node.parent.index;
+    }
+
+    /**
+     * Returns the positions of the specs whose values are bound to the query parameters of the SQL statement
+     * for the spec at the supplied position. They are in query parameter order.
+     *
+     * @param index the zero-based position in defined order
+     * @return the positions of the ancestor specs
+     */
+    int[] getBindingIndexes(int index) {
+        List<Node> path = getPath(getNode(index));
+        int[] result = new int[path.size() - 1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = path.get(i).index;
+        }
+        return result;
+    }
+
+    private List<Matcher<?>> getMatchers() {
+        List<Matcher<?>> matchers = new ArrayList<>();
+        Node node = first;
+        while (node != null) {
+            matchers.add(node.item.getMatcher());
+            node = node.next;
+        }
+        return matchers;
+    }
+
+    private List<List<Object>> getJoinShape() {
+        List<List<Object>> shape = new ArrayList<>();
+        Node node = first;
+        while (node != null) {
+            shape.add(Arrays.asList(node.parent == null ? -1 : node.parent.index, Arrays.asList(node.on)));
+            node = node.next;
+        }
+        return shape;
+    }
+
+    private Node getNode(int index) {
+        Node node = first;
+        while (node != null && node.index != index) {
+            node = node.next;
+        }
+        checkArgument(node != null, "no spec at index " + index);
+        return node;
+    }
+
+    private Node findNode(ParamSpec<?> spec) {
+        Node node = first;
+        while (node != null && !spec.equals(node.item)) {
+            node = node.next;
+        }
+        return node;
+    }
+
+    private List<Node> getPath(Node target) {
+        LinkedList<Node> path = new LinkedList<>();
+        Node node = target;
+        while (node != null) {
+            path.addFirst(node);
+            node = node.parent;
+        }
+        return path;
+    }
+
+    private char getAlias(Node node) {
+        return (char) ('a' + node.index);
+    }
+
     private String constructTableName(ParamSpec spec) {
         return constructTableName((String) spec.getSchema().orElse(getSchema()), spec.getTable());
     }
@@ -237,15 +781,19 @@ public class ParamSpecs {
     private static class Node {
 
         Node prev;
+        Node parent;
         JoinPair[] on;
         ParamSpec<?> item;
         Node next;
+        int index;
 
-        Node(Node prev, JoinPair[] on, ParamSpec<?> item, Node next) {
+        Node(Node prev, Node parent, JoinPair[] on, ParamSpec<?> item, Node next) {
             this.prev = prev;
+            this.parent = parent;
             this.on = on;
             this.item = item;
             this.next = next;
+            this.index = prev == null ? 0 : prev.index + 1;
         }
 
     }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+/**
+ * Enumerates the ways the initial query of a flow can be split into partitions scanned in parallel.
+ *
+ * @author kbrockhoff
+ */
+public enum PartitionStrategy {
+
+    /**
+     * Splits the numeric partition column into equal width key ranges between its minimum and maximum values.
+     */
+    RANGE,
+    /**
+     * Assigns rows to partitions using the dialect's modulo or hash function on the partition column.
+     */
+    HASH,
+    ;
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Provides for retrieval of valid values for the first parameter specification by scanning several partitions
+ * of its table in parallel. Each partition is read on its own connection into a shared bounded buffer so
+ * partition scans block when the downstream stages are not keeping up. Values are de-duplicated as they are
+ * taken from the buffer. Once all partitions are exhausted the distinct values are replayed so downstream stages
+ * can find further combinations, matching the behavior of a single connection initial stage.
+ *
+ * <p>Each partition query is limited to its share of the rows. A partition which stops at its limit while
+ * fewer distinct values than desired have been found is re-executed with a larger limit, skipping the rows
+ * already read, so a skewed partition is not mistaken for an exhausted one.</p>
+ *
+ * @author kbrockhoff
+ */
+class PartitionedScanProcessor<T extends Comparable<? super T>> implements QueryStage {
+
+    private static final long OFFER_PAUSE = 50L;
+    private static final int GROWTH_MULTIPLE = 4;
+    private static final int MAX_LIMIT = 100000;
+
+    private final Logger logger = LoggerFactory.getLogger(PartitionedScanProcessor.class);
+    private final String componentId;
+    private final ParamSpec<T> paramSpec;
+    private final List<Partition> partitions;
+    private final int batchSize;
+    private final Executor executor;
+    private final EventBus eventBus;
+    private final TupleBatcher batcher;
+    private final BlockingQueue<T> buffer;
+    private final Set<T> alreadySeen = new HashSet<>();
+    private final List<T> distinctValues = new ArrayList<>();
+    private final AdaptiveBudget budget;
+    private long demand = 0L;
+    private int totalEmitted = 0;
+    private int activePartitions = 0;
+    private boolean started = false;
+    private volatile boolean terminated = false;
+    private volatile PipelineMetrics.StageRecorder recorder;
+
+    /**
+     * Constructs a processor.
+     *
+     * @param paramSpec      the first spec
+     * @param partitions     the partition statements each prepared on its own connection
+     * @param batchSize      the desired tuples set size
+     * @param bufferCapacity the maximum number of values read ahead of downstream demand
+     * @param executor       runs the partition scans
+     * @param eventBus       the inter-component event bus
+     */
+    PartitionedScanProcessor(ParamSpec<T> paramSpec, List<Partition> partitions, int batchSize,
+                             int bufferCapacity, Executor executor, EventBus eventBus) {
+        checkNotNull(paramSpec);
+        checkArgument(!partitions.isEmpty(), "at least one partition is required");
+        checkNotNull(executor);
+        checkNotNull(eventBus);
+        this.componentId = UUID.randomUUID().toString();
+        this.paramSpec = paramSpec;
+        this.partitions = new ArrayList<>(partitions);
+        this.batchSize = batchSize;
+        this.budget = new AdaptiveBudget(batchSize);
+        this.executor = executor;
+        this.eventBus = eventBus;
+        this.batcher = new TupleBatcher(componentId, eventBus, TupleBatcher.DEFAULT_MAX_BATCH);
+        this.buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        eventBus.registerReceiver(this);
+    }
+
+    @Override
+    public String getComponentId() {
+        return componentId;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Tuple> subscriber) {
+        logger.trace("subscribe({})", subscriber);
+        batcher.connect(this, subscriber);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        logger.warn("{} is always the initial stage, per rule 2.5 calling cancel", this);
+        subscription.cancel();
+    }
+
+    @Override
+    public void onNext(Tuple item) {
+        throw new IllegalStateException("initial stage does not receive items");
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.trace("onError({})", throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        logger.trace("onComplete()");
+    }
+
+    @Override
+    public synchronized void request(long l) {
+        logger.trace("request({})", l);
+        demand += l;
+        if (!started) {
+            startPartitionScans();
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        logger.trace("cancel()");
+        terminated = true;
+        partitions.forEach(Partition::cancel);
+    }
+
+    @Override
+    public void abort() {
+        logger.trace("abort()");
+        cancel();
+    }
+
+    @Override
+    public void recordMetricsTo(PipelineMetrics.StageRecorder recorder) {
+        checkNotNull(recorder);
+        this.recorder = recorder;
+        budget.reportTo(recorder);
+    }
+
+    @Override
+    public void recordQueueWait(long nanos) {
+        PipelineMetrics.StageRecorder current = recorder;
+        if (current != null) {
+            current.recordQueueWait(nanos);
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.trace("close()");
+        terminated = true;
+        eventBus.unregisterReceiver(this);
+        partitions.forEach(Partition::close);
+        buffer.clear();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " for " + paramSpec + " in " + partitions.size() + " partitions";
+    }
+
+    private void startPartitionScans() {
+        started = true;
+        activePartitions = partitions.size();
+        for (Partition partition : partitions) {
+            executor.execute(() -> scan(partition));
+        }
+    }
+
+    private void scan(Partition partition) {
+        PipelineMetrics.StageRecorder metrics = recorder;
+        int skipped = 0;
+        try {
+            boolean truncated;
+            do {
+                int rows = 0;
+                long started = System.nanoTime();
+                try (ResultSet rs = partition.executeQuery()) {
+                    if (metrics != null) {
+                        metrics.recordQuery(System.nanoTime() - started);
+                    }
+                    while (!terminated && rs.next()) {
+                        rows++;
+                        if (rows > skipped) {
+                            offer(SqlQueryProcessor.retrieveValue(paramSpec, rs), metrics);
+                        }
+                    }
+                }
+                logger.debug("{} read {} rows from partition {}", this, rows, partition.sql);
+                truncated = !terminated && rows >= partition.limit;
+                skipped = rows;
+            } while (truncated && isShortOfValues() && partition.grow());
+        } catch (SQLException cause) {
+            if (!terminated) {
+                logger.warn("{} query failed: {}", this, cause.getMessage());
+                terminateDueTo(cause);
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            terminateDueTo(interrupted);
+        }
+        onPartitionFinished();
+    }
+
+    private void offer(T value, PipelineMetrics.StageRecorder metrics) throws InterruptedException {
+        boolean accepted = paramSpec.isAcceptableValue(value);
+        if (metrics != null) {
+            metrics.recordRow(accepted);
+        }
+        if (accepted) {
+            while (!terminated && !buffer.offer(value, OFFER_PAUSE, TimeUnit.MILLISECONDS)) {
+                drain();
+            }
+            drain();
+        }
+    }
+
+    private synchronized boolean isShortOfValues() {
+        return alreadySeen.size() + buffer.size() < batchSize;
+    }
+
+    private synchronized void onPartitionFinished() {
+        activePartitions--;
+        drain();
+    }
+
+    private synchronized void drain() {
+        while (demand > 0L && !terminated) {
+            T value = buffer.poll();
+            if (value == null) {
+                break;
+            }
+            boolean novel = alreadySeen.add(value);
+            budget.recordResult(novel);
+            if (novel) {
+                distinctValues.add(value);
+                emit(value);
+            }
+        }
+        boolean exhausted = started && activePartitions == 0 && buffer.isEmpty();
+        while (exhausted && demand > 0L && !terminated) {
+            if (distinctValues.isEmpty() || budget.isCeilingReached()) {
+                logger.debug("{} exhausted all partitions after {} distinct values", this, distinctValues.size());
+                batcher.complete();
+                terminated = true;
+            } else {
+                emit(distinctValues.get(totalEmitted % distinctValues.size()));
+            }
+        }
+        batcher.flush();
+    }
+
+    private void emit(T value) {
+        demand--;
+        totalEmitted++;
+        budget.recordAttempt(totalEmitted <= distinctValues.size());
+        Tuple result = Tuple.EMPTY_TUPLE.addElement(paramSpec.getColumn(), value);
+        batcher.add(result);
+    }
+
+    private synchronized void terminateDueTo(Throwable throwable) {
+        if (!terminated) {
+            batcher.fail(throwable);
+            terminated = true;
+        }
+    }
+
+    /**
+     * Holds the statement for one partition of the initial query along with the connection it runs on.
+     */
+    static class Partition implements AutoCloseable {
+
+        private final Logger logger = LoggerFactory.getLogger(Partition.class);
+        private final Connection connection;
+        private final IntFunction<String> sqlForLimit;
+        private final QueryDeadline deadline;
+        private volatile PreparedStatement statement;
+        private volatile String sql;
+        private volatile int limit;
+
+        /**
+         * Constructs a partition which takes ownership of the supplied connection.
+         *
+         * @param connection  the connection dedicated to this partition
+         * @param sqlForLimit constructs the partition query for a row limit
+         * @param limit       the initial row limit
+         * @param deadline    bounds the execution time of the query
+         * @throws SQLException if unable to prepare the query
+         */
+        Partition(Connection connection, IntFunction<String> sqlForLimit, int limit, QueryDeadline deadline)
+                throws SQLException {
+            checkNotNull(connection);
+            checkNotNull(sqlForLimit);
+            checkNotNull(deadline);
+            this.connection = connection;
+            this.sqlForLimit = sqlForLimit;
+            this.deadline = deadline;
+            this.limit = limit;
+            prepare();
+        }
+
+        ResultSet executeQuery() throws SQLException {
+            deadline.applyTo(statement);
+            return statement.executeQuery();
+        }
+
+        /**
+         * Prepares the query again with a larger row limit.
+         *
+         * @return whether the limit could be grown
+         * @throws SQLException if unable to prepare the query
+         */
+        boolean grow() throws SQLException {
+            if (limit >= MAX_LIMIT) {
+                return false;
+            }
+            limit = (int) Math.min(MAX_LIMIT, (long) limit * GROWTH_MULTIPLE);
+            closeQuietly(statement);
+            prepare();
+            logger.debug("growing partition to limit {}", limit);
+            return true;
+        }
+
+        void cancel() {
+            try {
+                statement.cancel();
+            } catch (SQLException ignore) {
+                logger.info("exception on cancel: {}", ignore.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(statement);
+            closeQuietly(connection);
+        }
+
+        private void prepare() throws SQLException {
+            sql = sqlForLimit.apply(limit);
+            logger.debug("partition query: {}", sql);
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        }
+
+        private void closeQuietly(AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception ignore) {
+                logger.info("exception on close: {}", ignore.getMessage());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Accumulates the executor-wide measurements reported by {@link MetricsSnapshot} and forwards each one to the
+ * configured {@link MetricsSink} as it is taken. Recording only touches striped counters so it is safe and cheap
+ * from any thread.
+ *
+ * @author kbrockhoff
+ */
+class PipelineMetrics {
+
+    private final Map<String, StageRecorder> stages = new ConcurrentHashMap<>();
+    private final LatencyRecorder taskLatency = new LatencyRecorder();
+    private final LatencyRecorder connectionWait = new LatencyRecorder();
+    private final LatencyRecorder routingLatency = new LatencyRecorder();
+    private final AtomicLong tasksInFlight = new AtomicLong();
+    private volatile MetricsSink sink;
+
+    /**
+     * Sets where measurements are forwarded.
+     *
+     * @param sink the sink or null for none
+     */
+    void setSink(MetricsSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Returns the recorder for a stage, creating it on first use. Stages for the same table and column in
+     * different retrievals share a recorder.
+     *
+     * @param spec the spec the stage retrieves values for
+     * @return the recorder
+     */
+    StageRecorder forStage(ParamSpec<?> spec) {
+        checkNotNull(spec);
+        return stages.computeIfAbsent(spec.getTable() + '.' + spec.getColumn(), name -> new StageRecorder(name, null));
+    }
+
+    /**
+     * Returns the recorder for a stage which also passes every measurement on to another recorder, creating it
+     * on first use. Lets a single retrieval keep its own figures while still contributing to executor-wide ones.
+     *
+     * @param spec   the spec the stage retrieves values for
+     * @param parent the recorder measurements are passed on to or null for none
+     * @return the recorder
+     */
+    StageRecorder forStage(ParamSpec<?> spec, StageRecorder parent) {
+        checkNotNull(spec);
+        return stages.computeIfAbsent(spec.getTable() + '.' + spec.getColumn(),
+                name -> new StageRecorder(name, parent));
+    }
+
+    void recordTaskStarted() {
+        tasksInFlight.incrementAndGet();
+        increment(MetricsSink.TASKS_IN_FLIGHT, null, 1L);
+    }
+
+    void recordTaskFinished(long nanos) {
+        tasksInFlight.decrementAndGet();
+        increment(MetricsSink.TASKS_IN_FLIGHT, null, -1L);
+        taskLatency.record(nanos);
+        recordNanos(MetricsSink.TASK_LATENCY, null, nanos);
+    }
+
+    void recordConnectionWait(long nanos) {
+        connectionWait.record(nanos);
+        recordNanos(MetricsSink.CONNECTION_WAIT, null, nanos);
+    }
+
+    void recordRoutingLatency(long nanos) {
+        routingLatency.record(nanos);
+        recordNanos(MetricsSink.BUS_ROUTING_LATENCY, null, nanos);
+    }
+
+    /**
+     * Copies the measurements together with the supplied current figures.
+     *
+     * @param eventBus the executor's shared bus
+     * @param budget   the executor's connection budget
+     * @param hedger   the executor's hedger or null if hedging is off
+     * @return the snapshot
+     */
+    MetricsSnapshot snapshot(EventBusImpl eventBus, ConnectionBudget budget, QueryHedger hedger) {
+        return new MetricsSnapshot(stageSnapshots(), taskLatency.snapshot(), connectionWait.snapshot(),
+                routingLatency.snapshot(), tasksInFlight.get(), eventBus.getQueued(), eventBus.getHighWaterMark(),
+                eventBus.getRejectedPublishes(), budget.getLeased(), budget.getWaiting(),
+                hedger == null ? 0L : hedger.getHedges(), hedger == null ? 0L : hedger.getHedgeWins());
+    }
+
+    /**
+     * Copies the measurements of each stage.
+     *
+     * @return the stage snapshots keyed by table and column
+     */
+    Map<String, MetricsSnapshot.Stage> stageSnapshots() {
+        Map<String, MetricsSnapshot.Stage> results = new TreeMap<>();
+        stages.forEach((name, recorder) -> results.put(name, recorder.snapshot()));
+        return results;
+    }
+
+    private void increment(String metric, String stage, long delta) {
+        MetricsSink current = sink;
+        if (current != null) {
+            current.increment(metric, stage, delta);
+        }
+    }
+
+    private void recordNanos(String metric, String stage, long nanos) {
+        MetricsSink current = sink;
+        if (current != null) {
+            current.recordNanos(metric, stage, nanos);
+        }
+    }
+
+    /**
+     * Records the measurements of one stage.
+     */
+    class StageRecorder {
+
+        private final String name;
+        private final StageRecorder parent;
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder rowsFetched = new LongAdder();
+        private final LongAdder rowsRejected = new LongAdder();
+        private final LongAdder dedupHits = new LongAdder();
+        private final LatencyRecorder queryLatency = new LatencyRecorder();
+        private final LatencyRecorder queueWait = new LatencyRecorder();
+
+        StageRecorder(String name, StageRecorder parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        void recordQuery(long nanos) {
+            queries.increment();
+            queryLatency.record(nanos);
+            increment(MetricsSink.STAGE_QUERIES, name, 1L);
+            recordNanos(MetricsSink.STAGE_QUERY_LATENCY, name, nanos);
+            if (parent != null) {
+                parent.recordQuery(nanos);
+            }
+        }
+
+        void recordQueueWait(long nanos) {
+            queueWait.record(nanos);
+            recordNanos(MetricsSink.STAGE_QUEUE_WAIT, name, nanos);
+            if (parent != null) {
+                parent.recordQueueWait(nanos);
+            }
+        }
+
+        void recordRow(boolean accepted) {
+            rowsFetched.increment();
+            increment(MetricsSink.STAGE_ROWS_FETCHED, name, 1L);
+            if (!accepted) {
+                rowsRejected.increment();
+                increment(MetricsSink.STAGE_ROWS_REJECTED, name, 1L);
+            }
+            if (parent != null) {
+                parent.recordRow(accepted);
+            }
+        }
+
+        void recordResult(boolean novel) {
+            if (!novel) {
+                dedupHits.increment();
+                increment(MetricsSink.STAGE_DEDUP_HITS, name, 1L);
+            }
+            if (parent != null) {
+                parent.recordResult(novel);
+            }
+        }
+
+        MetricsSnapshot.Stage snapshot() {
+            return new MetricsSnapshot.Stage(queries.sum(), rowsFetched.sum(), rowsRejected.sum(), dedupHits.sum(),
+                    queryLatency.snapshot(), queueWait.snapshot());
+        }
+
+    }
+
+    /**
+     * Counts durations in power of two buckets.
+     */
+    static class LatencyRecorder {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+        void record(long nanos) {
+            long value = Math.max(0L, nanos);
+            count.increment();
+            total.add(value);
+            max.accumulateAndGet(value, Math::max);
+            buckets.incrementAndGet(value == 0L ? 0 : Long.SIZE - 1 - Long.numberOfLeadingZeros(value));
+        }
+
+        MetricsSnapshot.Latency snapshot() {
+            long[] copy = new long[buckets.length()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return new MetricsSnapshot.Latency(count.sum(), total.sum(), max.get(), copy);
+        }
+
+    }
+
+}
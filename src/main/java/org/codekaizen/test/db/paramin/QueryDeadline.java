@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+
+/**
+ * Tracks the time a find parameters task has left and converts it into JDBC query timeouts. Every stage
+ * applies the deadline to its statement immediately before executing it so no query outlives the task's
+ * budget.
+ *
+ * @author kbrockhoff
+ */
+class QueryDeadline {
+
+    private final int queryTimeout;
+    private final long expiresAtNanos;
+
+    /**
+     * Constructs a deadline whose budget clock starts immediately.
+     *
+     * @param queryTimeout the per-query timeout in seconds with zero meaning no limit
+     * @param budget       the total time allowed for the task or {@code null} for no limit
+     */
+    QueryDeadline(int queryTimeout, Duration budget) {
+        checkArgument(queryTimeout >= 0, "queryTimeout cannot be negative");
+        this.queryTimeout = queryTimeout;
+        this.expiresAtNanos = budget == null ? Long.MAX_VALUE : System.nanoTime() + budget.toNanos();
+    }
+
+    boolean isBudgeted() {
+        return expiresAtNanos != Long.MAX_VALUE;
+    }
+
+    boolean isExpired() {
+        return getRemainingNanos() <= 0L;
+    }
+
+    long getRemainingNanos() {
+        return isBudgeted() ? expiresAtNanos - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the query timeout to use for the next statement execution which is the smaller of the per-query
+     * timeout and the remaining budget rounded up to whole seconds.
+     *
+     * @return the timeout in seconds with zero meaning no limit
+     */
+    int getRemainingQueryTimeout() {
+        if (!isBudgeted()) {
+            return queryTimeout;
+        }
+        long remaining = getRemainingNanos();
+        long seconds = Math.max(1L, (remaining + TimeUnit.SECONDS.toNanos(1L) - 1L) / TimeUnit.SECONDS.toNanos(1L));
+        int budgetTimeout = (int) Math.min(Integer.MAX_VALUE, seconds);
+        return queryTimeout == 0 ? budgetTimeout : Math.min(queryTimeout, budgetTimeout);
+    }
+
+    /**
+     * Sets the statement's query timeout to what is left of the deadline.
+     *
+     * @param statement the statement about to be executed
+     * @throws SQLException if unable to set the timeout
+     */
+    void applyTo(Statement statement) throws SQLException {
+        statement.setQueryTimeout(getRemainingQueryTimeout());
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Issues a second copy of a stage query when the first has not returned within a latency percentile observed
+ * for the same plan. The first copy runs on the calling thread while a timer issues the second once the
+ * threshold passes. Whichever copy returns first wins and the other is cancelled. Hedges are only issued
+ * while they stay below a fixed fraction of all queries so a slow database is not swamped with duplicates.
+ *
+ * @author kbrockhoff
+ */
+class QueryHedger {
+
+    private static final int WINDOW_SIZE = 128;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECALCULATE_INTERVAL = 16;
+
+    private final Logger logger = LoggerFactory.getLogger(QueryHedger.class);
+    private final double percentile;
+    private final double maxExtraLoad;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, LatencyWindow> windows = new HashMap<>();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Constructs a hedger.
+     *
+     * @param percentile   the fraction of queries for a plan expected to return before a hedge is issued
+     * @param maxExtraLoad the maximum hedges issued as a fraction of all queries
+     * @param executor     runs the second copies
+     * @param scheduler    issues the second copies once the threshold passes
+     */
+    QueryHedger(double percentile, double maxExtraLoad, Executor executor, ScheduledExecutorService scheduler) {
+        checkArgument(percentile > 0.0 && percentile < 1.0, "percentile must be between 0 and 1");
+        checkArgument(maxExtraLoad > 0.0 && maxExtraLoad <= 1.0, "maxExtraLoad must be between 0 and 1");
+        checkNotNull(executor, "executor is required");
+        checkNotNull(scheduler, "scheduler is required");
+        this.percentile = percentile;
+        this.maxExtraLoad = maxExtraLoad;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Runs the primary call on the calling thread and, if it has not returned within the hedge threshold for the
+     * plan and the extra load cap allows, the backup call on the executor as well. A backup which returns first
+     * cancels the primary. The result of the loser is discarded once it arrives.
+     *
+     * @param plan    identifies the query whose latencies are compared
+     * @param primary the query
+     * @param backup  the identical query on another connection
+     * @param <R>     the result type
+     * @return the first result
+     * @throws SQLException if the winning call fails
+     */
+    <R> R execute(String plan, Call<R> primary, Call<R> backup) throws SQLException {
+        queries.incrementAndGet();
+        long threshold = getThresholdNanos(plan);
+        long started = System.nanoTime();
+        if (threshold < 0L) {
+            R result = primary.call();
+            recordLatency(plan, System.nanoTime() - started);
+            return result;
+        }
+        Race<R> race = new Race<>(plan, primary, backup);
+        ScheduledFuture<?> timer = scheduler.schedule(race::hedge, threshold, TimeUnit.NANOSECONDS);
+        R result;
+        try {
+            result = primary.call();
+        } catch (SQLException | RuntimeException cause) {
+            timer.cancel(false);
+            return race.recoverFrom(cause);
+        }
+        timer.cancel(false);
+        CompletableFuture<R> second = race.finishPrimary();
+        if (second == null) {
+            recordLatency(plan, System.nanoTime() - started);
+        } else {
+            discard(backup, second);
+        }
+        return result;
+    }
+
+    long getQueries() {
+        return queries.get();
+    }
+
+    long getHedges() {
+        return hedges.get();
+    }
+
+    long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Returns how long a query for the plan may run before a hedge is issued.
+     *
+     * @param plan the query plan
+     * @return the threshold or -1 if too few latencies have been observed
+     */
+    long getThresholdNanos(String plan) {
+        synchronized (windows) {
+            LatencyWindow window = windows.get(plan);
+            return window == null ? -1L : window.getThresholdNanos();
+        }
+    }
+
+    void recordLatency(String plan, long nanos) {
+        synchronized (windows) {
+            windows.computeIfAbsent(plan, k -> new LatencyWindow()).record(nanos);
+        }
+    }
+
+    private boolean tryAcquireHedge() {
+        long issued = hedges.incrementAndGet();
+        if (issued > maxExtraLoad * queries.get()) {
+            hedges.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private <R> CompletableFuture<R> submit(Call<R> call) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (SQLException | RuntimeException cause) {
+                future.completeExceptionally(cause);
+            }
+        });
+        return future;
+    }
+
+    private <R> void discard(Call<R> loser, CompletableFuture<R> future) {
+        if (!future.isDone()) {
+            loser.cancel();
+        }
+        future.whenComplete((result, cause) -> {
+            if (result != null) {
+                loser.discard(result);
+            }
+        });
+    }
+
+    private <R> R await(CompletableFuture<R> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException cause) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting on query", cause);
+        } catch (ExecutionException cause) {
+            throw unwrap(cause.getCause());
+        }
+    }
+
+    private SQLException unwrap(Throwable cause) {
+        if (cause instanceof SQLException) {
+            return (SQLException) cause;
+        } else if (cause instanceof RuntimeException && !(cause instanceof CancellationException)) {
+            throw (RuntimeException) cause;
+        }
+        return new SQLException(cause);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryHedger{percentile=" + percentile + ", maxExtraLoad=" + maxExtraLoad + ", queries=" + queries
+                + ", hedges=" + hedges + ", hedgeWins=" + hedgeWins + '}';
+    }
+
+    /**
+     * One copy of a hedged query.
+     *
+     * @param <R> the result type
+     */
+    interface Call<R> {
+
+        /**
+         * Runs the query.
+         *
+         * @return the result
+         * @throws SQLException if the query fails
+         */
+        R call() throws SQLException;
+
+        /**
+         * Cancels the query while it is running. May be called from any thread.
+         */
+        void cancel();
+
+        /**
+         * Releases a result which lost the race.
+         *
+         * @param result the result
+         */
+        void discard(R result);
+
+    }
+
+    /**
+     * Tracks one hedged execution so the timer issuing the backup and the calling thread finishing the primary
+     * agree on whether a backup is running.
+     */
+    private class Race<R> {
+
+        private final String plan;
+        private final Call<R> primary;
+        private final Call<R> backup;
+        private CompletableFuture<R> second;
+        private boolean primaryFinished = false;
+
+        Race(String plan, Call<R> primary, Call<R> backup) {
+            this.plan = plan;
+            this.primary = primary;
+            this.backup = backup;
+        }
+
+        synchronized void hedge() {
+            if (primaryFinished || !tryAcquireHedge()) {
+                return;
+            }
+            logger.debug("hedging {} after {}ns", plan, getThresholdNanos(plan));
+            second = submit(backup);
+            second.thenRun(this::cancelPrimary);
+        }
+
+        /**
+         * Marks the primary as returned so no backup is issued and a running one no longer cancels it.
+         *
+         * @return the running backup or null if none was issued
+         */
+        synchronized CompletableFuture<R> finishPrimary() {
+            primaryFinished = true;
+            return second;
+        }
+
+        R recoverFrom(Throwable cause) throws SQLException {
+            CompletableFuture<R> running = finishPrimary();
+            if (running == null) {
+                throw unwrap(cause);
+            }
+            try {
+                R result = await(running);
+                hedgeWins.incrementAndGet();
+                return result;
+            } catch (SQLException backupCause) {
+                throw unwrap(cause);
+            }
+        }
+
+        private synchronized void cancelPrimary() {
+            if (!primaryFinished) {
+                primary.cancel();
+            }
+        }
+
+    }
+
+    private class LatencyWindow {
+
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count = 0;
+        private long threshold = -1L;
+
+        void record(long nanos) {
+            samples[count % WINDOW_SIZE] = nanos;
+            count++;
+            if (count >= MIN_SAMPLES && (threshold < 0L || count % RECALCULATE_INTERVAL == 0)) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, WINDOW_SIZE));
+                Arrays.sort(sorted);
+                threshold = sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+            }
+        }
+
+        long getThresholdNanos() {
+            return threshold;
+        }
+
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscription;
+
+/**
+ * Marks one stage of a find parameters processing flow. Each stage retrieves values for one or more
+ * parameter specifications and adds them to the tuples it receives from its upstream stage.
+ *
+ * @author kbrockhoff
+ */
+interface QueryStage extends Component, Processor<Tuple, Tuple>, BatchSubscriber, Subscription, AutoCloseable {
+
+    /**
+     * Cancels any SQL statement the stage is currently executing and closes its open cursors so the database
+     * session is released immediately. Unlike {@link #cancel()} this acts directly rather than through the
+     * event bus and may be called from any thread.
+     */
+    void abort();
+
+    /**
+     * Reports the stage's queries, rows and duplicates to the supplied metrics. Stages which do not support
+     * metrics ignore it.
+     *
+     * @param recorder the metrics for the stage's spec
+     */
+    default void recordMetricsTo(PipelineMetrics.StageRecorder recorder) {
+    }
+
+    /**
+     * Reports time the signals just delivered to the stage spent queued on the event bus to the metrics supplied
+     * to {@link #recordMetricsTo(PipelineMetrics.StageRecorder)}, if any.
+     *
+     * @param nanos the wait
+     */
+    default void recordQueueWait(long nanos) {
+    }
+
+    @Override
+    void close();
+
+}
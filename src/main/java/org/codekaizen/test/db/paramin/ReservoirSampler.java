@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Maintains a fixed-size uniform random sample of a stream of items of unknown length using Li's Algorithm L.
+ * Memory use is proportional to the sample size regardless of how many items are offered and random numbers are
+ * only generated for the items which end up in the reservoir.
+ *
+ * @author kbrockhoff
+ */
+class ReservoirSampler<T> {
+
+    private final int capacity;
+    private final Random random;
+    private final List<T> reservoir;
+    private long offered = 0L;
+    private long nextIncluded = 0L;
+    private double weight;
+
+    /**
+     * Constructs a sampler.
+     *
+     * @param capacity the sample size
+     * @param random   the source of randomness which should be seeded for reproducible samples
+     */
+    ReservoirSampler(int capacity, Random random) {
+        checkArgument(capacity > 0, "capacity must be greater than zero");
+        checkNotNull(random, "random is required");
+        this.capacity = capacity;
+        this.random = random;
+        this.reservoir = new ArrayList<>(capacity);
+        this.weight = Math.exp(Math.log(nextOpenUnitDouble()) / capacity);
+    }
+
+    /**
+     * Offers the next item in the stream.
+     *
+     * @param item the item
+     * @return whether the item was placed in the reservoir
+     */
+    boolean offer(T item) {
+        offered++;
+        if (reservoir.size() < capacity) {
+            reservoir.add(item);
+            if (reservoir.size() == capacity) {
+                nextIncluded = offered + calculateSkip();
+            }
+            return true;
+        }
+        if (offered < nextIncluded) {
+            return false;
+        }
+        reservoir.set(random.nextInt(capacity), item);
+        weight *= Math.exp(Math.log(nextOpenUnitDouble()) / capacity);
+        nextIncluded = offered + calculateSkip();
+        return true;
+    }
+
+    /**
+     * Returns the number of items offered so far.
+     *
+     * @return the stream length seen
+     */
+    long getOffered() {
+        return offered;
+    }
+
+    /**
+     * Returns the number of items currently held.
+     *
+     * @return the sample size so far
+     */
+    int size() {
+        return reservoir.size();
+    }
+
+    /**
+     * Returns the sampled items in random order.
+     *
+     * @return a shuffled copy of the reservoir
+     */
+    List<T> getSample() {
+        List<T> sample = new ArrayList<>(reservoir);
+        Collections.shuffle(sample, random);
+        return sample;
+    }
+
+    private long calculateSkip() {
+        return (long) Math.floor(Math.log(nextOpenUnitDouble()) / Math.log(1.0 - weight)) + 1L;
+    }
+
+    private double nextOpenUnitDouble() {
+        double value = random.nextDouble();
+        while (value == 0.0) {
+            value = random.nextDouble();
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+/**
+ * Enumerates the ways the initial query of a flow can sample the values of the first parameter specification.
+ *
+ * @author kbrockhoff
+ */
+public enum SamplingMode {
+
+    /**
+     * Reads rows in whatever order the database returns them.
+     */
+    NONE,
+    /**
+     * Selects distinct values so duplicates are eliminated by the database.
+     */
+    DISTINCT,
+    /**
+     * Selects distinct values from a bounded number of rows and returns them in random order.
+     */
+    RANDOM,
+    /**
+     * Selects distinct values from a percentage of the table's storage blocks using the dialect's
+     * {@code TABLESAMPLE} or {@code SAMPLE} clause. Falls back to {@link #RANDOM} if the dialect has none.
+     */
+    TABLESAMPLE,
+    /**
+     * Scans a bounded number of rows in a single forward-only pass keeping a fixed-size uniform random sample
+     * of the acceptable values. Supply a seed for reproducible samples.
+     */
+    RESERVOIR,
+    ;
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Runs one initial-stage query on behalf of every concurrent flow whose initial stage has the same plan. Rows
+ * are read from the database only when an attached flow has moved past the rows already buffered, so each
+ * flow's demand drives the scan and no flow forces reads another has not asked for. The rows read are kept so
+ * later flows and flows cycling back to the start are served from memory.
+ *
+ * <p>When a flow reaches the end of the rows and the query stopped at its row limit, the scan can be grown.
+ * The query is then re-executed with a larger limit, and the rows already buffered are skipped.</p>
+ *
+ * <p>A scan normally closes when its last flow detaches. While the registry is pinned, a scan left without
+ * flows stays open so flows started later in the same batch still attach to it.</p>
+ *
+ * @author kbrockhoff
+ */
+class SharedScan<T extends Comparable<? super T>> {
+
+    private static final int GROWTH_MULTIPLE = 4;
+    private static final int MAX_LIMIT = 100000;
+    private static final long CANCEL_RETRY_MILLIS = 10L;
+
+    private final Logger logger = LoggerFactory.getLogger(SharedScan.class);
+    private final String key;
+    private final ParamSpec<T> paramSpec;
+    private final IntFunction<String> sqlForLimit;
+    private final Connection connection;
+    private final Registry registry;
+    private final List<T> rows = new ArrayList<>();
+    private volatile PreparedStatement statement;
+    private volatile boolean released = false;
+    private volatile boolean reading = false;
+    private ResultSet resultSet;
+    private int currentLimit;
+    private int readThisExecution = 0;
+    private boolean truncated = false;
+    private boolean exhausted = false;
+    private boolean closed = false;
+    private int attached = 0;
+    private long executions = 0L;
+
+    private SharedScan(String key, ParamSpec<T> paramSpec, IntFunction<String> sqlForLimit, int initialLimit,
+                       Connection connection, Registry registry) {
+        this.key = key;
+        this.paramSpec = paramSpec;
+        this.sqlForLimit = sqlForLimit;
+        this.currentLimit = initialLimit;
+        this.connection = connection;
+        this.registry = registry;
+    }
+
+    /**
+     * Returns the value in the row at the supplied position, reading further rows if needed.
+     *
+     * @param index the row position
+     * @return the value or {@code null} if the row's value is null or the scan has no row at that position,
+     * which callers distinguish using {@link #size()}
+     * @throws SQLException if the query fails
+     */
+    synchronized T get(int index) throws SQLException {
+        while (index >= rows.size() && !exhausted && !truncated && !closed) {
+            readRow();
+        }
+        return index < rows.size() ? rows.get(index) : null;
+    }
+
+    /**
+     * Re-executes the query with a larger row limit if the last execution stopped at its limit.
+     *
+     * @return whether more rows may now be available
+     */
+    synchronized boolean grow() {
+        if (!truncated || currentLimit >= MAX_LIMIT || closed) {
+            return false;
+        }
+        currentLimit = (int) Math.min(MAX_LIMIT, (long) currentLimit * GROWTH_MULTIPLE);
+        truncated = false;
+        logger.debug("growing shared scan {} to limit {}", key, currentLimit);
+        return true;
+    }
+
+    synchronized int size() {
+        return rows.size();
+    }
+
+    synchronized long getExecutions() {
+        return executions;
+    }
+
+    int getAttached() {
+        synchronized (registry) {
+            return attached;
+        }
+    }
+
+    /**
+     * Detaches one flow from the scan. The last flow to detach cancels any executing query and releases the
+     * connection unless the registry is pinned.
+     */
+    void detach() {
+        boolean last;
+        synchronized (registry) {
+            attached--;
+            last = attached == 0 && registry.pins == 0;
+            if (last) {
+                registry.scans.remove(key);
+            }
+        }
+        if (last) {
+            release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedScan(" + key + ")";
+    }
+
+    private void readRow() throws SQLException {
+        if (released) {
+            throw new SQLException("shared scan " + key + " was released");
+        }
+        reading = true;
+        try {
+            if (resultSet == null) {
+                execute();
+            }
+            if (resultSet.next()) {
+                readThisExecution++;
+                rows.add(SqlQueryProcessor.retrieveValue(paramSpec, resultSet));
+                return;
+            }
+            closeQuietly(resultSet);
+            resultSet = null;
+            if (readThisExecution >= currentLimit) {
+                truncated = true;
+            } else {
+                exhausted = true;
+            }
+        } finally {
+            reading = false;
+        }
+    }
+
+    private void execute() throws SQLException {
+        if (statement == null || executions > 0L) {
+            closeQuietly(statement);
+            statement = connection.prepareStatement(sqlForLimit.apply(currentLimit), ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+        }
+        executions++;
+        statement.setFetchSize(Math.min(currentLimit, 1000));
+        resultSet = statement.executeQuery();
+        readThisExecution = 0;
+        while (readThisExecution < rows.size() && resultSet.next()) {
+            readThisExecution++;
+        }
+    }
+
+    private void release() {
+        released = true;
+        cancelQuietly();
+        // a cancel reaching the database between the commands of a read is lost so it is repeated until it lands
+        while (reading) {
+            try {
+                Thread.sleep(CANCEL_RETRY_MILLIS);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            cancelQuietly();
+        }
+        synchronized (this) {
+            closed = true;
+            closeQuietly(resultSet);
+            closeQuietly(statement);
+            closeQuietly(connection);
+        }
+    }
+
+    private void cancelQuietly() {
+        PreparedStatement current = statement;
+        if (current != null) {
+            try {
+                current.cancel();
+            } catch (SQLException ignore) {
+                logger.info("exception on cancel: {}", ignore.getMessage());
+            }
+        }
+    }
+
+    private void closeQuietly(AutoCloseable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception ignore) {
+                logger.info("exception on close: {}", ignore.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tracks the shared scans currently running for an executor.
+     */
+    static class Registry {
+
+        private final Map<String, SharedScan<?>> scans = new HashMap<>();
+        private int pins = 0;
+        private long scansStarted = 0L;
+        private long attachments = 0L;
+
+        /**
+         * Attaches a flow to the running scan with the supplied plan or starts a new one.
+         *
+         * @param key                identifies the plan which must include the result type
+         * @param paramSpec          the initial spec
+         * @param sqlForLimit        constructs the initial query for a row limit
+         * @param initialLimit       the row limit used if a new scan is started
+         * @param connectionSupplier provides the connection for a new scan if one can be leased
+         * @param <T>                the value type
+         * @return the scan or empty if a new scan was needed but no connection could be leased
+         */
+        @SuppressWarnings("unchecked")
+        synchronized <T extends Comparable<? super T>> Optional<SharedScan<T>> attach(
+                String key, ParamSpec<T> paramSpec, IntFunction<String> sqlForLimit, int initialLimit,
+                Supplier<Optional<Connection>> connectionSupplier) {
+            checkNotNull(key);
+            SharedScan<T> scan = (SharedScan<T>) scans.get(key);
+            if (scan == null) {
+                Optional<Connection> conn = connectionSupplier.get();
+                if (!conn.isPresent()) {
+                    return Optional.empty();
+                }
+                scan = new SharedScan<>(key, paramSpec, sqlForLimit, initialLimit, conn.get(), this);
+                scans.put(key, scan);
+                scansStarted++;
+            }
+            scan.attached++;
+            attachments++;
+            return Optional.of(scan);
+        }
+
+        /**
+         * Keeps scans open after their last flow detaches until every pin has been released.
+         */
+        synchronized void pin() {
+            pins++;
+        }
+
+        /**
+         * Releases one pin, closing the scans without flows once none remain.
+         */
+        void unpin() {
+            List<SharedScan<?>> idle = new ArrayList<>();
+            synchronized (this) {
+                if (pins == 0) {
+                    throw new IllegalStateException("registry is not pinned");
+                }
+                pins--;
+                if (pins == 0) {
+                    for (Iterator<SharedScan<?>> it = scans.values().iterator(); it.hasNext(); ) {
+                        SharedScan<?> scan = it.next();
+                        if (scan.attached == 0) {
+                            idle.add(scan);
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            idle.forEach(SharedScan::release);
+        }
+
+        synchronized int size() {
+            return scans.size();
+        }
+
+        /**
+         * Returns the number of scans started, each of which executed its own initial query.
+         *
+         * @return the count
+         */
+        synchronized long getScansStarted() {
+            return scansStarted;
+        }
+
+        /**
+         * Returns the number of times a flow attached to a scan whether new or already running.
+         *
+         * @return the count
+         */
+        synchronized long getAttachments() {
+            return attachments;
+        }
+
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Provides for retrieval of valid values for the first parameter specification from a scan shared with other
+ * concurrent flows. The processor keeps its own position in the scan, applies its own matcher and de-duplicates
+ * its own values, so it behaves like a single connection initial stage which cycles through its results.
+ *
+ * @author kbrockhoff
+ */
+class SharedScanProcessor<T extends Comparable<? super T>> implements QueryStage {
+
+    private final Logger logger = LoggerFactory.getLogger(SharedScanProcessor.class);
+    private final String componentId;
+    private final ParamSpec<T> paramSpec;
+    private final int batchSize;
+    private final SharedScan<T> scan;
+    private final EventBus eventBus;
+    private final TupleBatcher batcher;
+    private final AdaptiveBudget budget;
+    private volatile PipelineMetrics.StageRecorder recorder;
+    private final Set<T> distinctEmitted = new HashSet<>();
+    private int position = 0;
+    private boolean acceptedThisPass = false;
+    private final AtomicBoolean attached = new AtomicBoolean(true);
+    private volatile boolean terminated = false;
+
+    /**
+     * Constructs a processor which is attached to the supplied scan until it is closed.
+     *
+     * @param paramSpec the first spec
+     * @param batchSize the desired tuples set size
+     * @param scan      the shared scan
+     * @param eventBus  the inter-component event bus
+     */
+    SharedScanProcessor(ParamSpec<T> paramSpec, int batchSize, SharedScan<T> scan, EventBus eventBus) {
+        checkNotNull(paramSpec);
+        checkNotNull(scan);
+        checkNotNull(eventBus);
+        this.componentId = UUID.randomUUID().toString();
+        this.paramSpec = paramSpec;
+        this.batchSize = batchSize;
+        this.scan = scan;
+        this.eventBus = eventBus;
+        this.batcher = new TupleBatcher(componentId, eventBus, TupleBatcher.DEFAULT_MAX_BATCH);
+        this.budget = new AdaptiveBudget(batchSize);
+        eventBus.registerReceiver(this);
+    }
+
+    @Override
+    public String getComponentId() {
+        return componentId;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Tuple> subscriber) {
+        logger.trace("subscribe({})", subscriber);
+        batcher.connect(this, subscriber);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        logger.warn("{} is always the initial stage, per rule 2.5 calling cancel", this);
+        subscription.cancel();
+    }
+
+    @Override
+    public void onNext(Tuple item) {
+        throw new IllegalStateException("initial stage does not receive items");
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.trace("onError({})", throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        logger.trace("onComplete()");
+    }
+
+    @Override
+    public synchronized void request(long l) {
+        logger.trace("request({})", l);
+        try {
+            for (long i = 0L; i < l && !terminated; i++) {
+                emitNext();
+            }
+            batcher.flush();
+        } catch (SQLException cause) {
+            if (!terminated) {
+                logger.warn("{} query failed: {}", this, cause.getMessage());
+                batcher.fail(cause);
+                terminated = true;
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        logger.trace("cancel()");
+        terminated = true;
+    }
+
+    @Override
+    public void abort() {
+        logger.trace("abort()");
+        terminated = true;
+        detach();
+    }
+
+    @Override
+    public void recordMetricsTo(PipelineMetrics.StageRecorder recorder) {
+        checkNotNull(recorder);
+        this.recorder = recorder;
+        budget.reportTo(recorder);
+    }
+
+    @Override
+    public void recordQueueWait(long nanos) {
+        PipelineMetrics.StageRecorder current = recorder;
+        if (current != null) {
+            current.recordQueueWait(nanos);
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.trace("close()");
+        terminated = true;
+        eventBus.unregisterReceiver(this);
+        detach();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " for " + paramSpec;
+    }
+
+    private void emitNext() throws SQLException {
+        if (budget.isCeilingReached()) {
+            complete();
+            return;
+        }
+        while (!terminated) {
+            T value = scan.get(position);
+            if (position >= scan.size()) {
+                if (position == 0) {
+                    logger.warn("encountered empty result set");
+                    complete();
+                    return;
+                }
+                if (distinctEmitted.size() < batchSize && scan.grow()) {
+                    continue;
+                }
+                if (!acceptedThisPass) {
+                    logger.warn("{} no acceptable values are available", this);
+                    batcher.fail(new IllegalStateException("no acceptable values are available"));
+                    terminated = true;
+                    return;
+                }
+                position = 0;
+                acceptedThisPass = false;
+                continue;
+            }
+            position++;
+            boolean accepted = paramSpec.isAcceptableValue(value);
+            budget.recordRow(accepted);
+            if (accepted) {
+                acceptedThisPass = true;
+                boolean novel = distinctEmitted.add(value);
+                budget.recordResult(novel);
+                budget.recordAttempt(novel);
+                Tuple result = Tuple.EMPTY_TUPLE.addElement(paramSpec.getColumn(), value);
+                batcher.add(result);
+                return;
+            }
+        }
+    }
+
+    private void complete() {
+        batcher.complete();
+        terminated = true;
+    }
+
+    private void detach() {
+        if (attached.compareAndSet(true, false)) {
+            scan.detach();
+        }
+    }
+
+}
@@ -15,19 +15,25 @@
  */
 package org.codekaizen.test.db.paramin;
 
-import org.reactivestreams.Processor;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
 
@@ -36,23 +42,41 @@ import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
  *
  * @author kbrockhoff
  */
-class SqlQueryProcessor<T extends Comparable<? super T>>
-        implements Component, Processor<Tuple, Tuple>, Subscription, AutoCloseable {
-
-    private static final int TRYS_MULTIPLE = 4;
+class SqlQueryProcessor<T extends Comparable<? super T>> implements QueryStage {
 
     private Logger logger = LoggerFactory.getLogger(SqlQueryProcessor.class);
     private final String componentId;
     private final ParamSpec<T> paramSpec;
     private final int batchSize;
-    private final PreparedStatement statement;
+    private volatile PreparedStatement statement;
     private final EventBus eventBus;
+    private final TupleBatcher batcher;
     private Subscription subscription;
-    private ResultSet resultSet;
+    private volatile ResultSet resultSet;
     private final Set<Tuple> alreadySeen = new HashSet<>();
-    private int totalRequests = 0;
+    private final AdaptiveBudget budget;
     private int resultSetSize = 0;
     private boolean terminated = false;
+    private ReservoirSampler<T> reservoir;
+    private int maxRowsScanned;
+    private Iterator<T> sampled;
+    private final Set<T> alreadyEmitted = new HashSet<>();
+    private QueryDeadline deadline;
+    private IntFunction<String> sqlForLimit;
+    private int currentLimit = Integer.MAX_VALUE;
+    private final Set<T> distinctEmitted = new HashSet<>();
+    private NegativeCache negativeCache;
+    private Object negativeCacheSource;
+    private String sql;
+    private QueryHedger hedger;
+    private Supplier<Connection> hedgeConnectionSupplier;
+    private final Set<StatementCall> hedges = ConcurrentHashMap.newKeySet();
+    private StatementCall servingHedge;
+    private volatile PipelineMetrics.StageRecorder recorder;
+    private String flightSql;
+    private Object queryEvent;
+    private long rowsRead;
+    private long rowsAccepted;
 
     SqlQueryProcessor(ParamSpec<T> paramSpec, int batchSize, PreparedStatement statement, EventBus eventBus) {
         checkNotNull(paramSpec);
@@ -63,9 +87,115 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
         this.batchSize = batchSize;
         this.statement = statement;
         this.eventBus = eventBus;
+        this.batcher = new TupleBatcher(componentId, eventBus, TupleBatcher.DEFAULT_MAX_BATCH);
+        this.budget = new AdaptiveBudget(batchSize);
         eventBus.registerReceiver(this);
     }
 
+    /**
+     * Allows the initial query to be re-prepared with a larger row limit when a pass over its results ends at
+     * the limit without yielding enough distinct acceptable values.
+     *
+     * @param sqlForLimit  constructs the initial query for a row limit
+     * @param currentLimit the row limit of the statement supplied at construction
+     */
+    void resizeLimitUsing(IntFunction<String> sqlForLimit, int currentLimit) {
+        checkNotNull(sqlForLimit);
+        this.sqlForLimit = sqlForLimit;
+        this.currentLimit = currentLimit;
+    }
+
+    /**
+     * Supplies the SQL of the statement supplied at construction so flight recorder events can report it.
+     *
+     * @param sql the statement's SQL
+     */
+    void identifySql(String sql) {
+        checkNotNull(sql);
+        this.flightSql = sql;
+    }
+
+    /**
+     * Skips upstream tuples the shared cache knows have no acceptable value for this stage and records new
+     * dead ends in it.
+     *
+     * @param negativeCache the cache
+     * @param source        the data source the stage queries or null if there is only one
+     * @param sql           the stage's SQL statement which identifies the plan along with the matcher
+     */
+    void useNegativeCache(NegativeCache negativeCache, Object source, String sql) {
+        checkNotNull(negativeCache);
+        checkNotNull(sql);
+        this.negativeCache = negativeCache;
+        this.negativeCacheSource = source;
+        this.sql = sql;
+    }
+
+    /**
+     * Issues a second copy of each stage query on another connection when the first is slower than the hedger's
+     * threshold for this stage's plan. Each copy leases its own connection, which is released once the copy has
+     * lost and been cancelled or once its results have been read.
+     *
+     * @param hedger             decides when to hedge and tracks latencies
+     * @param sql                the stage's SQL statement which identifies the plan
+     * @param connectionSupplier provides the connection for the copy or null if none can be leased
+     */
+    void hedgeUsing(QueryHedger hedger, String sql, Supplier<Connection> connectionSupplier) {
+        checkNotNull(hedger);
+        checkNotNull(sql);
+        checkNotNull(connectionSupplier);
+        this.hedger = hedger;
+        this.sql = sql;
+        this.hedgeConnectionSupplier = connectionSupplier;
+    }
+
+    /**
+     * Returns the statistics the stage's budget is derived from.
+     *
+     * @return the budget
+     */
+    AdaptiveBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Switches the initial query to reading at most the supplied number of rows in one pass and emitting values
+     * from a uniform random sample of the acceptable ones.
+     *
+     * @param reservoir      the sampler whose capacity is the number of values which may be emitted
+     * @param maxRowsScanned the maximum number of rows read
+     */
+    void sampleUsingReservoir(ReservoirSampler<T> reservoir, int maxRowsScanned) {
+        checkNotNull(reservoir);
+        this.reservoir = reservoir;
+        this.maxRowsScanned = maxRowsScanned;
+    }
+
+    /**
+     * Bounds every execution of the statement by what remains of the supplied deadline.
+     *
+     * @param deadline the task deadline
+     */
+    void applyDeadline(QueryDeadline deadline) {
+        checkNotNull(deadline);
+        this.deadline = deadline;
+    }
+
+    @Override
+    public void recordMetricsTo(PipelineMetrics.StageRecorder recorder) {
+        checkNotNull(recorder);
+        this.recorder = recorder;
+        budget.reportTo(recorder);
+    }
+
+    @Override
+    public void recordQueueWait(long nanos) {
+        PipelineMetrics.StageRecorder current = recorder;
+        if (current != null) {
+            current.recordQueueWait(nanos);
+        }
+    }
+
     @Override
     public String getComponentId() {
         return componentId;
@@ -74,8 +204,7 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
     @Override
     public void subscribe(Subscriber<? super Tuple> subscriber) {
         logger.trace("subscribe({})", subscriber);
-        SubscriptionImpl sub = new SubscriptionImpl(subscriber, eventBus);
-        eventBus.publish(new OnSubscribeEvent(getComponentId(), sub));
+        batcher.connect(this, subscriber);
     }
 
     @Override
@@ -94,24 +223,48 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
     public void onNext(Tuple item) {
         logger.trace("onNext({})", item);
         checkNotNull(item, "rule 2.13 requires throwing of null pointer");
-        if (item.containsNullValue()) {
-            doRequest(1l);
-            return;
+        onNextBatch(Collections.singletonList(item));
+    }
+
+    @Override
+    public void onNextBatch(List<Tuple> items) {
+        logger.trace("onNextBatch({})", items.size());
+        long misses = 0L;
+        for (Tuple item : items) {
+            checkNotNull(item, "rule 2.13 requires throwing of null pointer");
+            if (item.containsNullValue()) {
+                misses++;
+                continue;
+            }
+            try {
+                if (!queryBasedOnReceivedTuple(item)) {
+                    misses++;
+                }
+            } catch (SQLException cause) {
+                logger.warn("{} query failed: {}", getProcessorName(), cause.getMessage());
+                terminateDueTo(cause);
+                return;
+            }
+        }
+        batcher.flush();
+        if (misses > 0L) {
+            logger.debug("{} unable to find acceptable values for {} tuples, requesting replacements",
+                    getProcessorName(), misses);
+            doRequest(misses);
         }
-        queryDatabaseForValues(item);
     }
 
     @Override
     public void onError(Throwable throwable) {
         logger.trace("onError({})", throwable);
-        eventBus.publish(new OnErrorEvent(getComponentId(), throwable));
+        batcher.fail(throwable);
         terminated = true;
     }
 
     @Override
     public void onComplete() {
         logger.trace("onComplete()");
-        eventBus.publish(new OnCompleteEvent(getComponentId()));
+        batcher.complete();
         terminated = true;
     }
 
@@ -122,6 +275,7 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
             for (int i = 0; i < (int) l; i++) {
                 queryDatabaseForValues(Tuple.EMPTY_TUPLE);
             }
+            batcher.flush();
         } else {
             doRequest(l);
         }
@@ -135,13 +289,24 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
         }
     }
 
+    @Override
+    public void abort() {
+        logger.trace("abort()");
+        terminated = true;
+        cancelQuietly(statement);
+        hedges.forEach(StatementCall::cancel);
+        closeQuietly(resultSet);
+    }
+
     @Override
     public void close() {
         logger.trace("close()");
         alreadySeen.clear();
         eventBus.unregisterReceiver(this);
+        commitQueryEvent();
         closeQuietly(resultSet);
         closeQuietly(statement);
+        hedges.forEach(StatementCall::release);
     }
 
     @Override
@@ -174,8 +339,8 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
         try {
             if (isInitialProcessor()) {
                 queryWithNoParameters(item);
-            } else {
-                queryBasedOnReceivedTuple(item);
+            } else if (!queryBasedOnReceivedTuple(item)) {
+                doRequest(1l);
             }
         } catch (SQLException cause) {
             logger.warn("{} query failed: {}", getProcessorName(), cause.getMessage());
@@ -184,8 +349,11 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
     }
 
     private void queryWithNoParameters(Tuple item) throws SQLException {
-        totalRequests++;
-        if (isTotalRequestsExceedMaximum()) {
+        if (isBudgetExhausted(budget.isCeilingReached())) {
+            return;
+        }
+        if (reservoir != null) {
+            emitFromReservoir(item);
             return;
         }
         retrieveResultSetIfNeeded();
@@ -193,19 +361,65 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
         if (loopThruResultSet(item, seenThisLoop)) {
             return;
         }
-        closeQuietly(resultSet);
-        if (resultSetSize == 0) {
-            logger.warn("encountered empty result set");
-            eventBus.publish(new OnCompleteEvent(getComponentId()));
-            terminated = true;
+        boolean grown;
+        do {
+            commitQueryEvent();
+            closeQuietly(resultSet);
+            if (resultSetSize == 0) {
+                logger.warn("encountered empty result set");
+                batcher.complete();
+                terminated = true;
+            }
+            grown = resizeLimitIfNeeded();
+            if (grown) {
+                seenThisLoop.clear();
+            }
+            retrieveResultSetIfNeeded();
+        } while (!loopThruResultSet(item, seenThisLoop) && grown);
+    }
+
+    private void emitFromReservoir(Tuple item) throws SQLException {
+        if (sampled == null) {
+            fillReservoir();
+            sampled = reservoir.getSample().iterator();
         }
-        retrieveResultSetIfNeeded();
-        loopThruResultSet(item, seenThisLoop);
+        while (sampled.hasNext()) {
+            T value = sampled.next();
+            if (alreadyEmitted.add(value)) {
+                Tuple result = item.addElement(paramSpec.getColumn(), value);
+                batcher.add(result);
+                return;
+            }
+        }
+        logger.debug("{} emitted all {} sampled values", getProcessorName(), alreadyEmitted.size());
+        batcher.complete();
+        terminated = true;
+    }
+
+    private void fillReservoir() throws SQLException {
+        int rows = 0;
+        applyDeadlineIfNeeded();
+        try (ResultSet rs = executeQuery()) {
+            while (rows < maxRowsScanned && rs.next()) {
+                rows++;
+                rowsRead++;
+                T value = retrieveValue(rs);
+                if (paramSpec.isAcceptableValue(value)) {
+                    rowsAccepted++;
+                    reservoir.offer(value);
+                }
+            }
+        } finally {
+            commitQueryEvent();
+        }
+        logger.debug("{} sampled {} of {} acceptable values in {} rows scanned", getProcessorName(),
+                reservoir.size(), reservoir.getOffered(), rows);
     }
 
     private boolean loopThruResultSet(Tuple item, Set<T> seenThisLoop) throws SQLException {
         while (resultSet.next()) {
             resultSetSize++;
+            rowsRead++;
             T value = retrieveValue(resultSet);
             if (seenThisLoop.contains(value)) {
                 logger.warn("{} no acceptable values are available", getProcessorName());
@@ -214,38 +428,131 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
                 return true;
             }
             seenThisLoop.add(value);
-            if (paramSpec.isAcceptableValue(value)) {
+            boolean accepted = paramSpec.isAcceptableValue(value);
+            budget.recordRow(accepted);
+            if (accepted) {
+                rowsAccepted++;
+                boolean novel = distinctEmitted.add(value);
+                budget.recordResult(novel);
+                budget.recordAttempt(novel);
                 Tuple result = item.addElement(paramSpec.getColumn(), value);
-                eventBus.publish(new OnNextEvent(getComponentId(), result));
+                batcher.add(result);
                 return true;
             }
         }
         return false;
     }
 
-    private void queryBasedOnReceivedTuple(Tuple item) throws SQLException {
+    private boolean queryBasedOnReceivedTuple(Tuple item) throws SQLException {
+        if (negativeCache != null
+                && negativeCache.isDeadEnd(negativeCacheSource, sql, paramSpec.getMatcher(), item.getValues())) {
+            logger.debug("{} skipping known dead end {}", getProcessorName(), item);
+            budget.recordAttempt(false);
+            return false;
+        }
+        boolean foundAcceptable = false;
         item.populateStatementParameters(statement);
-        try (ResultSet rs = statement.executeQuery()) {
+        applyDeadlineIfNeeded();
+        statement.setFetchSize(budget.sizeFetch(budget.sizeLimit(1)));
+        try (ResultSet rs = executeStageQuery(item)) {
             while (rs.next()) {
+                rowsRead++;
                 T value = retrieveValue(rs);
-                if (paramSpec.isAcceptableValue(value)) {
+                boolean accepted = paramSpec.isAcceptableValue(value);
+                budget.recordRow(accepted);
+                if (accepted) {
+                    rowsAccepted++;
+                    foundAcceptable = true;
                     Tuple result = item.addElement(paramSpec.getColumn(), value);
-                    if (alreadySeen.contains(result)) {
+                    boolean novel = alreadySeen.add(result);
+                    budget.recordResult(novel);
+                    if (!novel) {
                         logger.debug("already seen {}", result);
                         continue;
                     }
-                    alreadySeen.add(result);
-                    eventBus.publish(new OnNextEvent(getComponentId(), result));
-                    return;
+                    budget.recordAttempt(true);
+                    batcher.add(result);
+                    return true;
                 }
             }
+        } finally {
+            commitQueryEvent();
+            releaseServingHedge();
+        }
+        budget.recordAttempt(false);
+        if (negativeCache != null && !foundAcceptable) {
+            negativeCache.recordDeadEnd(negativeCacheSource, sql, paramSpec.getMatcher(), item.getValues());
+        }
+        logger.debug("{} unable to find acceptable value to addElement to {}", getProcessorName(), item);
+        return false;
+    }
+
+    private ResultSet executeStageQuery(Tuple item) throws SQLException {
+        if (hedger == null) {
+            return executeQuery();
+        }
+        beginQueryEvent();
+        long started = System.nanoTime();
+        StatementCall backup = new StatementCall(item);
+        ResultSet rs = hedger.execute(sql, new StatementCall(null), backup);
+        if (backup.isServing(rs)) {
+            servingHedge = backup;
+        }
+        recordQuery(started);
+        return rs;
+    }
+
+    private void releaseServingHedge() {
+        if (servingHedge != null) {
+            servingHedge.release();
+            servingHedge = null;
+        }
+    }
+
+    private ResultSet executeQuery() throws SQLException {
+        beginQueryEvent();
+        long started = System.nanoTime();
+        ResultSet rs = statement.executeQuery();
+        recordQuery(started);
+        return rs;
+    }
+
+    private void recordQuery(long started) {
+        if (recorder != null) {
+            recorder.recordQuery(System.nanoTime() - started);
+        }
+    }
+
+    private void beginQueryEvent() {
+        queryEvent = FlightEvents.STAGE_QUERY.begin();
+        rowsRead = 0L;
+        rowsAccepted = 0L;
+    }
+
+    private void commitQueryEvent() {
+        if (queryEvent != null) {
+            FlightEvents.STAGE_QUERY.commit(queryEvent, flightSql != null ? flightSql : sql,
+                    paramSpec.getTable() + '.' + paramSpec.getColumn(), rowsRead, rowsAccepted);
+            queryEvent = null;
         }
-        logger.debug("{} unable to find acceptable value to addElement to {}, requesting another tuple",
-                getProcessorName(), item);
-        doRequest(1l);
     }
 
     private T retrieveValue(ResultSet rs) throws SQLException {
+        return retrieveValue(paramSpec, rs);
+    }
+
+    /**
+     * Retrieves the value in the first column of the current result set row converted to the spec's type.
+     *
+     * @param paramSpec the spec the value is being retrieved for
+     * @param rs        the result set positioned on a row
+     * @param <T>       the parameter type
+     * @return the value
+     * @throws SQLException if unable to read the column
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Comparable<? super T>> T retrieveValue(ParamSpec<T> paramSpec, ResultSet rs)
+            throws SQLException {
         T result = null;
         switch (paramSpec.getSqlType()) {
             case DECIMAL:
@@ -277,30 +584,71 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
         if (resultSet == null || resultSet.isClosed()) {
             logger.debug("executing query to retrieve result set for {}", paramSpec);
             resultSetSize = 0;
-            resultSet = statement.executeQuery();
+            applyDeadlineIfNeeded();
+            if (currentLimit != Integer.MAX_VALUE) {
+                statement.setFetchSize(budget.sizeFetch(currentLimit));
+            }
+            resultSet = executeQuery();
+        }
+    }
+
+    private void applyDeadlineIfNeeded() throws SQLException {
+        if (deadline != null) {
+            deadline.applyTo(statement);
         }
     }
 
+    private boolean resizeLimitIfNeeded() throws SQLException {
+        int needed = batchSize - distinctEmitted.size();
+        if (sqlForLimit == null || needed <= 0 || resultSetSize < currentLimit) {
+            return false;
+        }
+        int limit = budget.sizeLimit(needed) + resultSetSize;
+        if (limit <= currentLimit) {
+            return false;
+        }
+        logger.debug("{} growing limit from {} to {} using {}", getProcessorName(), currentLimit, limit, budget);
+        PreparedStatement previous = statement;
+        String resized = sqlForLimit.apply(limit);
+        statement = previous.getConnection().prepareStatement(resized, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        flightSql = resized;
+        currentLimit = limit;
+        closeQuietly(previous);
+        return true;
+    }
+
     private void doRequest(long l) {
-        if (!isTotalRequestsExceedMaximum()) {
-            totalRequests += l;
+        if (!isBudgetExhausted(budget.isExhausted())) {
             subscription.request(l);
         }
     }
 
-    private boolean isTotalRequestsExceedMaximum() {
-        boolean result = totalRequests >= batchSize * TRYS_MULTIPLE;
-        if (result) {
-            logger.warn("only able to retrieve results.size={} before exhausting the possiblities",
-                    totalRequests / TRYS_MULTIPLE);
-            eventBus.publish(new OnCompleteEvent(getComponentId()));
+    private boolean isBudgetExhausted(boolean exhausted) {
+        if (terminated) {
+            return true;
+        }
+        if (exhausted) {
+            logger.warn("{} exhausted the possibilities after {} distinct values with {}", getProcessorName(),
+                    isInitialProcessor() ? distinctEmitted.size() : alreadySeen.size(), budget);
+            batcher.complete();
             terminated = true;
         }
-        return result;
+        return exhausted;
     }
 
     private void terminateDueTo(Throwable throwable) {
-        eventBus.publish(new OnErrorEvent(getComponentId(), throwable));
+        batcher.fail(throwable);
+    }
+
+    private void cancelQuietly(Statement stmt) {
+        if (stmt != null) {
+            try {
+                stmt.cancel();
+            } catch (SQLException ignore) {
+                logger.info("exception on cancel: {}", ignore.getMessage());
+            }
+        }
     }
 
     private void closeQuietly(AutoCloseable closeable) {
@@ -313,4 +661,87 @@ class SqlQueryProcessor<T extends Comparable<? super T>>
         }
     }
 
+    /**
+     * Runs the stage query on either the stage statement or, for a hedge, a copy of it prepared on a connection
+     * leased for that hedge alone.
+     */
+    private class StatementCall implements QueryHedger.Call<ResultSet> {
+
+        private final Tuple backupItem;
+        private volatile PreparedStatement running;
+        private volatile ResultSet result;
+        private Connection connection;
+        private boolean cancelled = false;
+
+        StatementCall(Tuple backupItem) {
+            this.backupItem = backupItem;
+        }
+
+        @Override
+        public ResultSet call() throws SQLException {
+            if (backupItem == null) {
+                running = statement;
+                return running.executeQuery();
+            }
+            hedges.add(this);
+            try {
+                result = prepare().executeQuery();
+                return result;
+            } catch (SQLException | RuntimeException cause) {
+                release();
+                throw cause;
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            cancelQuietly(running);
+        }
+
+        @Override
+        public void discard(ResultSet result) {
+            closeQuietly(result);
+            release();
+        }
+
+        boolean isServing(ResultSet rs) {
+            return backupItem != null && rs != null && rs == result;
+        }
+
+        /**
+         * Closes the copy's statement and returns its connection. Does nothing for the primary.
+         */
+        synchronized void release() {
+            hedges.remove(this);
+            if (backupItem == null || connection == null) {
+                return;
+            }
+            closeQuietly(running);
+            closeQuietly(connection);
+            running = null;
+            connection = null;
+        }
+
+        private synchronized PreparedStatement prepare() throws SQLException {
+            if (cancelled) {
+                throw new SQLException("hedge cancelled before it started");
+            }
+            connection = hedgeConnectionSupplier.get();
+            if (connection == null) {
+                throw new SQLException("no connection available to hedge on");
+            }
+            running = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            backupItem.populateStatementParameters(running);
+            if (deadline != null) {
+                deadline.applyTo(running);
+            }
+            running.setFetchSize(statement.getFetchSize());
+            return running;
+        }
+
+    }
+
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+/**
+ * Enumerates why a parameter retrieval stopped, as reported by {@link FindParametersResult}.
+ *
+ * @author kbrockhoff
+ */
+public enum TerminationReason {
+
+    /**
+     * The desired number of distinct tuples was retrieved.
+     */
+    DESIRED_SIZE_REACHED,
+    /**
+     * The stages ran out of candidate values, either because their queries returned no more rows or because
+     * their own request budgets judged further attempts unproductive.
+     */
+    SOURCE_EXHAUSTED,
+    /**
+     * The retrieval's request budget was used up by tuples which were duplicates of ones already retrieved.
+     */
+    BUDGET_EXHAUSTED,
+    /**
+     * The time budget of the specifications ran out.
+     */
+    DEADLINE_EXPIRED,
+    /**
+     * The retrieval was cancelled by the caller, a downstream subscriber or an interrupt.
+     */
+    CANCELLED,
+    /**
+     * A query or the configuration of the processing flow failed.
+     */
+    FAILED,
+    ;
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Collects the tuples a stage emits while handling one signal so they are published as a single
+ * {@link OnNextBatchEvent} rather than one {@link OnNextEvent} each. Collected tuples are published when the
+ * maximum batch size is reached, when the stage finishes handling the signal or just before it publishes
+ * anything else so items are never reordered after a terminal event.
+ *
+ * <p>The batcher also connects its stage to the stage's subscriber. On a {@link FusedEventBus} the two are
+ * linked directly and every signal is a call on the link rather than a published event.</p>
+ *
+ * @author kbrockhoff
+ */
+class TupleBatcher {
+
+    static final int DEFAULT_MAX_BATCH = 32;
+
+    private final String senderId;
+    private final EventBus eventBus;
+    private final int maxBatch;
+    private List<Tuple> items = new ArrayList<>();
+    private volatile FusedEventBus.Link downstream;
+
+    /**
+     * Constructs a batcher.
+     *
+     * @param senderId the component id of the stage emitting the tuples
+     * @param eventBus the bus to publish on
+     * @param maxBatch the maximum number of tuples in one event
+     */
+    TupleBatcher(String senderId, EventBus eventBus, int maxBatch) {
+        checkNotNull(senderId);
+        checkNotNull(eventBus);
+        checkArgument(maxBatch > 0, "maxBatch must be greater than zero");
+        this.senderId = senderId;
+        this.eventBus = eventBus;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Subscribes the supplied subscriber to the batcher's stage.
+     *
+     * @param publisher  the stage
+     * @param subscriber the subscriber
+     */
+    void connect(Subscription publisher, Subscriber<? super Tuple> subscriber) {
+        if (eventBus instanceof FusedEventBus) {
+            downstream = ((FusedEventBus) eventBus).link(senderId, publisher, subscriber);
+        } else {
+            eventBus.publish(new OnSubscribeEvent(senderId, new SubscriptionImpl(subscriber, eventBus)));
+        }
+    }
+
+    /**
+     * Adds a tuple to the batch being collected.
+     *
+     * @param item the emitted tuple
+     */
+    void add(Tuple item) {
+        items.add(item);
+        if (items.size() >= maxBatch) {
+            flush();
+        }
+    }
+
+    /**
+     * Publishes the collected tuples, as a plain {@link OnNextEvent} if there is only one.
+     */
+    void flush() {
+        if (items.isEmpty()) {
+            return;
+        }
+        FusedEventBus.Link link = downstream;
+        if (link != null) {
+            if (items.size() == 1) {
+                link.onNext(items.get(0));
+                items.clear();
+            } else {
+                link.onNextBatch(items);
+                items = new ArrayList<>();
+            }
+        } else if (items.size() == 1) {
+            eventBus.publish(new OnNextEvent(senderId, items.get(0)));
+            items.clear();
+        } else {
+            eventBus.publish(new OnNextBatchEvent(senderId, items));
+            items = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Publishes the collected tuples followed by the supplied event.
+     *
+     * @param event any other event from the stage
+     */
+    void publishAfterFlush(EventObject event) {
+        flush();
+        eventBus.publish(event);
+    }
+
+    /**
+     * Publishes the collected tuples followed by completion.
+     */
+    void complete() {
+        FusedEventBus.Link link = downstream;
+        if (link != null) {
+            flush();
+            link.onComplete();
+        } else {
+            publishAfterFlush(new OnCompleteEvent(senderId));
+        }
+    }
+
+    /**
+     * Publishes the collected tuples followed by the supplied failure.
+     *
+     * @param throwable the failure
+     */
+    void fail(Throwable throwable) {
+        FusedEventBus.Link link = downstream;
+        if (link != null) {
+            flush();
+            link.onError(throwable);
+        } else {
+            publishAfterFlush(new OnErrorEvent(senderId, throwable));
+        }
+    }
+
+}
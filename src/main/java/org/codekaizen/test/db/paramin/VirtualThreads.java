@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Looks up the virtual thread support added in Java 21 reflectively so the library still builds and runs on
+ * the Java 8 baseline.
+ *
+ * @author kbrockhoff
+ */
+final class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+    private static final Method NEW_EXECUTOR = lookupFactory();
+
+    private VirtualThreads() {
+        // utility class
+    }
+
+    /**
+     * Returns whether the running JDK supports virtual threads.
+     *
+     * @return true if supported
+     */
+    static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Constructs an executor which starts a new virtual thread for every task.
+     *
+     * @return the executor or empty if the running JDK does not support virtual threads
+     */
+    static Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+        if (NEW_EXECUTOR == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of((ExecutorService) NEW_EXECUTOR.invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException cause) {
+            logger.warn("unable to construct virtual thread executor: {}", cause.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static Method lookupFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException | SecurityException cause) {
+            logger.debug("virtual threads not supported by this JDK");
+            return null;
+        }
+    }
+
+}
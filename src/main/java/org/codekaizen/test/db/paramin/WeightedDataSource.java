@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import javax.sql.DataSource;
+
+import static org.codekaizen.test.db.paramin.Preconditions.checkArgument;
+import static org.codekaizen.test.db.paramin.Preconditions.checkNotNull;
+
+/**
+ * Wraps one of the data sources a {@link FindParametersExecutor} distributes retrievals across together with
+ * its relative weight and the maximum number of connections retrievals may hold against it at once.
+ *
+ * @author kbrockhoff
+ */
+public class WeightedDataSource {
+
+    /** Value used when a data source has no connection limit. */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final DataSource dataSource;
+    private final int weight;
+    private final int connectionLimit;
+
+    /**
+     * Constructs an unlimited data source with the supplied weight.
+     *
+     * @param dataSource the database connection pool
+     * @param weight the relative share of the load this source should take
+     */
+    public WeightedDataSource(DataSource dataSource, int weight) {
+        this(dataSource, weight, UNLIMITED);
+    }
+
+    /**
+     * Constructs a data source with the supplied weight and connection limit.
+     *
+     * @param dataSource the database connection pool
+     * @param weight the relative share of the load this source should take
+     * @param connectionLimit the maximum connections held at once before other sources are preferred
+     */
+    public WeightedDataSource(DataSource dataSource, int weight, int connectionLimit) {
+        checkNotNull(dataSource, "dataSource is required parameter");
+        checkArgument(weight > 0, "weight must be positive");
+        checkArgument(connectionLimit > 0, "connectionLimit must be positive");
+        this.dataSource = dataSource;
+        this.weight = weight;
+        this.connectionLimit = connectionLimit;
+    }
+
+    /**
+     * Returns the database connection pool.
+     *
+     * @return the data source
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Returns the relative share of the load this source should take.
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the maximum connections held at once before other sources are preferred.
+     *
+     * @return the limit or {@link #UNLIMITED}
+     */
+    public int getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "WeightedDataSource{" + dataSource + ", weight=" + weight
+                + (connectionLimit == UNLIMITED ? "" : ", connectionLimit=" + connectionLimit) + '}';
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AdaptiveBudget.
+ *
+ * @author kbrockhoff
+ */
+public class AdaptiveBudgetTest {
+
+    @Test
+    public void shouldSizeLargerLimitsForSelectiveMatchers() {
+        AdaptiveBudget permissive = new AdaptiveBudget(10);
+        AdaptiveBudget selective = new AdaptiveBudget(10);
+        for (int i = 0; i < 100; i++) {
+            permissive.recordRow(true);
+            selective.recordRow(i % 20 == 0);
+        }
+        assertTrue(selective.sizeLimit(10) > permissive.sizeLimit(10));
+        assertTrue(permissive.sizeLimit(10) < 10 * 16);
+    }
+
+    @Test
+    public void shouldAllowMoreMissesWhenYieldIsLow() {
+        AdaptiveBudget productive = new AdaptiveBudget(10);
+        AdaptiveBudget sparse = new AdaptiveBudget(10);
+        for (int i = 0; i < 100; i++) {
+            productive.recordAttempt(true);
+            sparse.recordAttempt(i % 25 == 0);
+        }
+        assertTrue(sparse.getMissThreshold() > productive.getMissThreshold());
+    }
+
+    @Test
+    public void shouldBeExhaustedAfterRunOfMisses() {
+        AdaptiveBudget budget = new AdaptiveBudget(10);
+        for (int i = 0; i < 10; i++) {
+            budget.recordAttempt(true);
+        }
+        int misses = 0;
+        while (!budget.isExhausted()) {
+            budget.recordAttempt(false);
+            misses++;
+        }
+        assertEquals(budget.getMissThreshold(), misses);
+        assertFalse(budget.isCeilingReached());
+    }
+
+    @Test
+    public void shouldStopZeroYieldStageAfterMinimumMisses() {
+        AdaptiveBudget budget = new AdaptiveBudget(100);
+        int attempts = 0;
+        while (!budget.isExhausted()) {
+            budget.recordAttempt(false);
+            attempts++;
+        }
+        assertEquals(AdaptiveBudget.MIN_MISS_THRESHOLD, attempts);
+        assertFalse(budget.isCeilingReached());
+    }
+
+    @Test
+    public void shouldKeepLowYieldStageGoingPastFourTimesDesiredSize() {
+        AdaptiveBudget budget = new AdaptiveBudget(10);
+        for (int i = 0; i < 200; i++) {
+            budget.recordAttempt(i % 8 == 0);
+            assertFalse("stopped after " + (i + 1) + " attempts", budget.isExhausted());
+        }
+        assertTrue(budget.getAttempts() > 10 * 4);
+        assertTrue(budget.getAttemptCeiling() > budget.getAttempts());
+        AdaptiveBudget barren = new AdaptiveBudget(10);
+        int attempts = 0;
+        while (!barren.isExhausted()) {
+            barren.recordAttempt(false);
+            attempts++;
+        }
+        assertEquals(AdaptiveBudget.MIN_MISS_THRESHOLD, attempts);
+    }
+
+    @Test
+    public void shouldClampInitialLimit() {
+        assertEquals(AdaptiveBudget.MIN_LIMIT, AdaptiveBudget.initialLimit(1));
+        assertEquals(40, AdaptiveBudget.initialLimit(10));
+    }
+
+}
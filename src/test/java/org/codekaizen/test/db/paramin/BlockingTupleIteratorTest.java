@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BlockingTupleIterator.
+ *
+ * @author kbrockhoff
+ */
+public class BlockingTupleIteratorTest {
+
+    @Test
+    public void shouldRequestPrefetchOnSubscribeAndReplenishAsConsumed() {
+        RecordingSubscription subscription = new RecordingSubscription();
+        BlockingTupleIterator iterator = new BlockingTupleIterator(4);
+        iterator.onSubscribe(subscription);
+        assertEquals(4L, subscription.requested);
+        for (int i = 0; i < 4; i++) {
+            iterator.onNext(Tuple.singleOf("id", i));
+        }
+        assertEquals(Tuple.singleOf("id", 0), iterator.next());
+        assertEquals(4L, subscription.requested);
+        assertEquals(Tuple.singleOf("id", 1), iterator.next());
+        assertEquals(6L, subscription.requested);
+    }
+
+    @Test
+    public void shouldEndIterationOnComplete() {
+        BlockingTupleIterator iterator = new BlockingTupleIterator(4);
+        iterator.onSubscribe(new RecordingSubscription());
+        iterator.onNext(Tuple.singleOf("id", 1));
+        iterator.onComplete();
+        List<Tuple> results = new ArrayList<>();
+        iterator.forEachRemaining(results::add);
+        assertEquals(1, results.size());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRethrowErrorFromPublisher() {
+        BlockingTupleIterator iterator = new BlockingTupleIterator(4);
+        iterator.onSubscribe(new RecordingSubscription());
+        iterator.onError(new IllegalStateException("failed"));
+        iterator.hasNext();
+    }
+
+    @Test
+    public void shouldCancelSubscriptionOnClose() {
+        RecordingSubscription subscription = new RecordingSubscription();
+        BlockingTupleIterator iterator = new BlockingTupleIterator(4);
+        iterator.onSubscribe(subscription);
+        iterator.close();
+        assertTrue(subscription.cancelled);
+    }
+
+    private static class RecordingSubscription implements Subscription {
+
+        private long requested = 0L;
+        private boolean cancelled = false;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+    }
+
+}
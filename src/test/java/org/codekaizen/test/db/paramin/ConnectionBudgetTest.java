@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ConnectionBudget.
+ *
+ * @author kbrockhoff
+ */
+public class ConnectionBudgetTest {
+
+    @Test
+    public void shouldAdmitWaitingRetrievalsInSubmissionOrder() {
+        ConnectionBudget budget = new ConnectionBudget(1, ConnectionBudget.UNLIMITED);
+        List<Integer> admitted = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int id = i;
+            budget.admit(() -> admitted.add(id));
+        }
+        assertEquals(Arrays.asList(0), admitted);
+        assertEquals(2, budget.getWaiting());
+        budget.release();
+        assertEquals(Arrays.asList(0, 1), admitted);
+        budget.release();
+        budget.release();
+        assertEquals(Arrays.asList(0, 1, 2), admitted);
+        assertEquals(0, budget.getLeased());
+    }
+
+    @Test
+    public void shouldNotLetAdditionalLeasesOvertakeWaitingRetrievals() {
+        ConnectionBudget budget = new ConnectionBudget(2, ConnectionBudget.UNLIMITED);
+        assertTrue(budget.tryLease());
+        assertTrue(budget.tryLease());
+        assertFalse(budget.tryLease());
+        List<String> admitted = new ArrayList<>();
+        budget.admit(() -> admitted.add("waiting"));
+        budget.release();
+        assertEquals(Arrays.asList("waiting"), admitted);
+        assertFalse(budget.tryLease());
+        budget.release();
+        assertTrue(budget.tryLease());
+    }
+
+    @Test
+    public void shouldReturnLeaseWhenWaiterIsInterrupted() throws Exception {
+        ConnectionBudget budget = new ConnectionBudget(1, ConnectionBudget.UNLIMITED);
+        assertTrue(budget.tryLease());
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.awaitAdmission();
+                fail("should have been interrupted");
+            } catch (InterruptedException expected) {
+                // lease is handed back once it arrives
+            }
+        });
+        waiter.start();
+        while (budget.getWaiting() == 0) {
+            Thread.sleep(10L);
+        }
+        waiter.interrupt();
+        waiter.join(5000L);
+        budget.release();
+        assertEquals(0, budget.getLeased());
+        assertTrue(budget.tryLease());
+    }
+
+    @Test
+    public void shouldLimitConcurrentQueries() throws Exception {
+        ConnectionBudget budget = new ConnectionBudget(ConnectionBudget.UNLIMITED, 1);
+        assertTrue(budget.isLimitingQueries());
+        budget.acquireQuery();
+        Thread second = new Thread(() -> {
+            try {
+                budget.acquireQuery();
+                budget.releaseQuery();
+            } catch (InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        second.start();
+        second.join(200L);
+        assertTrue(second.isAlive());
+        budget.releaseQuery();
+        second.join(5000L);
+        assertFalse(second.isAlive());
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DataSourceRouter.
+ *
+ * @author kbrockhoff
+ */
+public class DataSourceRouterTest {
+
+    @Test
+    public void shouldRouteToLeastLoadedSource() {
+        DataSourceRouter router = new DataSourceRouter(Arrays.asList(
+                new WeightedDataSource(constructDataSource("primary"), 1),
+                new WeightedDataSource(constructDataSource("replica"), 1)));
+        DataSourceRouter.Source first = router.route();
+        DataSourceRouter.Source second = router.route();
+        assertNotSame(first, second);
+        first.release();
+        assertSame(first, router.route());
+    }
+
+    @Test
+    public void shouldRouteInProportionToWeight() {
+        DataSourceRouter router = new DataSourceRouter(Arrays.asList(
+                new WeightedDataSource(constructDataSource("primary"), 1),
+                new WeightedDataSource(constructDataSource("replica"), 3)));
+        for (int i = 0; i < 8; i++) {
+            router.route();
+        }
+        assertEquals(2, router.getSources().get(0).getActiveRetrievals());
+        assertEquals(6, router.getSources().get(1).getActiveRetrievals());
+    }
+
+    @Test
+    public void shouldAvoidSourcesAtConnectionLimit() throws SQLException {
+        DataSourceRouter router = new DataSourceRouter(Arrays.asList(
+                new WeightedDataSource(constructDataSource("primary"), 10, 1),
+                new WeightedDataSource(constructDataSource("replica"), 1)));
+        DataSourceRouter.Source primary = router.getSources().get(0);
+        try (Connection held = primary.tryGetConnection().get()) {
+            assertEquals(1, primary.getOpenConnections());
+            assertSame(router.getSources().get(1), router.route());
+        }
+        assertEquals(0, primary.getOpenConnections());
+        assertSame(primary, router.route());
+    }
+
+    @Test
+    public void shouldTrackConnectionsUntilClosed() throws SQLException {
+        DataSourceRouter router = new DataSourceRouter(Arrays.asList(
+                new WeightedDataSource(constructDataSource("primary"), 1)));
+        DataSourceRouter.Source source = router.getSources().get(0);
+        Connection conn = source.tryGetConnection().get();
+        assertEquals(1, source.getOpenConnections());
+        assertEquals(1, router.getBudget().getLeased());
+        assertEquals(Database.H2, source.getDatabase(conn));
+        assertEquals(0L, source.getSmoothedLatencyNanos());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeQuery("SELECT 1").close();
+        }
+        long latency = source.getSmoothedLatencyNanos();
+        assertTrue(latency > 0L);
+        conn.close();
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(0, source.getOpenConnections());
+        assertEquals(0, router.getBudget().getLeased());
+        assertEquals(1L, source.getConnectionsServed());
+        assertEquals(latency, source.getSmoothedLatencyNanos());
+    }
+
+    @Test
+    public void shouldNotLeaseBeyondBudget() throws SQLException {
+        DataSourceRouter router = new DataSourceRouter(Arrays.asList(
+                new WeightedDataSource(constructDataSource("primary"), 1)));
+        router.setBudget(new ConnectionBudget(1, 1));
+        Optional<Connection> first = router.tryGetConnection();
+        assertTrue(first.isPresent());
+        assertFalse(router.tryGetConnection().isPresent());
+        first.get().close();
+        assertTrue(router.tryGetConnection().isPresent());
+    }
+
+    private JdbcDataSource constructDataSource(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name);
+        return dataSource;
+    }
+
+}
@@ -76,4 +76,25 @@ public class DatabaseTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldAppendLimitClauseOutsideOfOrderBy() {
+        String sql = "SELECT s.name FROM (SELECT DISTINCT a.name FROM types a WHERE a.id > 1) s ORDER BY RAND()";
+        String result = Database.ORACLE.appendLimitClause(sql, 16);
+        logger.info(result);
+        assertEquals("SELECT * FROM (" + sql + ") r WHERE ROWNUM<=16", result);
+        result = Database.ORACLE.appendLimitClause("SELECT a.name FROM types a WHERE a.id > 1", 16);
+        assertEquals("SELECT a.name FROM types a WHERE a.id > 1 AND ROWNUM<=16", result);
+        result = Database.H2.appendLimitClause(sql, 16);
+        assertEquals(sql + " LIMIT 16", result);
+    }
+
+    @Test
+    public void shouldPlaceTopClauseAfterSelect() {
+        String sql = "SELECT s.name FROM (SELECT DISTINCT a.name FROM types a WHERE a.id > 1) s ORDER BY NEWID()";
+        assertEquals("SELECT TOP 16 s.name FROM (SELECT DISTINCT a.name FROM types a WHERE a.id > 1) s"
+                + " ORDER BY NEWID()", Database.SQL_SERVER.appendLimitClause(sql, 16));
+        assertEquals("SELECT DISTINCT TOP 16 a.name FROM types a WHERE a.id > 1",
+                Database.SYBASE.appendLimitClause("SELECT DISTINCT a.name FROM types a WHERE a.id > 1", 16));
+    }
+
+}
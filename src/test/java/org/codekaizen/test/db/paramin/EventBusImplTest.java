@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.After;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for EventBusImpl.
+ *
+ * @author kbrockhoff
+ */
+public class EventBusImplTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final EventBusImpl eventBus = new EventBusImpl();
+    private final List<String> deliveries = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        eventBus.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldFailFlowOfStageExceedingItsLimit() throws InterruptedException {
+        eventBus.setLimits(8, 2, OverflowPolicy.FAIL);
+        RecordingSubscriber chatty = subscribe("chatty");
+        RecordingSubscriber quiet = subscribe("quiet");
+        assertTrue(eventBus.publish(new OnNextEvent("chatty", tuple(1))));
+        assertTrue(eventBus.publish(new OnNextEvent("chatty", tuple(2))));
+        assertFalse(eventBus.publish(new OnNextEvent("chatty", tuple(3))));
+        assertFalse(eventBus.publish(new OnNextEvent("chatty", tuple(4))));
+        assertTrue(eventBus.publish(new OnNextEvent("quiet", tuple(1))));
+        assertTrue(eventBus.publish(new OnCompleteEvent("quiet")));
+        assertEquals(3, eventBus.getQueued());
+        assertEquals(3, eventBus.getHighWaterMark());
+        assertEquals(2L, eventBus.getRejectedPublishes());
+        executor.execute(eventBus);
+        assertTrue(chatty.terminated.await(5L, TimeUnit.SECONDS));
+        assertTrue(quiet.terminated.await(5L, TimeUnit.SECONDS));
+        assertEquals(2, chatty.received.size());
+        assertTrue(chatty.error instanceof IllegalStateException);
+        assertEquals(1, quiet.received.size());
+        assertNull(quiet.error);
+        assertEquals(0, eventBus.getQueued());
+    }
+
+    @Test
+    public void shouldHoldPublisherUntilBusDrains() throws Exception {
+        assertPublisherHeldUntilBusDrains(OverflowPolicy.BLOCK);
+    }
+
+    @Test
+    public void shouldSpinThenParkPublisherUntilBusDrains() throws Exception {
+        assertPublisherHeldUntilBusDrains(OverflowPolicy.SPIN_THEN_PARK);
+    }
+
+    @Test
+    public void shouldReleaseBlockedPublisherWhenItsFlowEnds() throws Exception {
+        eventBus.setLimits(1, 1, OverflowPolicy.BLOCK);
+        RecordingSubscriber subscriber = subscribe("stage");
+        assertTrue(eventBus.publish(new OnNextEvent("stage", tuple(1))));
+        Future<Boolean> publisher = executor.submit(() -> eventBus.publish(new OnNextEvent("stage", tuple(2))));
+        Thread.sleep(200L);
+        assertFalse(publisher.isDone());
+        eventBus.unregisterReceiver(subscriber);
+        assertFalse(publisher.get(5L, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(1L, eventBus.getRejectedPublishes());
+    }
+
+    @Test
+    public void shouldServiceReadyEdgesInTurnPreservingOrderOnEachEdge() throws InterruptedException {
+        RecordingSubscriber busy = subscribe("busy");
+        RecordingSubscriber quiet = subscribe("quiet");
+        for (int i = 0; i < 40; i++) {
+            eventBus.publish(new OnNextEvent("busy", tuple(i)));
+        }
+        eventBus.publish(new OnCompleteEvent("busy"));
+        eventBus.publish(new OnCompleteEvent("quiet"));
+        executor.execute(eventBus);
+        assertTrue(busy.terminated.await(5L, TimeUnit.SECONDS));
+        assertTrue(quiet.terminated.await(5L, TimeUnit.SECONDS));
+        for (int i = 0; i < 40; i++) {
+            assertEquals(tuple(i), busy.received.get(i));
+        }
+        assertTrue(deliveries.indexOf(quiet.getComponentId()) < deliveries.lastIndexOf(busy.getComponentId()));
+    }
+
+    @Test
+    public void shouldStopDeliveringToUnregisteredSubscriber() throws InterruptedException {
+        RecordingSubscriber subscriber = subscribe("stage");
+        RecordingSubscriber other = subscribe("other");
+        eventBus.publish(new OnNextEvent("stage", tuple(1)));
+        eventBus.unregisterReceiver(subscriber);
+        eventBus.publish(new OnCompleteEvent("other"));
+        executor.execute(eventBus);
+        assertTrue(other.terminated.await(5L, TimeUnit.SECONDS));
+        assertTrue(subscriber.received.isEmpty());
+        assertFalse(eventBus.publish(new OnNextEvent("unknown", tuple(1))));
+    }
+
+    private void assertPublisherHeldUntilBusDrains(OverflowPolicy policy) throws Exception {
+        eventBus.setLimits(4, 4, policy);
+        RecordingSubscriber subscriber = subscribe("stage");
+        Future<?> publisher = executor.submit(() -> {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(eventBus.publish(new OnNextEvent("stage", tuple(i))));
+            }
+            eventBus.publish(new OnCompleteEvent("stage"));
+        });
+        Thread.sleep(200L);
+        assertFalse(publisher.isDone());
+        assertEquals(4, eventBus.getQueued());
+        executor.execute(eventBus);
+        publisher.get(10L, TimeUnit.SECONDS);
+        assertTrue(subscriber.terminated.await(5L, TimeUnit.SECONDS));
+        assertEquals(20, subscriber.received.size());
+        assertNull(subscriber.error);
+        assertEquals(4, eventBus.getHighWaterMark());
+        assertTrue(eventBus.getDelayedPublishes() > 0L);
+        assertEquals(0L, eventBus.getRejectedPublishes());
+    }
+
+    private RecordingSubscriber subscribe(String publisherId) {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        eventBus.registerReceiver(subscriber);
+        eventBus.routeEvent(new OnSubscribeEvent(publisherId, new SubscriptionImpl(subscriber, eventBus)));
+        return subscriber;
+    }
+
+    private Tuple tuple(int value) {
+        return Tuple.EMPTY_TUPLE.addElement("ID", value);
+    }
+
+    private class RecordingSubscriber implements Subscriber<Tuple>, Component {
+
+        private final String componentId = UUID.randomUUID().toString();
+        private final List<Tuple> received = new CopyOnWriteArrayList<>();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        @Override
+        public String getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+        }
+
+        @Override
+        public void onNext(Tuple item) {
+            deliveries.add(componentId);
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            deliveries.add(componentId);
+            terminated.countDown();
+        }
+
+    }
+
+}
@@ -20,20 +20,33 @@ import org.h2.tools.Server;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.sql.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.codekaizen.test.db.paramin.ParamSpec.find;
 import static org.codekaizen.test.db.paramin.ParamSpecs.create;
@@ -99,6 +112,471 @@ public class FindParametersExecutorTest {
         assertEquals(size, results.size());
     }
 
+    @Test
+    public void shouldFindValidParametersAcrossSemiJoinedTables() throws Exception {
+        int size = 12;
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                .join(find(String.class).fromTable("owners").inColumn("city").build(), new JoinPair("owner_id", "id"))
+                .joinUsing(JoinStrategy.EXISTS)
+                .retrieveTuplesSetOfSize(size);
+        Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+        Set<Tuple> results = future.get();
+        results.forEach(t -> logger.info("{}", t));
+        assertEquals(size, results.size());
+    }
+
+    @Test
+    public void shouldFindValidParametersUsingRandomSampling() throws Exception {
+        int size = 3;
+        for (SamplingMode mode : SamplingMode.values()) {
+            ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                    .sampleUsing(mode)
+                    .retrieveTuplesSetOfSize(size);
+            Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+            Set<Tuple> results = future.get();
+            results.forEach(t -> logger.info("{}: {}", mode, t));
+            assertEquals(size, results.size());
+        }
+    }
+
+    @Test
+    public void shouldFindReproducibleParametersUsingReservoirSampling() throws Exception {
+        int size = 3;
+        List<Set<Tuple>> runs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ParamSpecs paramSpecs = create(find(Integer.class).fromTable("pets").inColumn("id").build())
+                    .sampleUsing(SamplingMode.RESERVOIR).scanningAtMost(100).seededWith(1234L)
+                    .retrieveTuplesSetOfSize(size);
+            Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+            Set<Tuple> results = future.get();
+            results.forEach(t -> logger.info("{}", t));
+            assertEquals(size, results.size());
+            runs.add(results);
+        }
+        assertEquals(runs.get(0), runs.get(1));
+    }
+
+    @Test
+    public void shouldFindValidParametersUsingPartitionedInitialScan() throws Exception {
+        int size = 12;
+        for (PartitionStrategy strategy : PartitionStrategy.values()) {
+            ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                    .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                    .join(find(String.class).fromTable("owners").inColumn("city").build(),
+                            new JoinPair("owner_id", "id"))
+                    .partitionInitialScan(3, strategy, "id")
+                    .retrieveTuplesSetOfSize(size);
+            Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+            Set<Tuple> results = future.get();
+            results.forEach(t -> logger.info("{}: {}", strategy, t));
+            assertEquals(size, results.size());
+        }
+    }
+
+    @Test
+    public void shouldGrowTruncatedPartitionOfSkewedRange() throws Exception {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE OR REPLACE VIEW skewed AS SELECT x AS id FROM SYSTEM_RANGE(1, 200) "
+                    + "UNION ALL SELECT 1000000 AS id");
+        }
+        int size = 10;
+        // nearly every row falls in the first range partition which is only given half of the row limit
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("skewed").inColumn("id")
+                .matching(Matchers.newMinMaxAcceptor(191L, 201L)).build())
+                .partitionInitialScan(2, PartitionStrategy.RANGE, "id")
+                .retrieveTuplesSetOfSize(size);
+        Set<Tuple> results = findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS);
+        results.forEach(t -> logger.info("{}", t));
+        assertEquals(size, results.size());
+    }
+
+    @Test
+    public void shouldGrowInitialQueryLimitForSelectiveMatcher() throws Exception {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE OR REPLACE VIEW numbers AS SELECT x AS id FROM SYSTEM_RANGE(1, 5000)");
+        }
+        int size = 5;
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("numbers").inColumn("id")
+                .matching(Matchers.newMinMaxAcceptor(4900L, 5000L)).build())
+                .retrieveTuplesSetOfSize(size);
+        Set<Tuple> results = findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS);
+        results.forEach(t -> logger.info("{}", t));
+        assertEquals(size, results.size());
+    }
+
+    @Test
+    public void shouldSkipParentsKnownToHaveNoMatchingChildren() throws Exception {
+        int size = 2;
+        assertNull(findParametersExecutor.getNegativeCache());
+        findParametersExecutor.setNegativeCache(1000, Duration.ofMinutes(1L));
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpec<String> visits = find(String.class).fromTable("visits").inColumn("description").build();
+        ParamSpecs paramSpecs = create(pets).join(visits, new JoinPair("id", "pet_id")).retrieveTuplesSetOfSize(size);
+        Set<Tuple> first = findParametersExecutor.findValidParameters(paramSpecs).get();
+        assertEquals(size, first.size());
+        NegativeCache cache = findParametersExecutor.getNegativeCache();
+        assertTrue(cache.size() > 0);
+        long hits = cache.getHits();
+        Set<Tuple> second = findParametersExecutor.findValidParameters(paramSpecs).get();
+        assertEquals(size, second.size());
+        assertTrue(cache.getHits() > hits);
+    }
+
+    @Test
+    public void shouldShareInitialScanBetweenConcurrentFlows() throws Exception {
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs byType = create(pets)
+                .join(find(String.class).fromTable("types").inColumn("name").build(), new JoinPair("type_id", "id"))
+                .retrieveTuplesSetOfSize(10);
+        ParamSpecs byOwner = create(pets)
+                .join(find(String.class).fromTable("owners").inColumn("city").build(), new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(10);
+        SharedScan.Registry scans = findParametersExecutor.getSharedScans();
+        // pinned so flows finishing before the others attach cannot close the scan
+        scans.pin();
+        List<CompletableFuture<Set<Tuple>>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(findParametersExecutor.findValidParametersAsync(byType));
+            futures.add(findParametersExecutor.findValidParametersAsync(byOwner));
+        }
+        for (CompletableFuture<Set<Tuple>> future : futures) {
+            assertEquals(10, future.get(30, TimeUnit.SECONDS).size());
+        }
+        assertEquals(1, scans.size());
+        scans.unpin();
+        assertEquals(0, scans.size());
+        assertEquals(1L, scans.getScansStarted());
+        assertEquals(8L, scans.getAttachments());
+    }
+
+    @Test
+    public void shouldSpreadRetrievalsAcrossDataSources() throws Exception {
+        JdbcDataSource replica = new JdbcDataSource();
+        replica.setURL("jdbc:h2:tcp://localhost/~/test");
+        replica.setUser("sa");
+        replica.setPassword("");
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                .retrieveTuplesSetOfSize(5);
+        try (FindParametersExecutor executor = new FindParametersExecutor(Arrays.asList(
+                new WeightedDataSource(dataSource, 1), new WeightedDataSource(replica, 1)))) {
+            List<CompletableFuture<Set<Tuple>>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.findValidParametersAsync(paramSpecs));
+            }
+            for (CompletableFuture<Set<Tuple>> future : futures) {
+                assertEquals(5, future.get(30, TimeUnit.SECONDS).size());
+            }
+            for (DataSourceRouter.Source source : executor.getRouter().getSources()) {
+                assertTrue(source.getConnectionsServed() > 0L);
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindValidParametersWithHedgedStageQueries() throws Exception {
+        findParametersExecutor.setHedging(0.5, 0.25);
+        ParamSpecs paramSpecs = create(find(Integer.class).fromTable("pets").inColumn("id").build())
+                .join(find(String.class).fromTable("owners").inColumn("city").build(), new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(12);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(12, findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS).size());
+        }
+        QueryHedger hedger = findParametersExecutor.getHedger();
+        assertTrue(hedger.getQueries() >= 36L);
+        // half of the queries outlast the median threshold so only the extra load cap keeps hedges below it
+        assertTrue(hedger.getHedges() <= 0.25 * hedger.getQueries());
+    }
+
+    @Test
+    public void shouldHedgeStalledStageQuery() throws Exception {
+        createStallingOwnersView(0L);
+        try {
+            findParametersExecutor.setHedging(0.99, 1.0);
+            ParamSpecs paramSpecs = create(find(Integer.class).fromTable("pets").inColumn("id").build())
+                    .join(find(String.class).fromTable("stalling_owners").inColumn("city").build(),
+                            new JoinPair("owner_id", "id"))
+                    .retrieveTuplesSetOfSize(12);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(12,
+                        findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS).size());
+            }
+            QueryHedger hedger = findParametersExecutor.getHedger();
+            long hedgesBeforeStall = hedger.getHedges();
+            createStallingOwnersView(1000L);
+            assertEquals(12, findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS).size());
+            // the query for the first owner stalls well past every latency observed so its backup must be issued
+            assertTrue(hedger.getHedges() > hedgesBeforeStall);
+            ConnectionBudget budget = findParametersExecutor.getRouter().getBudget();
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (budget.getLeased() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(0, budget.getLeased());
+        } finally {
+            try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP VIEW IF EXISTS stalling_owners");
+            }
+        }
+    }
+
+    @Test
+    public void shouldQueueRetrievalsBeyondConnectionLimit() throws Exception {
+        findParametersExecutor.setConnectionLimits(2, 1);
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs paramSpecs = create(pets)
+                .join(find(String.class).fromTable("types").inColumn("name").build(), new JoinPair("type_id", "id"))
+                .joinTo(pets, find(String.class).fromTable("owners").inColumn("city").build(),
+                        new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(5);
+        List<CompletableFuture<Set<Tuple>>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(findParametersExecutor.findValidParametersAsync(paramSpecs));
+        }
+        for (CompletableFuture<Set<Tuple>> future : futures) {
+            assertEquals(5, future.get(30, TimeUnit.SECONDS).size());
+        }
+        ConnectionBudget budget = findParametersExecutor.getRouter().getBudget();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (budget.getLeased() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, budget.getLeased());
+        assertEquals(0, budget.getWaiting());
+    }
+
+    @Test
+    public void shouldNotBorrowConnectionUntilRetrievalStarts() {
+        JdbcDataSource unreachable = new JdbcDataSource();
+        unreachable.setURL("jdbc:h2:tcp://localhost:1/~/unreachable");
+        try (FindParametersExecutor executor = new FindParametersExecutor(unreachable)) {
+            ParamSpecs paramSpecs = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                    .retrieveTuplesSetOfSize(2);
+            try {
+                executor.findValidParametersAsync(paramSpecs).get(30, TimeUnit.SECONDS);
+                fail("should have thrown exception");
+            } catch (Exception expected) {
+                assertTrue(expected instanceof ExecutionException);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRunRetrievalsOnVirtualThreadsOnlyWhenAvailable() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        ParamSpecs paramSpecs = create(find(Integer.class).fromTable("pets").inColumn("id")
+                .matching(value -> {
+                    threads.add(Thread.currentThread());
+                    return true;
+                }).build())
+                .retrieveTuplesSetOfSize(5);
+        try (FindParametersExecutor executor = new FindParametersExecutor(dataSource)) {
+            assertEquals(VirtualThreads.isAvailable(), executor.useVirtualThreads());
+            assertEquals(5, executor.findValidParametersAsync(paramSpecs).get(30, TimeUnit.SECONDS).size());
+        }
+        assertFalse(threads.isEmpty());
+        for (Thread thread : threads) {
+            assertEquals(VirtualThreads.isAvailable(), isVirtual(thread));
+            assertEquals(!VirtualThreads.isAvailable(), thread.getName().startsWith("find-params-"));
+        }
+    }
+
+    @Test
+    public void shouldFindAllSpecsGroupedByDrivingQuery() throws Exception {
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs byType = create(pets)
+                .join(find(String.class).fromTable("types").inColumn("name").build(), new JoinPair("type_id", "id"))
+                .retrieveTuplesSetOfSize(10);
+        ParamSpecs byOwner = create(pets)
+                .join(find(String.class).fromTable("owners").inColumn("city").build(), new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(10);
+        ParamSpecs petsOnly = create(pets).retrieveTuplesSetOfSize(4);
+        ParamSpecs specialties = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                .retrieveTuplesSetOfSize(2);
+        ParamSpecs duplicate = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                .retrieveTuplesSetOfSize(2);
+        ParamSpecs petsSampled = create(pets).retrieveTuplesSetOfSize(4).sampleUsing(SamplingMode.RESERVOIR)
+                .seededWith(11L);
+        Map<ParamSpecs, Set<Tuple>> results = findParametersExecutor.findAll(
+                Arrays.asList(byType, byOwner, petsOnly, specialties, duplicate, petsSampled), 2);
+        assertEquals(5, results.size());
+        assertEquals(10, results.get(byType).size());
+        assertEquals(10, results.get(byOwner).size());
+        assertEquals(4, results.get(petsOnly).size());
+        assertEquals(4, results.get(petsSampled).size());
+        assertEquals(2, results.get(duplicate).size());
+        SharedScan.Registry scans = findParametersExecutor.getSharedScans();
+        assertEquals(0, scans.size());
+        // one initial query for each group since the reservoir sampled retrieval scans on its own
+        assertEquals(2L, scans.getScansStarted());
+        assertEquals(4L, scans.getAttachments());
+    }
+
+    @Test
+    public void shouldReportMetricsOfRetrievals() throws Exception {
+        Map<String, Long> counters = new ConcurrentHashMap<>();
+        findParametersExecutor.setMetricsSink(new MetricsSink() {
+            @Override
+            public void increment(String metric, String stage, long delta) {
+                counters.merge(metric, delta, Long::sum);
+            }
+
+            @Override
+            public void recordNanos(String metric, String stage, long nanos) {
+                counters.merge(metric, 1L, Long::sum);
+            }
+        });
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                .retrieveTuplesSetOfSize(4);
+        assertEquals(4, findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS).size());
+        MetricsSnapshot snapshot = findParametersExecutor.getMetricsSnapshot();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (snapshot.getTaskLatency().getCount() == 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+            snapshot = findParametersExecutor.getMetricsSnapshot();
+        }
+        logger.info("{}", snapshot);
+        assertEquals(2, snapshot.getStages().size());
+        for (MetricsSnapshot.Stage stage : snapshot.getStages().values()) {
+            assertTrue(stage.getRowsFetched() > 0L);
+            assertTrue(stage.getRowsFetched() >= stage.getRowsRejected());
+            assertEquals(stage.getQueries(), stage.getQueryLatency().getCount());
+        }
+        assertTrue(snapshot.getStages().get("pets.id").getQueries() > 0L);
+        assertEquals(1L, snapshot.getTaskLatency().getCount());
+        assertEquals(0L, snapshot.getTasksInFlight());
+        assertEquals(1L, snapshot.getConnectionWait().getCount());
+        assertTrue(snapshot.getRoutingLatency().getCount() > 0L);
+        assertTrue(snapshot.getTaskLatency().getPercentileNanos(0.5) <= snapshot.getTaskLatency().getMaxNanos());
+        assertEquals(Long.valueOf(1L), counters.get(MetricsSink.TASK_LATENCY));
+        assertEquals(Long.valueOf(0L), counters.get(MetricsSink.TASKS_IN_FLIGHT));
+        assertTrue(counters.get(MetricsSink.STAGE_QUERIES) > 0L);
+    }
+
+    @Test
+    public void shouldReturnStatisticsOfEachRetrieval() throws Exception {
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                .retrieveTuplesSetOfSize(4);
+        FindParametersResult result =
+                findParametersExecutor.findValidParametersWithStatistics(paramSpecs).get(30, TimeUnit.SECONDS);
+        logger.info("{}", result);
+        assertEquals(4, result.getTuples().size());
+        assertEquals(TerminationReason.DESIRED_SIZE_REACHED, result.getTerminationReason());
+        assertFalse(result.getFailure().isPresent());
+        assertTrue(result.getElapsedNanos() > 0L);
+        assertEquals(2, result.getStages().size());
+        MetricsSnapshot.Stage pets = result.getStages().get("pets.id");
+        assertTrue(pets.getQueries() > 0L);
+        assertTrue(pets.getRowsAccepted() > 0L);
+        assertTrue(pets.getQueryLatency().getTotalNanos() > 0L);
+        assertTrue(pets.getQueueWait().getCount() > 0L);
+        MetricsSnapshot.Stage executorWide = findParametersExecutor.getMetricsSnapshot().getStages().get("pets.id");
+        assertTrue(executorWide.getQueries() >= pets.getQueries());
+
+        ParamSpecs tooMany = create(find(String.class).fromTable("types").inColumn("name").build())
+                .retrieveTuplesSetOfSize(20).throwExceptionIfAvailableSizeIsLessThanDesiredSize(true);
+        FindParametersResult shortResult =
+                findParametersExecutor.findValidParametersWithStatistics(tooMany).get(30, TimeUnit.SECONDS);
+        logger.info("{}", shortResult);
+        assertTrue(shortResult.getTuples().size() < 20);
+        assertTrue(shortResult.getFailure().isPresent());
+        assertNotEquals(TerminationReason.DESIRED_SIZE_REACHED, shortResult.getTerminationReason());
+    }
+
+    @Test
+    public void shouldExposeLiveStateAndCancelFlowsOverJmx() throws Exception {
+        ObjectName name = findParametersExecutor.registerMBean("jmx-test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                .retrieveTuplesSetOfSize(3);
+        CompletableFuture<Subscription> subscribed = new CompletableFuture<>();
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        findParametersExecutor.publishValidParameters(paramSpecs).subscribe(new Subscriber<Tuple>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscribed.complete(subscription);
+            }
+
+            @Override
+            public void onNext(Tuple tuple) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        subscribed.get(5, TimeUnit.SECONDS).request(1L);
+        long deadline = System.currentTimeMillis() + 5000L;
+        while ((Integer) server.getAttribute(name, "RegisteredComponents") < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, server.getAttribute(name, "ActiveFlows"));
+        assertEquals(2, server.getAttribute(name, "RegisteredComponents"));
+        assertTrue((Integer) server.getAttribute(name, "WorkerPoolSize") > 0);
+        String[] flows = (String[]) server.invoke(name, "dumpActiveFlows", new Object[0], new String[0]);
+        assertEquals(1, flows.length);
+        logger.info("active flow: {}", flows[0]);
+        String taskId = flows[0].substring(0, flows[0].indexOf(' '));
+        assertFalse((Boolean) server.invoke(name, "cancelTask", new Object[]{"unknown"},
+                new String[]{String.class.getName()}));
+        assertTrue((Boolean) server.invoke(name, "cancelTask", new Object[]{taskId},
+                new String[]{String.class.getName()}));
+        deadline = System.currentTimeMillis() + 5000L;
+        while ((Integer) server.getAttribute(name, "ActiveFlows") > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, server.getAttribute(name, "ActiveFlows"));
+        findParametersExecutor.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void shouldFindValidParametersWithFusedStages() throws Exception {
+        findParametersExecutor.setFusingStages(true);
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs linear = create(find(String.class).fromTable("types").inColumn("name").build())
+                .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                .join(find(String.class).fromTable("owners").inColumn("city").build(), new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(12);
+        ParamSpecs branching = create(pets)
+                .join(find(String.class).fromTable("types").inColumn("name").build(), new JoinPair("type_id", "id"))
+                .joinTo(pets, find(String.class).fromTable("owners").inColumn("city").build(),
+                        new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(5);
+        assertEquals(12, findParametersExecutor.findValidParameters(linear).get(30, TimeUnit.SECONDS).size());
+        assertEquals(5, findParametersExecutor.findValidParameters(branching).get(30, TimeUnit.SECONDS).size());
+        try (Stream<Tuple> tuples = findParametersExecutor.streamValidParameters(linear, 2)) {
+            assertEquals(3L, tuples.limit(3L).count());
+        }
+    }
+
+    @Test
+    public void shouldCancelInFlightQueryWithFusedStages() throws Exception {
+        findParametersExecutor.setFusingStages(true);
+        createEndlessView();
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1);
+        Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+        Thread.sleep(500L);
+        assertFalse(future.isDone());
+        assertTrue(future.cancel(true));
+        ParamSpecs budgeted = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1)
+                .completeWithin(Duration.ofMillis(1000L));
+        assertEquals(0, findParametersExecutor.findValidParameters(budgeted).get(10, TimeUnit.SECONDS).size());
+    }
+
     @Test
     public void shouldFindAsManyValidParametersAsPossibleOnSingleTable() throws Exception {
         int size = 4;
@@ -163,6 +641,160 @@ public class FindParametersExecutorTest {
         }
     }
 
+    @Test
+    public void shouldCompleteMoreConcurrentRequestsThanWorkerThreads() throws Exception {
+        int size = 2;
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                .retrieveTuplesSetOfSize(size);
+        List<CompletableFuture<Set<Tuple>>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(findParametersExecutor.findValidParametersAsync(paramSpecs));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        for (CompletableFuture<Set<Tuple>> future : futures) {
+            assertEquals(size, future.get().size());
+        }
+    }
+
+    @Test
+    public void shouldStreamValidParametersAcrossJoinedTables() throws Exception {
+        int size = 12;
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("types").inColumn("name").build())
+                .join(find(String.class).fromTable("pets").inColumn("id").build(), new JoinPair("id", "type_id"))
+                .join(find(String.class).fromTable("owners").inColumn("city").build(), new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(size);
+        try (Stream<Tuple> stream = findParametersExecutor.streamValidParameters(paramSpecs, 2)) {
+            List<Tuple> results = stream.collect(Collectors.toList());
+            results.forEach(t -> logger.info("{}", t));
+            assertEquals(size, new HashSet<>(results).size());
+        }
+    }
+
+    @Test
+    public void shouldPublishNoMoreTuplesThanRequested() throws Exception {
+        int size = 3;
+        ParamSpecs paramSpecs = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                .retrieveTuplesSetOfSize(size);
+        List<Tuple> received = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Subscription> subscribed = new CompletableFuture<>();
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        findParametersExecutor.publishValidParameters(paramSpecs).subscribe(new Subscriber<Tuple>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscribed.complete(subscription);
+            }
+
+            @Override
+            public void onNext(Tuple tuple) {
+                received.add(tuple);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        Subscription subscription = subscribed.get(5, TimeUnit.SECONDS);
+        subscription.request(1L);
+        Thread.sleep(500L);
+        assertEquals(1, received.size());
+        subscription.request(Long.MAX_VALUE);
+        completed.get(30, TimeUnit.SECONDS);
+        assertEquals(size, received.size());
+    }
+
+    @Test
+    public void shouldCancelInFlightQueryWhenFutureIsCancelled() throws Exception {
+        createEndlessView();
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1);
+        Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+        Thread.sleep(500L);
+        assertFalse(future.isDone());
+        assertTrue(future.cancel(true));
+        ParamSpecs specialties = create(find(String.class).fromTable("specialties").inColumn("name").build())
+                .retrieveTuplesSetOfSize(2);
+        assertEquals(2, findParametersExecutor.findValidParameters(specialties).get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void shouldCancelOtherRetrievalsWhenOneOfFindAllFails() throws Exception {
+        createEndlessView();
+        ParamSpecs missing = create(find(Integer.class).fromTable("pets").inColumn("id").build())
+                .join(find(String.class).fromTable("missing").inColumn("name").build(), new JoinPair("type_id", "id"))
+                .retrieveTuplesSetOfSize(1);
+        ParamSpecs endless = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1);
+        // one worker fails the first retrieval before the endless one can start, which a running H2 query would
+        // otherwise keep from closing its connection
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            findParametersExecutor.setExecutorService(worker);
+            CompletableFuture<Map<ParamSpecs, Set<Tuple>>> future =
+                    findParametersExecutor.findAllAsync(Arrays.asList(missing, endless), 2);
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("should have thrown exception");
+            } catch (ExecutionException expected) {
+                logger.info("expected: {}", expected.getCause().getMessage());
+            }
+            ConnectionBudget budget = findParametersExecutor.getRouter().getBudget();
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (budget.getLeased() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(0, budget.getLeased());
+        } finally {
+            worker.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldFailRetrievalWhenQueryTimeoutIsExceeded() throws Exception {
+        createEndlessView();
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1)
+                .timeoutQueriesAfter(1);
+        Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("should have thrown exception");
+        } catch (ExecutionException expected) {
+            logger.info("expected: {}", expected.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void shouldReturnPartialResultsWhenTimeBudgetExpires() throws Exception {
+        createEndlessView();
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1)
+                .completeWithin(Duration.ofMillis(1500L));
+        long started = System.currentTimeMillis();
+        Set<Tuple> results = findParametersExecutor.findValidParameters(paramSpecs).get(10, TimeUnit.SECONDS);
+        logger.info("completed in {}ms", System.currentTimeMillis() - started);
+        assertEquals(0, results.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldThrowExceptionWhenTimeBudgetExpiresIfConfigured() throws Throwable {
+        createEndlessView();
+        ParamSpecs paramSpecs = create(find(Long.class).fromTable("endless").inColumn("id").build())
+                .retrieveTuplesSetOfSize(1)
+                .throwExceptionIfAvailableSizeIsLessThanDesiredSize(true)
+                .completeWithin(Duration.ofMillis(1500L));
+        try {
+            findParametersExecutor.findValidParameters(paramSpecs).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException expected) {
+            throw expected.getCause();
+        }
+    }
+
     @Test
     public void shouldFindNoParametersOnTableWithNoData() throws Exception {
         int size = 1;
@@ -185,6 +817,97 @@ public class FindParametersExecutorTest {
         assertEquals(size, results.size());
     }
 
+    @Test
+    public void shouldFindValidParametersAcrossStarShapedJoins() throws Exception {
+        int size = 4;
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs paramSpecs = create(pets)
+                .joinTo(pets, find(String.class).fromTable("types").inColumn("name").build(),
+                        new JoinPair("type_id", "id"))
+                .joinTo(pets, find(String.class).fromTable("owners").inColumn("city").build(),
+                        new JoinPair("owner_id", "id"))
+                .joinTo(pets, find(String.class).fromTable("visits").inColumn("description").build(),
+                        new JoinPair("id", "pet_id"))
+                .retrieveTuplesSetOfSize(size);
+        Future<Set<Tuple>> future = findParametersExecutor.findValidParameters(paramSpecs);
+        Set<Tuple> results = future.get();
+        results.forEach(t -> logger.info("{}", t));
+        assertEquals(size, results.size());
+        results.forEach(t -> assertEquals(Arrays.asList("id", "name", "city", "description"), t.getFieldNames()));
+        results.forEach(t -> assertTrue(Arrays.asList(7, 8).contains(t.getValue(0))));
+    }
+
+    @Test
+    public void shouldReportStatisticsOfEveryStarShapedStage() throws Exception {
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs paramSpecs = create(pets)
+                .joinTo(pets, find(String.class).fromTable("types").inColumn("name").build(),
+                        new JoinPair("type_id", "id"))
+                .joinTo(pets, find(String.class).fromTable("owners").inColumn("city").build(),
+                        new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(4);
+        FindParametersResult result =
+                findParametersExecutor.findValidParametersWithStatistics(paramSpecs).get(30, TimeUnit.SECONDS);
+        logger.info("{}", result);
+        assertEquals(4, result.getTuples().size());
+        assertEquals(new HashSet<>(Arrays.asList("pets.id", "types.name", "owners.city")),
+                result.getStages().keySet());
+        for (String branch : Arrays.asList("types.name", "owners.city")) {
+            MetricsSnapshot.Stage stage = result.getStages().get(branch);
+            assertTrue(branch, stage.getQueries() > 0L);
+            assertEquals(branch, stage.getQueries(), stage.getQueryLatency().getCount());
+            assertTrue(branch, stage.getRowsFetched() > 0L);
+            assertTrue(branch, stage.getRowsAccepted() > 0L);
+        }
+    }
+
+    @Test
+    public void shouldIncludeBranchQueriesInExecutorMetrics() throws Exception {
+        ParamSpec<Integer> pets = find(Integer.class).fromTable("pets").inColumn("id").build();
+        ParamSpecs paramSpecs = create(pets)
+                .joinTo(pets, find(String.class).fromTable("types").inColumn("name").build(),
+                        new JoinPair("type_id", "id"))
+                .joinTo(pets, find(String.class).fromTable("owners").inColumn("city").build(),
+                        new JoinPair("owner_id", "id"))
+                .retrieveTuplesSetOfSize(4);
+        ObjectName name = findParametersExecutor.registerMBean("branch-metrics-test");
+        assertEquals(4, findParametersExecutor.findValidParameters(paramSpecs).get(30, TimeUnit.SECONDS).size());
+        MetricsSnapshot snapshot = findParametersExecutor.getMetricsSnapshot();
+        FindParametersExecutorMXBean bean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name,
+                FindParametersExecutorMXBean.class);
+        for (String branch : Arrays.asList("types.name", "owners.city")) {
+            MetricsSnapshot.Stage stage = snapshot.getStages().get(branch);
+            assertNotNull(branch, stage);
+            assertTrue(branch, stage.getQueries() > 0L);
+            assertTrue(branch, stage.getRowsFetched() > 0L);
+            assertEquals(branch, stage.getQueries(), stage.getQueryLatency().getCount());
+            assertTrue(branch, bean.getStageQueries().get(branch) > 0L);
+            assertTrue(branch, bean.getStageRowsFetched().get(branch) > 0L);
+        }
+    }
+
+    private boolean isVirtual(Thread thread) throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            return false;
+        }
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    private void createStallingOwnersView(long millis) throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE ALIAS IF NOT EXISTS STALL FOR \"java.lang.Thread.sleep\"");
+            stmt.execute("CREATE OR REPLACE VIEW stalling_owners AS SELECT o.id, o.city FROM owners o "
+                    + "WHERE STALL(CASEWHEN(o.id = 1, " + millis + ", 0)) IS NULL");
+        }
+    }
+
+    private void createEndlessView() throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE OR REPLACE VIEW endless AS "
+                    + "SELECT x AS id FROM SYSTEM_RANGE(1, 9000000000) WHERE MOD(x, 3) = 5");
+        }
+    }
+
     private void createAndLoadDatabase() throws SQLException, IOException {
         final List<String> schemaStmts = new ArrayList<>();
         final List<String> dataStmts = new ArrayList<>();
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for FlightEvents.
+ *
+ * @author kbrockhoff
+ */
+public class FlightEventsTest {
+
+    @Before
+    public void setUp() {
+        assumeTrue(FlightEvents.isAvailable());
+    }
+
+    @Test
+    public void shouldNotCreateEventsUnlessRecordingEnablesThem() {
+        assertFalse(FlightEvents.STAGE_QUERY.isEnabled());
+        assertNull(FlightEvents.STAGE_QUERY.begin());
+        FlightEvents.STAGE_QUERY.commit(null, "SELECT 1", "pets.id", 1L, 1L);
+    }
+
+    @Test
+    public void shouldRecordFieldsOfCommittedEvents() throws Exception {
+        File dump = File.createTempFile("paramin", ".jfr");
+        dump.deleteOnExit();
+        try (Recording recording = new Recording()) {
+            recording.enable(FlightEvents.STAGE_QUERY.getName()).withoutThreshold();
+            recording.start();
+            assertTrue(FlightEvents.STAGE_QUERY.isEnabled());
+            Object event = FlightEvents.STAGE_QUERY.begin();
+            assertNotNull(event);
+            FlightEvents.STAGE_QUERY.commit(event, "SELECT id FROM pets", "pets.id", 12L, 3L);
+            recording.stop();
+            recording.dump(dump.toPath());
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump.toPath());
+        RecordedEvent recorded = events.stream()
+                .filter(e -> e.getEventType().getName().equals(FlightEvents.STAGE_QUERY.getName()))
+                .findFirst().orElseThrow(AssertionError::new);
+        assertEquals("SELECT id FROM pets", recorded.getString("sql"));
+        assertEquals("pets.id", recorded.getString("stage"));
+        assertEquals(12L, recorded.getLong("rowsRead"));
+        assertEquals(3L, recorded.getLong("rowsAccepted"));
+        assertFalse(FlightEvents.STAGE_QUERY.isEnabled());
+    }
+
+}
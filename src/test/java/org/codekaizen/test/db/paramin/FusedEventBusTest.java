@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.After;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FusedEventBus.
+ *
+ * @author kbrockhoff
+ */
+public class FusedEventBusTest {
+
+    private static final int ROUNDS = 20000;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final FusedEventBus eventBus = new FusedEventBus(executor);
+    private final Set<Thread> deliveringThreads = ConcurrentHashMap.newKeySet();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldExchangeSignalsDirectlyOnOneWorkerWithoutGrowingStack() throws InterruptedException {
+        CountingPublisher publisher = new CountingPublisher();
+        PingPongSubscriber subscriber = new PingPongSubscriber();
+        eventBus.registerReceiver(publisher);
+        eventBus.registerReceiver(subscriber);
+        publisher.batcher.connect(publisher, subscriber);
+        assertTrue(subscriber.terminated.await(10L, TimeUnit.SECONDS));
+        assertTrue(subscriber.subscription instanceof FusedEventBus.Link);
+        assertNull(subscriber.error);
+        assertEquals(ROUNDS, subscriber.received.size());
+        for (int i = 0; i < ROUNDS; i++) {
+            assertEquals(tuple(i), subscriber.received.get(i));
+        }
+        assertEquals(1, deliveringThreads.size());
+        assertFalse(deliveringThreads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void shouldStopDeliveringToUnregisteredSubscriber() throws InterruptedException {
+        CountingPublisher publisher = new CountingPublisher();
+        PingPongSubscriber subscriber = new PingPongSubscriber();
+        eventBus.registerReceiver(publisher);
+        eventBus.registerReceiver(subscriber);
+        eventBus.unregisterReceiver(subscriber);
+        publisher.batcher.connect(publisher, subscriber);
+        publisher.batcher.add(tuple(0));
+        publisher.batcher.complete();
+        assertFalse(subscriber.terminated.await(200L, TimeUnit.MILLISECONDS));
+        assertTrue(subscriber.received.isEmpty());
+    }
+
+    private Tuple tuple(int value) {
+        return Tuple.EMPTY_TUPLE.addElement("ID", value);
+    }
+
+    private class CountingPublisher implements Subscription, Component {
+
+        private final String componentId = UUID.randomUUID().toString();
+        private final TupleBatcher batcher = new TupleBatcher(componentId, eventBus, 1);
+        private int next = 0;
+
+        @Override
+        public String getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public void request(long n) {
+            deliveringThreads.add(Thread.currentThread());
+            for (long i = 0; i < n && next < ROUNDS; i++) {
+                batcher.add(tuple(next++));
+            }
+            if (next == ROUNDS) {
+                batcher.complete();
+            }
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+    }
+
+    private class PingPongSubscriber implements Subscriber<Tuple>, Component {
+
+        private final String componentId = UUID.randomUUID().toString();
+        private final List<Tuple> received = new CopyOnWriteArrayList<>();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public String getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1L);
+        }
+
+        @Override
+        public void onNext(Tuple item) {
+            deliveringThreads.add(Thread.currentThread());
+            received.add(item);
+            subscription.request(1L);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            terminated.countDown();
+        }
+
+    }
+
+}
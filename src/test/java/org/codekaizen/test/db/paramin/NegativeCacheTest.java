@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for NegativeCache.
+ *
+ * @author kbrockhoff
+ */
+public class NegativeCacheTest {
+
+    private static final String SOURCE = "primary";
+    private static final String SQL = "SELECT a.id FROM visits a WHERE a.pet_id = ?";
+
+    @Test
+    public void shouldRememberDeadEndsByPlanAndBoundValues() {
+        NegativeCache cache = new NegativeCache(10, Duration.ofMinutes(1L));
+        Matcher<Integer> matcher = Matchers.newAllAcceptor();
+        cache.recordDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1));
+        assertTrue(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1)));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(2)));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, Matchers.newMinMaxAcceptor(0, 10), Arrays.asList(1)));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL + " AND a.id > 0", matcher, Arrays.asList(1)));
+        assertEquals(1L, cache.getHits());
+        assertEquals(3L, cache.getMisses());
+    }
+
+    @Test
+    public void shouldShareEntriesBetweenEqualMatchersOnlyForSameSource() {
+        NegativeCache cache = new NegativeCache(10, Duration.ofMinutes(1L));
+        cache.recordDeadEnd(SOURCE, SQL, Matchers.newMinMaxAcceptor(0, 10), Arrays.asList(1));
+        assertTrue(cache.isDeadEnd(SOURCE, SQL, Matchers.newMinMaxAcceptor(0, 10), Arrays.asList(1)));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, Matchers.newMinMaxAcceptor(0L, 10L), Arrays.asList(1)));
+        assertFalse(cache.isDeadEnd("replica", SQL, Matchers.newMinMaxAcceptor(0, 10), Arrays.asList(1)));
+        Matcher<Integer> custom = value -> value > 0;
+        cache.recordDeadEnd(SOURCE, SQL, custom, Arrays.asList(1));
+        assertTrue(cache.isDeadEnd(SOURCE, SQL, custom, Arrays.asList(1)));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, (Matcher<Integer>) value -> value > 0, Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntries() {
+        NegativeCache cache = new NegativeCache(2, Duration.ofMinutes(1L));
+        Matcher<Integer> matcher = Matchers.newAllAcceptor();
+        cache.recordDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1));
+        cache.recordDeadEnd(SOURCE, SQL, matcher, Arrays.asList(2));
+        assertTrue(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1)));
+        cache.recordDeadEnd(SOURCE, SQL, matcher, Arrays.asList(3));
+        assertEquals(2, cache.size());
+        assertTrue(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1)));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(2)));
+    }
+
+    @Test
+    public void shouldExpireEntriesAfterTimeToLive() throws InterruptedException {
+        NegativeCache cache = new NegativeCache(10, Duration.ofMillis(10L));
+        Matcher<Integer> matcher = Matchers.newAllAcceptor();
+        cache.recordDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1));
+        Thread.sleep(20L);
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldRememberNothingWhenDisabled() {
+        NegativeCache cache = new NegativeCache(0, Duration.ofMinutes(1L));
+        Matcher<Integer> matcher = Matchers.newAllAcceptor();
+        cache.recordDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1));
+        assertFalse(cache.isDeadEnd(SOURCE, SQL, matcher, Arrays.asList(1)));
+        assertEquals(0, cache.size());
+    }
+
+}
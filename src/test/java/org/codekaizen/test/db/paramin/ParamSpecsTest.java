@@ -106,6 +106,182 @@ public class ParamSpecsTest {
         assertEquals(3, statements.size());
     }
 
+    @Test
+    public void shouldOnlyEqualSpecsWithSameJoinShapeAndOptions() {
+        ParamSpec<String> orders = ParamSpec.find(String.class).inColumn("id").fromTable("orders").build();
+        ParamSpec<String> customers = ParamSpec.find(String.class).inColumn("name").fromTable("customers").build();
+        ParamSpec<String> products = ParamSpec.find(String.class).inColumn("sku").fromTable("products").build();
+        ParamSpecs chain = ParamSpecs.create(orders)
+                .join(customers, new JoinPair("customer_id", "id"))
+                .join(products, new JoinPair("product_id", "id"));
+        ParamSpecs sameChain = ParamSpecs.create(orders)
+                .join(customers, new JoinPair("customer_id", "id"))
+                .join(products, new JoinPair("product_id", "id"));
+        ParamSpecs branches = ParamSpecs.create(orders)
+                .joinTo(orders, customers, new JoinPair("customer_id", "id"))
+                .joinTo(orders, products, new JoinPair("product_id", "id"));
+        assertEquals(chain, sameChain);
+        assertEquals(chain.hashCode(), sameChain.hashCode());
+        assertNotEquals(chain, branches);
+        ParamSpecs sampled = ParamSpecs.create(orders).sampleUsing(SamplingMode.RANDOM);
+        ParamSpecs unsampled = ParamSpecs.create(orders);
+        assertNotEquals(sampled, unsampled);
+        assertNotEquals(sampled, ParamSpecs.create(orders).sampleUsing(SamplingMode.RANDOM).seededWith(7L));
+        assertNotEquals(unsampled, ParamSpecs.create(orders).timeoutQueriesAfter(5));
+        ParamSpec<Integer> small = ParamSpec.find(Integer.class).inColumn("qty").fromTable("orders")
+                .matching(Matchers.newMinMaxAcceptor(0, 10)).build();
+        ParamSpec<Integer> sameSmall = ParamSpec.find(Integer.class).inColumn("qty").fromTable("orders")
+                .matching(Matchers.newMinMaxAcceptor(0, 10)).build();
+        ParamSpec<Integer> large = ParamSpec.find(Integer.class).inColumn("qty").fromTable("orders")
+                .matching(Matchers.newMinMaxAcceptor(10, 100)).build();
+        assertEquals(ParamSpecs.create(small), ParamSpecs.create(sameSmall));
+        assertNotEquals(ParamSpecs.create(small), ParamSpecs.create(large));
+    }
+
+    @Test
+    public void shouldCreateSpecsWithBranchesJoinedToSameParent() {
+        ParamSpec<String> orders = ParamSpec.find(String.class).inColumn("id").fromTable("orders").build();
+        ParamSpec<String> customers = ParamSpec.find(String.class).inColumn("name").fromTable("customers").build();
+        ParamSpec<String> products = ParamSpec.find(String.class).inColumn("sku").fromTable("products").build();
+        ParamSpec<String> vendors = ParamSpec.find(String.class).inColumn("name").fromTable("vendors").build();
+        ParamSpecs specs = ParamSpecs.create(orders)
+                .joinTo(orders, customers, new JoinPair("customer_id", "id"))
+                .joinTo(orders, products, new JoinPair("product_id", "id"))
+                .join(vendors, new JoinPair("vendor_id", "id"));
+        assertFalse(specs.isLinear());
+        assertEquals(-1, specs.getParentIndex(0));
+        assertEquals(0, specs.getParentIndex(2));
+        assertEquals(2, specs.getParentIndex(3));
+        assertArrayEquals(new int[] {0, 2}, specs.getBindingIndexes(3));
+        String sql = specs.getSqlStatement(products);
+        logger.info(sql);
+        assertEquals("SELECT c.sku FROM orders a INNER JOIN products c ON a.product_id=c.id WHERE a.id = ?", sql);
+        sql = specs.getSqlStatement(vendors);
+        logger.info(sql);
+        assertEquals("SELECT d.name FROM orders a INNER JOIN products c ON a.product_id=c.id "
+                + "INNER JOIN vendors d ON c.vendor_id=d.id WHERE a.id = ? AND c.sku = ?", sql);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectJoinToSpecNotPreviouslyAdded() {
+        ParamSpecs.create(ParamSpec.find(String.class).inColumn("id").fromTable("orders").build())
+                .joinTo(ParamSpec.find(String.class).inColumn("id").fromTable("customers").build(),
+                        ParamSpec.find(String.class).inColumn("sku").fromTable("products").build(),
+                        new JoinPair("product_id", "id"));
+    }
+
+    @Test
+    public void shouldCreateSemiJoinStatementsUsingExists() {
+        ParamSpec<String> groups = ParamSpec.find(String.class).inColumn("name").fromTable("groups").build();
+        ParamSpec<String> roles = ParamSpec.find(String.class).inColumn("name").fromTable("roles").build();
+        ParamSpecs specs = ParamSpecs.create(
+                ParamSpec.find(String.class).inColumn("username").fromTable("users")
+                        .where(new Condition("status", Operator.EQUALS, "ACTIVE")).build())
+                .join(groups, new JoinPair("group_id", "id"))
+                .join(roles, new JoinPair("role_id", "id"), new JoinPair("tenant_id", "tenant_id"))
+                .joinUsing(JoinStrategy.EXISTS);
+        assertEquals(JoinStrategy.EXISTS, specs.getJoinStrategy());
+        String sql = specs.getSqlStatement(specs.getParamSpecs().get(0));
+        logger.info(sql);
+        assertEquals("SELECT DISTINCT a.username FROM users a WHERE a.status='ACTIVE'", sql);
+        sql = specs.getSqlStatement(roles);
+        logger.info(sql);
+        assertEquals("SELECT DISTINCT c.name FROM roles c WHERE EXISTS (SELECT 1 FROM groups b "
+                + "WHERE b.role_id=c.id AND b.tenant_id=c.tenant_id AND EXISTS (SELECT 1 FROM users a "
+                + "WHERE a.group_id=b.id AND a.status='ACTIVE' AND a.username = ?) AND b.name = ?)", sql);
+    }
+
+    @Test
+    public void shouldCreateSemiJoinStatementsUsingIn() {
+        ParamSpec<String> roles = ParamSpec.find(String.class).inColumn("name").fromTable("roles").build();
+        ParamSpecs specs = ParamSpecs.create(
+                ParamSpec.find(String.class).inColumn("username").fromTable("users").build())
+                .join(ParamSpec.find(String.class).inColumn("name").fromTable("groups").build(),
+                        new JoinPair("group_id", "id"))
+                .join(roles, new JoinPair("role_id", "id"))
+                .joinUsing(JoinStrategy.IN);
+        String sql = specs.getSqlStatement(roles);
+        logger.info(sql);
+        assertEquals("SELECT DISTINCT c.name FROM roles c WHERE c.id IN (SELECT b.role_id FROM groups b "
+                + "WHERE b.id IN (SELECT a.group_id FROM users a WHERE a.username = ?) AND b.name = ?)", sql);
+    }
+
+    @Test
+    public void shouldCreateSampledInitialStatementsForDialect() {
+        ParamSpecs specs = ParamSpecs.create(
+                ParamSpec.find(String.class).inColumn("username").fromTable("users")
+                        .where(new Condition("status", Operator.EQUALS, "ACTIVE")).build());
+        assertEquals(SamplingMode.NONE, specs.getSamplingMode());
+        assertEquals("SELECT a.username FROM users a WHERE a.status='ACTIVE' LIMIT 32",
+                specs.getInitialSqlStatement(Database.POSTGRESQL, 32));
+        specs.sampleUsing(SamplingMode.DISTINCT);
+        assertEquals("SELECT DISTINCT a.username FROM users a WHERE a.status='ACTIVE' LIMIT 32",
+                specs.getInitialSqlStatement(Database.POSTGRESQL, 32));
+        specs.sampleUsing(SamplingMode.TABLESAMPLE, 5.0);
+        assertEquals(5.0, specs.getSamplePercent(), 0.0);
+        assertEquals("SELECT DISTINCT a.username FROM users a TABLESAMPLE SYSTEM (5.0) WHERE a.status='ACTIVE'"
+                + " LIMIT 32", specs.getInitialSqlStatement(Database.POSTGRESQL, 32));
+        assertEquals("SELECT DISTINCT a.username FROM users SAMPLE (5.0) a WHERE a.status='ACTIVE'"
+                + " AND ROWNUM<=32", specs.getInitialSqlStatement(Database.ORACLE, 32));
+        String sql = specs.getInitialSqlStatement(Database.MYSQL, 32);
+        logger.info(sql);
+        assertEquals("SELECT s.username FROM (SELECT DISTINCT a.username FROM users a WHERE a.status='ACTIVE'"
+                + " LIMIT 320) s ORDER BY RAND() LIMIT 32", sql);
+    }
+
+    @Test
+    public void shouldCreatePartitionedInitialStatements() {
+        ParamSpecs specs = ParamSpecs.create(
+                ParamSpec.find(String.class).inColumn("username").fromTable("users")
+                        .where(new Condition("status", Operator.EQUALS, "ACTIVE")).build())
+                .partitionInitialScan(3, PartitionStrategy.HASH, "id");
+        assertEquals(3, specs.getPartitionCount());
+        List<String> statements = specs.getPartitionedInitialSqlStatements(Database.H2, 30, 0L, 0L);
+        statements.forEach(logger::info);
+        assertEquals(3, statements.size());
+        assertEquals("SELECT a.username FROM users a WHERE a.status='ACTIVE' AND MOD(ABS(a.id), 3) = 2 LIMIT 10",
+                statements.get(2));
+        statements = specs.getPartitionedInitialSqlStatements(Database.ORACLE, 30, 0L, 0L);
+        assertEquals("SELECT a.username FROM users a WHERE a.status='ACTIVE' AND ORA_HASH(a.id, 2) = 0"
+                + " AND ROWNUM<=10", statements.get(0));
+        specs.partitionInitialScan(2, PartitionStrategy.RANGE, "id");
+        assertEquals("SELECT MIN(a.id), MAX(a.id) FROM users a WHERE a.status='ACTIVE'",
+                specs.getPartitionBoundsSqlStatement());
+        statements = specs.getPartitionedInitialSqlStatements(Database.H2, 30, 1L, 100L);
+        statements.forEach(logger::info);
+        assertEquals("SELECT a.username FROM users a WHERE a.status='ACTIVE' AND a.id >= 1 AND a.id < 51"
+                + " LIMIT 15", statements.get(0));
+        assertEquals("SELECT a.username FROM users a WHERE a.status='ACTIVE' AND a.id >= 51 LIMIT 15",
+                statements.get(1));
+    }
+
+    @Test
+    public void shouldHashStringFirstColumnOnlyWithDialectHashFunction() {
+        ParamSpecs specs = ParamSpecs.create(
+                ParamSpec.find(String.class).inColumn("username").fromTable("users").build())
+                .partitionInitialScan(2, PartitionStrategy.HASH);
+        assertEquals("SELECT a.username FROM users a WHERE MOD(CRC32(a.username), 2) = 1 LIMIT 15",
+                specs.getPartitionedInitialSqlStatements(Database.MYSQL, 30, 0L, 0L).get(1));
+        assertEquals("SELECT a.username FROM users a"
+                        + " WHERE MOD(ABS(CAST(hashtext(CAST(a.username AS TEXT)) AS BIGINT)), 2) = 0 LIMIT 15",
+                specs.getPartitionedInitialSqlStatements(Database.POSTGRESQL, 30, 0L, 0L).get(0));
+        try {
+            specs.getPartitionedInitialSqlStatements(Database.H2, 30, 0L, 0L);
+            fail("H2 cannot hash strings");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("partitionColumn"));
+        }
+        try {
+            specs.partitionInitialScan(2, PartitionStrategy.RANGE);
+            fail("strings cannot be range partitioned");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("partitionColumn"));
+        }
+        specs.partitionInitialScan(2, PartitionStrategy.RANGE, "id");
+        assertEquals("SELECT a.username FROM users a WHERE a.id >= 51 LIMIT 15",
+                specs.getPartitionedInitialSqlStatements(Database.H2, 30, 1L, 100L).get(1));
+    }
+
     @Test
     public void shouldStoreDesiredTuplesSetSize() {
         int desiredTuplesSetSize = 8;
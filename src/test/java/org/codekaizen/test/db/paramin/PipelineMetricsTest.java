@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PipelineMetrics.
+ *
+ * @author kbrockhoff
+ */
+public class PipelineMetricsTest {
+
+    @Test
+    public void shouldBoundPercentilesWithinPowerOfTwoBuckets() {
+        PipelineMetrics.LatencyRecorder recorder = new PipelineMetrics.LatencyRecorder();
+        assertEquals(0L, recorder.snapshot().getPercentileNanos(0.99));
+        for (long nanos = 1L; nanos <= 100L; nanos++) {
+            recorder.record(nanos * 1000L);
+        }
+        MetricsSnapshot.Latency latency = recorder.snapshot();
+        assertEquals(100L, latency.getCount());
+        assertEquals(100000L, latency.getMaxNanos());
+        assertEquals(50500L, latency.getMeanNanos());
+        long median = latency.getPercentileNanos(0.5);
+        assertTrue(median >= 50000L && median < 100000L);
+        assertEquals(100000L, latency.getPercentileNanos(1.0));
+        assertTrue(latency.getPercentileNanos(0.01) < 2000L);
+    }
+
+    @Test
+    public void shouldCountRowsAndDuplicatesPerStage() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        ParamSpec<Integer> spec = ParamSpec.find(Integer.class).fromTable("pets").inColumn("id").build();
+        AdaptiveBudget budget = new AdaptiveBudget(10);
+        budget.reportTo(metrics.forStage(spec));
+        budget.recordRow(true);
+        budget.recordRow(false);
+        budget.recordResult(true);
+        budget.recordResult(false);
+        metrics.forStage(spec).recordQuery(5000L);
+        MetricsSnapshot.Stage stage = metrics.forStage(spec).snapshot();
+        assertEquals(1L, stage.getQueries());
+        assertEquals(2L, stage.getRowsFetched());
+        assertEquals(1L, stage.getRowsRejected());
+        assertEquals(1L, stage.getDedupHits());
+        assertEquals(5000L, stage.getQueryLatency().getMaxNanos());
+    }
+
+    @Test
+    public void shouldPassRetrievalMeasurementsOnToExecutorWideStage() {
+        PipelineMetrics executor = new PipelineMetrics();
+        PipelineMetrics retrieval = new PipelineMetrics();
+        ParamSpec<Integer> spec = ParamSpec.find(Integer.class).fromTable("pets").inColumn("id").build();
+        executor.forStage(spec).recordQuery(1000L);
+        PipelineMetrics.StageRecorder recorder = retrieval.forStage(spec, executor.forStage(spec));
+        recorder.recordQuery(3000L);
+        recorder.recordRow(true);
+        recorder.recordResult(false);
+        recorder.recordQueueWait(200L);
+        MetricsSnapshot.Stage own = retrieval.forStage(spec).snapshot();
+        MetricsSnapshot.Stage shared = executor.forStage(spec).snapshot();
+        assertEquals(1L, own.getQueries());
+        assertEquals(3000L, own.getQueryLatency().getTotalNanos());
+        assertEquals(1L, own.getRowsAccepted());
+        assertEquals(1L, own.getDedupHits());
+        assertEquals(200L, own.getQueueWait().getTotalNanos());
+        assertEquals(2L, shared.getQueries());
+        assertEquals(4000L, shared.getQueryLatency().getTotalNanos());
+        assertEquals(1L, shared.getRowsAccepted());
+        assertEquals(1L, shared.getQueueWait().getCount());
+    }
+
+}
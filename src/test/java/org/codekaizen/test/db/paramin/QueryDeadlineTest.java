@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for QueryDeadline.
+ *
+ * @author kbrockhoff
+ */
+public class QueryDeadlineTest {
+
+    @Test
+    public void shouldUseQueryTimeoutWhenNotBudgeted() {
+        QueryDeadline deadline = new QueryDeadline(5, null);
+        assertFalse(deadline.isBudgeted());
+        assertFalse(deadline.isExpired());
+        assertEquals(5, deadline.getRemainingQueryTimeout());
+    }
+
+    @Test
+    public void shouldLimitQueryTimeoutToRemainingBudget() {
+        QueryDeadline deadline = new QueryDeadline(30, Duration.ofMillis(2500L));
+        assertTrue(deadline.isBudgeted());
+        int timeout = deadline.getRemainingQueryTimeout();
+        assertTrue(timeout >= 1 && timeout <= 3);
+        assertEquals(5, new QueryDeadline(5, Duration.ofMinutes(10L)).getRemainingQueryTimeout());
+        assertEquals(600, new QueryDeadline(0, Duration.ofMinutes(10L)).getRemainingQueryTimeout());
+    }
+
+    @Test
+    public void shouldExpireOnceBudgetIsUsed() throws InterruptedException {
+        QueryDeadline deadline = new QueryDeadline(0, Duration.ofMillis(10L));
+        Thread.sleep(20L);
+        assertTrue(deadline.isExpired());
+        assertEquals(1, deadline.getRemainingQueryTimeout());
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for QueryHedger.
+ *
+ * @author kbrockhoff
+ */
+public class QueryHedgerTest {
+
+    private static final String PLAN = "SELECT 1";
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldNotHedgeUntilEnoughLatenciesObserved() throws SQLException {
+        QueryHedger hedger = new QueryHedger(0.9, 1.0, executor, scheduler);
+        for (int i = 0; i < 19; i++) {
+            assertEquals("primary", hedger.execute(PLAN, new FakeCall("primary", 0L), new FakeCall("backup", 0L)));
+            assertEquals(-1L, hedger.getThresholdNanos(PLAN));
+        }
+        hedger.execute(PLAN, new FakeCall("primary", 0L), new FakeCall("backup", 0L));
+        assertTrue(hedger.getThresholdNanos(PLAN) >= 0L);
+        assertEquals(0L, hedger.getHedges());
+    }
+
+    @Test
+    public void shouldReturnBackupAndCancelPrimaryWhenPrimaryStalls() throws SQLException {
+        QueryHedger hedger = new QueryHedger(0.9, 1.0, executor, scheduler);
+        warmUp(hedger);
+        FakeCall primary = new FakeCall("primary", 10000L);
+        FakeCall backup = new FakeCall("backup", 0L);
+        long started = System.nanoTime();
+        assertEquals("backup", hedger.execute(PLAN, primary, backup));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5L));
+        assertTrue(primary.cancelled.get());
+        assertFalse(backup.cancelled.get());
+        assertEquals(1L, hedger.getHedges());
+        assertEquals(1L, hedger.getHedgeWins());
+    }
+
+    @Test
+    public void shouldNotExceedExtraLoadCap() throws SQLException {
+        QueryHedger hedger = new QueryHedger(0.9, 0.01, executor, scheduler);
+        warmUp(hedger);
+        FakeCall primary = new FakeCall("primary", 200L);
+        assertEquals("primary", hedger.execute(PLAN, primary, new FakeCall("backup", 0L)));
+        assertFalse(primary.cancelled.get());
+        assertEquals(0L, hedger.getHedges());
+    }
+
+    @Test
+    public void shouldUseBackupWhenPrimaryFailsAfterHedging() throws SQLException {
+        QueryHedger hedger = new QueryHedger(0.9, 1.0, executor, scheduler);
+        warmUp(hedger);
+        FakeCall primary = new FakeCall(null, 200L);
+        FakeCall backup = new FakeCall("backup", 400L);
+        assertEquals("backup", hedger.execute(PLAN, primary, backup));
+    }
+
+    @Test
+    public void shouldRunPrimaryOnCallingThread() throws SQLException {
+        QueryHedger hedger = new QueryHedger(0.9, 1.0, executor, scheduler);
+        warmUp(hedger);
+        FakeCall primary = new FakeCall("primary", 0L);
+        assertEquals("primary", hedger.execute(PLAN, primary, new FakeCall("backup", 0L)));
+        assertSame(Thread.currentThread(), primary.caller);
+    }
+
+    @Test
+    public void shouldCancelBackupWhenPrimaryReturnsFirst() throws SQLException {
+        QueryHedger hedger = new QueryHedger(0.9, 1.0, executor, scheduler);
+        warmUp(hedger);
+        FakeCall primary = new FakeCall("primary", 200L);
+        FakeCall backup = new FakeCall("backup", 10000L);
+        assertEquals("primary", hedger.execute(PLAN, primary, backup));
+        assertTrue(backup.cancelled.get());
+        assertEquals(1L, hedger.getHedges());
+        assertEquals(0L, hedger.getHedgeWins());
+    }
+
+    private void warmUp(QueryHedger hedger) throws SQLException {
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(PLAN, new FakeCall("primary", 0L), new FakeCall("backup", 0L));
+        }
+    }
+
+    private static class FakeCall implements QueryHedger.Call<String> {
+
+        private final String result;
+        private final long millis;
+        private final CountDownLatch cancel = new CountDownLatch(1);
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile Thread caller;
+
+        FakeCall(String result, long millis) {
+            this.result = result;
+            this.millis = millis;
+        }
+
+        @Override
+        public String call() throws SQLException {
+            caller = Thread.currentThread();
+            try {
+                if (cancel.await(millis, TimeUnit.MILLISECONDS)) {
+                    throw new SQLException("cancelled");
+                }
+            } catch (InterruptedException cause) {
+                throw new SQLException(cause);
+            }
+            if (result == null) {
+                throw new SQLException("failed");
+            }
+            return result;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+            cancel.countDown();
+        }
+
+        @Override
+        public void discard(String result) {
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ReservoirSampler.
+ *
+ * @author kbrockhoff
+ */
+public class ReservoirSamplerTest {
+
+    @Test
+    public void shouldKeepAllItemsWhenStreamIsShorterThanCapacity() {
+        ReservoirSampler<Integer> sampler = new ReservoirSampler<>(10, new Random(42L));
+        for (int i = 0; i < 6; i++) {
+            assertTrue(sampler.offer(i));
+        }
+        assertEquals(6, sampler.size());
+        assertEquals(6L, sampler.getOffered());
+        assertEquals(6, sampler.getSample().stream().distinct().count());
+    }
+
+    @Test
+    public void shouldHoldOnlyCapacityItemsFromLongStream() {
+        ReservoirSampler<Integer> sampler = new ReservoirSampler<>(10, new Random(42L));
+        for (int i = 0; i < 100000; i++) {
+            sampler.offer(i);
+        }
+        assertEquals(10, sampler.size());
+        assertEquals(100000L, sampler.getOffered());
+    }
+
+    @Test
+    public void shouldProduceSameSampleForSameSeed() {
+        ReservoirSampler<Integer> first = new ReservoirSampler<>(8, new Random(7L));
+        ReservoirSampler<Integer> second = new ReservoirSampler<>(8, new Random(7L));
+        for (int i = 0; i < 5000; i++) {
+            first.offer(i);
+            second.offer(i);
+        }
+        assertEquals(first.getSample(), second.getSample());
+    }
+
+    @Test
+    public void shouldSampleUniformlyAcrossStream() {
+        int buckets = 10;
+        int[] counts = new int[buckets];
+        Random random = new Random(11L);
+        int trials = 2000;
+        for (int t = 0; t < trials; t++) {
+            ReservoirSampler<Integer> sampler = new ReservoirSampler<>(5, random);
+            for (int i = 0; i < 1000; i++) {
+                sampler.offer(i);
+            }
+            List<Integer> sample = sampler.getSample();
+            sample.forEach(v -> counts[v / 100]++);
+        }
+        double expected = trials * 5.0 / buckets;
+        for (int count : counts) {
+            assertEquals(expected, count, expected * 0.15);
+        }
+    }
+
+}
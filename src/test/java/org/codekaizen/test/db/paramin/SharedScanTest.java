@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SharedScan.
+ *
+ * @author kbrockhoff
+ */
+public class SharedScanTest {
+
+    private static final IntFunction<String> SQL = limit -> "SELECT a.id FROM numbers a LIMIT " + limit;
+
+    private final ParamSpec<Integer> spec = ParamSpec.find(Integer.class).fromTable("numbers").inColumn("id").build();
+    private JdbcDataSource dataSource;
+    private Connection keepAlive;
+    private Supplier<Optional<Connection>> connectionSupplier;
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:sharedscan");
+        keepAlive = dataSource.getConnection();
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("CREATE TABLE numbers AS SELECT CAST(x AS INT) AS id FROM SYSTEM_RANGE(1, 100)");
+        }
+        connectionSupplier = () -> {
+            try {
+                return Optional.of(dataSource.getConnection());
+            } catch (SQLException cause) {
+                throw new IllegalStateException(cause);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("DROP TABLE numbers");
+        }
+        keepAlive.close();
+    }
+
+    @Test
+    public void shouldShareOneScanBetweenFlowsWithSamePlan() throws SQLException {
+        SharedScan.Registry registry = new SharedScan.Registry();
+        SharedScan<Integer> first = registry.attach("numbers", spec, SQL, 10, connectionSupplier).get();
+        SharedScan<Integer> second = registry.attach("numbers", spec, SQL, 10, connectionSupplier).get();
+        assertSame(first, second);
+        assertEquals(2, first.getAttached());
+        assertEquals(Integer.valueOf(1), first.get(0));
+        assertEquals(Integer.valueOf(5), second.get(4));
+        assertEquals(Integer.valueOf(1), second.get(0));
+        assertEquals(1L, first.getExecutions());
+        first.detach();
+        assertEquals(1, registry.size());
+        second.detach();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void shouldKeepScanWithoutFlowsOpenWhilePinned() throws SQLException {
+        SharedScan.Registry registry = new SharedScan.Registry();
+        registry.pin();
+        SharedScan<Integer> first = registry.attach("numbers", spec, SQL, 10, connectionSupplier).get();
+        assertEquals(Integer.valueOf(3), first.get(2));
+        first.detach();
+        assertEquals(1, registry.size());
+        SharedScan<Integer> second = registry.attach("numbers", spec, SQL, 10, connectionSupplier).get();
+        assertSame(first, second);
+        assertEquals(Integer.valueOf(4), second.get(3));
+        second.detach();
+        registry.unpin();
+        assertEquals(0, registry.size());
+        assertEquals(1L, registry.getScansStarted());
+        assertEquals(2L, registry.getAttachments());
+    }
+
+    @Test
+    public void shouldGrowLimitOnlyWhenTruncated() throws SQLException {
+        SharedScan.Registry registry = new SharedScan.Registry();
+        SharedScan<Integer> scan = registry.attach("numbers", spec, SQL, 10, connectionSupplier).get();
+        assertNull(scan.get(10));
+        assertEquals(10, scan.size());
+        assertTrue(scan.grow());
+        assertEquals(Integer.valueOf(11), scan.get(10));
+        assertNull(scan.get(100));
+        assertEquals(40, scan.size());
+        assertTrue(scan.grow());
+        assertNull(scan.get(100));
+        assertEquals(100, scan.size());
+        assertFalse(scan.grow());
+        assertEquals(3L, scan.getExecutions());
+        scan.detach();
+    }
+
+    @Test
+    public void shouldNotStartScanWithoutConnection() {
+        SharedScan.Registry registry = new SharedScan.Registry();
+        assertFalse(registry.attach("numbers", spec, SQL, 10, Optional::empty).isPresent());
+        assertEquals(0, registry.size());
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except inColumn compliance with the License.
+ * You may obtain a copy singleOf the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to inColumn writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codekaizen.test.db.paramin;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TupleBatcher.
+ *
+ * @author kbrockhoff
+ */
+public class TupleBatcherTest {
+
+    private static final String SENDER = "stage";
+
+    @Test
+    public void shouldPublishSingleTupleAsPlainOnNext() {
+        RecordingEventBus eventBus = new RecordingEventBus();
+        TupleBatcher batcher = new TupleBatcher(SENDER, eventBus, 4);
+        batcher.flush();
+        assertTrue(eventBus.published.isEmpty());
+        batcher.add(tuple(1));
+        batcher.flush();
+        assertEquals(1, eventBus.published.size());
+        assertEquals(tuple(1), ((OnNextEvent) eventBus.published.get(0)).getItem());
+    }
+
+    @Test
+    public void shouldPublishCollectedTuplesAsOneBatchBeforeTerminalEvent() {
+        RecordingEventBus eventBus = new RecordingEventBus();
+        TupleBatcher batcher = new TupleBatcher(SENDER, eventBus, 4);
+        for (int i = 0; i < 6; i++) {
+            batcher.add(tuple(i));
+        }
+        assertEquals(1, eventBus.published.size());
+        batcher.publishAfterFlush(new OnCompleteEvent(SENDER));
+        assertEquals(3, eventBus.published.size());
+        List<Tuple> first = ((OnNextBatchEvent) eventBus.published.get(0)).getItems();
+        List<Tuple> second = ((OnNextBatchEvent) eventBus.published.get(1)).getItems();
+        assertEquals(4, first.size());
+        assertEquals(tuple(0), first.get(0));
+        assertEquals(2, second.size());
+        assertEquals(tuple(5), second.get(1));
+        assertTrue(eventBus.published.get(2) instanceof OnCompleteEvent);
+    }
+
+    @Test
+    public void shouldRouteBatchInOneCallOnlyToBatchSubscribers() {
+        EventBusImpl eventBus = new EventBusImpl();
+        RecordingSubscriber plain = new RecordingSubscriber();
+        RecordingSubscriber batching = new BatchRecordingSubscriber();
+        List<Tuple> items = new ArrayList<>();
+        items.add(tuple(1));
+        items.add(tuple(2));
+        for (RecordingSubscriber subscriber : new RecordingSubscriber[]{plain, batching}) {
+            String publisherId = UUID.randomUUID().toString();
+            eventBus.registerReceiver(subscriber);
+            eventBus.routeEvent(new OnSubscribeEvent(publisherId, new SubscriptionImpl(subscriber, eventBus)));
+            eventBus.routeEvent(new OnNextBatchEvent(publisherId, items));
+        }
+        assertEquals(items, plain.received);
+        assertEquals(2, plain.calls);
+        assertEquals(items, batching.received);
+        assertEquals(1, batching.calls);
+    }
+
+    private Tuple tuple(int value) {
+        return Tuple.EMPTY_TUPLE.addElement("ID", value);
+    }
+
+    private static class RecordingEventBus implements EventBus {
+
+        private final List<EventObject> published = new ArrayList<>();
+
+        @Override
+        public boolean publish(EventObject event) {
+            return published.add(event);
+        }
+
+        @Override
+        public void registerReceiver(Component component) {
+        }
+
+        @Override
+        public void unregisterReceiver(Component component) {
+        }
+
+    }
+
+    private static class RecordingSubscriber implements Subscriber<Tuple>, Component {
+
+        private final String componentId = UUID.randomUUID().toString();
+        final List<Tuple> received = new ArrayList<>();
+        int calls = 0;
+
+        @Override
+        public String getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+        }
+
+        @Override
+        public void onNext(Tuple item) {
+            calls++;
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+    }
+
+    private static class BatchRecordingSubscriber extends RecordingSubscriber implements BatchSubscriber {
+
+        @Override
+        public void onNextBatch(List<Tuple> items) {
+            calls++;
+            received.addAll(items);
+        }
+
+    }
+
+}